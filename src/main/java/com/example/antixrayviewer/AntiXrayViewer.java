@@ -61,9 +61,9 @@ public class AntiXrayViewer extends JavaPlugin {
 
     @Override
     public void onDisable() {
-        // Останавливаем все активные записи
+        // Останавливаем все активные записи и дописываем очередь хранилища
         if (recordingManager != null) {
-            recordingManager.stopAllRecordings();
+            recordingManager.shutdown();
         }
         
         // Останавливаем все воспроизведения и возвращаем зрителям реальный мир
@@ -83,6 +83,7 @@ public class AntiXrayViewer extends JavaPlugin {
     
     private void loadConfiguration() {
         FileConfiguration config = getConfig();
+        migrateConfiguration(config);
         
         // Устанавливаем значения по умолчанию, если их нет
         config.addDefault("thresholds.diamond", 5);
@@ -93,6 +94,17 @@ public class AntiXrayViewer extends JavaPlugin {
         config.addDefault("recording.duration", 180);
         config.addDefault("recording.interval-ticks", 2);
         config.addDefault("recording.max-saved", 50);
+        config.addDefault("recording.flashback.enabled", false);
+        config.addDefault("recording.flashback.seconds", 60);
+        config.addDefault("recording.flashback.interval-ticks", 4);
+        config.addDefault("recording.flashback.max-y", 16);
+        config.addDefault("recording.flashback.max-events", 512);
+        config.addDefault("recording.flashback.pool-size", 64);
+        
+        config.addDefault("storage.cache-mb", 64);
+        config.addDefault("storage.queue-size", 8);
+        config.addDefault("storage.shutdown-timeout-seconds", 30);
+        config.addDefault("storage.segment-seconds", 10);
         
         // Настройки воспроизведения и камеры
         config.addDefault("replay.camera.default-mode", "FIRST_PERSON");
@@ -100,10 +112,18 @@ public class AntiXrayViewer extends JavaPlugin {
         config.addDefault("replay.camera.third-person-distance", 4.0);
         config.addDefault("replay.camera.show-avatar", true);
         
-        config.addDefault("replay.performance.block-updates-per-tick", 256);
+        config.addDefault("replay.performance.block-packets-per-tick", 64);
+        config.addDefault("replay.performance.block-packets-per-tick-min", 8);
+        config.addDefault("replay.performance.block-bytes-per-tick", 32768);
+        config.addDefault("replay.performance.block-bytes-per-tick-min", 4096);
+        config.addDefault("replay.performance.global-packets-per-tick", 256);
+        config.addDefault("replay.performance.global-bytes-per-tick", 131072);
+        config.addDefault("replay.performance.driver-budget-ms", 5.0);
         config.addDefault("replay.performance.block-render-distance", 96.0);
         config.addDefault("replay.performance.break-animation-distance", 48.0);
         config.addDefault("replay.performance.start-delay-ticks", 40);
+        config.addDefault("replay.performance.timeline-cache-size", 4);
+        config.addDefault("replay.performance.camera-track", true);
         
         config.addDefault("replay.playback.default-speed", 1.0);
         config.addDefault("replay.playback.max-speed", 8.0);
@@ -121,6 +141,34 @@ public class AntiXrayViewer extends JavaPlugin {
         saveConfig();
     }
     
+    /**
+     * Переносит ключи старых версий конфига на новые имена, чтобы настройка не пропала молча.
+     */
+    private void migrateConfiguration(FileConfiguration config) {
+        // Лимит отправки блоков раньше считался в блоках, теперь — в пакетах изменения секции
+        String legacyBlocks = "replay.performance.block-updates-per-tick";
+        String packets = "replay.performance.block-packets-per-tick";
+        if (config.contains(legacyBlocks, true)) {
+            int legacy = config.getInt(legacyBlocks);
+            if (!config.contains(packets, true) && legacy == 256) {
+                // Старое значение по умолчанию — действует новое по умолчанию
+                getLogger().warning("Ключ " + legacyBlocks + " устарел и удалён: стояло значение по умолчанию,"
+                        + " действует " + packets + " по умолчанию");
+            } else if (!config.contains(packets, true)) {
+                // В пакете секции несколько блоков: переводим в той же пропорции, что и значения
+                // по умолчанию (256 блоков → 64 пакета), и не выше общего лимита на все просмотры
+                int global = config.getInt("replay.performance.global-packets-per-tick", 256);
+                int converted = Math.max(1, Math.min(global, legacy * 64 / 256));
+                config.set(packets, converted);
+                getLogger().warning("Ключ " + legacyBlocks + " устарел: его значение " + legacy + " блоков"
+                        + " перенесено в " + packets + " как " + converted + " пакетов на тик");
+            } else {
+                getLogger().warning("Ключ " + legacyBlocks + " устарел и не используется: действует " + packets);
+            }
+            config.set(legacyBlocks, null);
+        }
+    }
+    
     public RecordingManager getRecordingManager() {
         return recordingManager;
     }
@@ -2,11 +2,17 @@ package com.example.antixrayviewer.commands;
 
 import com.example.antixrayviewer.AntiXrayViewer;
 import com.example.antixrayviewer.data.PlayerRecording;
+import com.example.antixrayviewer.data.RecordingInfo;
 import com.example.antixrayviewer.managers.RecordingManager;
 import com.example.antixrayviewer.replay.CameraMode;
+import com.example.antixrayviewer.replay.PacketBudget;
 import com.example.antixrayviewer.replay.ReplayManager;
 import com.example.antixrayviewer.replay.ReplaySession;
 import com.example.antixrayviewer.replay.ReplayTimeline;
+import com.example.antixrayviewer.replay.TimelineCache;
+import com.example.antixrayviewer.replay.VirtualBlockView;
+import com.example.antixrayviewer.storage.RecordingCache;
+import com.example.antixrayviewer.storage.StoragePipeline;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.event.ClickEvent;
 import net.kyori.adventure.text.event.HoverEvent;
@@ -250,6 +256,10 @@ public class AntiXrayViewerCommand implements CommandExecutor, TabCompleter {
                 return true;
             }
             case "info": {
+                if (args.length >= 2) {
+                    handleRecordingInfo(player, args[1]);
+                    return true;
+                }
                 ReplaySession session = requireSession(player);
                 if (session != null) {
                     sendSessionInfo(player, session);
@@ -293,12 +303,15 @@ public class AntiXrayViewerCommand implements CommandExecutor, TabCompleter {
         ReplaySession session = replayManager.get(player);
         if (session == null) {
             error(player, "Сначала откройте запись: /axv view <id>");
+        } else if (session.isLoading()) {
+            error(player, "Запись ещё готовится, подождите пару секунд.");
+            return null;
         }
         return session;
     }
 
     private void handleList(Player player, int page) {
-        List<PlayerRecording> recordings = recordingManager.getCompletedRecordings();
+        List<RecordingInfo> recordings = recordingManager.getCompletedRecordings();
         if (recordings.isEmpty()) {
             info(player, "Записей пока нет.");
             return;
@@ -313,7 +326,7 @@ public class AntiXrayViewerCommand implements CommandExecutor, TabCompleter {
                 .decorate(TextDecoration.BOLD));
 
         for (int i = start; i < end; i++) {
-            PlayerRecording recording = recordings.get(i);
+            RecordingInfo recording = recordings.get(i);
             Component line = Component.text("#" + recording.getId() + " ", NamedTextColor.AQUA)
                     .append(Component.text(recording.getPlayerName(), NamedTextColor.WHITE))
                     .append(Component.text("  " + recording.getDurationSeconds() + "с", NamedTextColor.GRAY))
@@ -342,18 +355,40 @@ public class AntiXrayViewerCommand implements CommandExecutor, TabCompleter {
             error(player, "ID должен быть числом.");
             return;
         }
-        PlayerRecording recording = recordingManager.getRecording(id);
-        if (recording == null) {
+        RecordingInfo info = recordingManager.getRecordingInfo(id);
+        if (info == null) {
             error(player, "Запись #" + id + " не найдена.");
             return;
         }
-        if (recording.getFrameCount() == 0) {
+        if (info.getFrameCount() == 0) {
             error(player, "В записи #" + id + " нет кадров.");
             return;
         }
+        // Запись, которой нет в памяти, читается с диска в фоне — сессия до тех пор в режиме загрузки
+        ReplaySession session = replayManager.start(player, info);
+        if (!session.isLoading()) {
+            sendSessionInfo(player, session);
+        }
+    }
 
-        ReplaySession session = replayManager.start(player, recording);
-        sendSessionInfo(player, session);
+    /**
+     * Сведения о записи из каталога — кадры с диска не читаются.
+     */
+    private void handleRecordingInfo(Player player, String idRaw) {
+        int id = parseInt(idRaw, -1);
+        RecordingInfo info = id < 0 ? null : recordingManager.getRecordingInfo(id);
+        if (info == null) {
+            error(player, "Запись #" + idRaw + " не найдена.");
+            return;
+        }
+        player.sendMessage(Component.text("Запись #" + info.getId() + " · " + info.getPlayerName(), NamedTextColor.GOLD));
+        player.sendMessage(Component.text("Причина: " + info.getReason()
+                + (info.getEndReason() != null ? " | Завершена: " + info.getEndReason() : ""), NamedTextColor.GRAY));
+        player.sendMessage(Component.text("Начало: " + dateFormat.format(new Date(info.getStartTime()))
+                + " | Длительность: " + ReplaySession.formatTime(info.getDuration())
+                + " | Кадров: " + info.getFrameCount()
+                + " | Руды: " + info.getOreCount()
+                + " | Размер: " + String.format(Locale.ROOT, "%.1f КБ", info.getByteSize() / 1024.0), NamedTextColor.DARK_AQUA));
     }
 
     private void handleDelete(Player player, String idRaw) {
@@ -377,11 +412,47 @@ public class AntiXrayViewerCommand implements CommandExecutor, TabCompleter {
             player.sendMessage(Component.text(" • " + recording.getPlayerName() + " — " + recording.getReason(),
                     NamedTextColor.GRAY));
         }
+        if (!active.isEmpty()) {
+            player.sendMessage(Component.text(String.format(Locale.ROOT, "Тик записи: %.3f мс (среднее %.3f мс, кадров за проход %d)",
+                    recordingManager.getLastSampleNanos() / 1_000_000.0, recordingManager.getAverageSampleNanos() / 1_000_000.0,
+                    recordingManager.getLastSampledCount()), NamedTextColor.DARK_GRAY));
+        }
+        if (recordingManager.getFlashbackPoolSize() > 0) {
+            player.sendMessage(Component.text(String.format(Locale.ROOT, "Flashback: %d / %d буферов, %.1f / %.1f МБ",
+                    recordingManager.getFlashbackActiveCount(), recordingManager.getFlashbackPoolSize(),
+                    recordingManager.getFlashbackUsedBytes() / 1048576.0, recordingManager.getFlashbackBudgetBytes() / 1048576.0),
+                    NamedTextColor.DARK_GRAY));
+        }
+        StoragePipeline pipeline = recordingManager.getStoragePipeline();
+        player.sendMessage(Component.text(String.format(Locale.ROOT, "Хранилище: очередь %d / %d, кодирование %.1f мс (среднее %.1f), запись %.1f МБ/с, отказов %d",
+                pipeline.getQueueDepth(), pipeline.getCapacity(), pipeline.getLastEncodeMillis(), pipeline.getAverageEncodeMillis(),
+                pipeline.getBytesPerSecond() / 1048576.0, pipeline.getRejected()), NamedTextColor.DARK_GRAY));
+        RecordingCache cache = recordingManager.getRecordingCache();
+        player.sendMessage(Component.text(String.format(Locale.ROOT, "Кэш записей: %d шт., %.1f / %.0f МБ (попаданий %d, промахов %d)",
+                cache.size(), cache.getUsedBytes() / 1048576.0, cache.getBudgetBytes() / 1048576.0,
+                cache.getHits(), cache.getMisses()), NamedTextColor.DARK_GRAY));
+        TimelineCache timelines = replayManager.getTimelineCache();
+        player.sendMessage(Component.text(String.format(Locale.ROOT, "Таймлинии: %d шт., в просмотре %d (попаданий %d, построено %d)",
+                timelines.size(), timelines.getInUseCount(), timelines.getHits(), timelines.getMisses()), NamedTextColor.DARK_GRAY));
+        PacketBudget budget = replayManager.getPacketBudget();
+        player.sendMessage(Component.text(String.format(Locale.ROOT, "Бюджет блоков: MSPT %.1f → x%.2f, общий лимит %d пак. / %d КБ на тик",
+                budget.getMspt(), budget.getLoadFactor(), budget.getGlobalPackets(), budget.getGlobalBytes() / 1024),
+                NamedTextColor.DARK_GRAY));
+        player.sendMessage(Component.text(String.format(Locale.ROOT, "Тик сессий: %.2f / %.1f мс, отложено %d",
+                replayManager.getLastDriverNanos() / 1_000_000.0, replayManager.getDriverBudgetMs(),
+                replayManager.getLastDeferred()), NamedTextColor.DARK_GRAY));
+        for (ReplaySession session : replayManager.getSessions()) {
+            VirtualBlockView blocks = session.getBlocks();
+            player.sendMessage(Component.text(String.format(Locale.ROOT, " • %s → #%d: %d пак. / %d КБ на тик, ping %d мс, в очереди %d",
+                    session.getViewer().getName(), session.getRecordingId(), blocks.getPacketsPerTick(),
+                    blocks.getBytesPerTick() / 1024, session.getViewer().getPing(), blocks.getPendingUpdates()),
+                    NamedTextColor.GRAY));
+        }
     }
 
     private void sendSessionInfo(Player player, ReplaySession session) {
         ReplayTimeline timeline = session.getTimeline();
-        player.sendMessage(Component.text("Запись #" + session.getRecording().getId()
+        player.sendMessage(Component.text("Запись #" + session.getRecordingId()
                 + " | Длительность: " + ReplaySession.formatTime(timeline.getDuration())
                 + " | Кадров: " + timeline.getFrameCount()
                 + " | Изменений блоков: " + timeline.getDeltas().size()
@@ -406,6 +477,7 @@ public class AntiXrayViewerCommand implements CommandExecutor, TabCompleter {
         help(player, "/axv panel", "панель управления с кнопками");
         help(player, "/axv stop", "завершить просмотр");
         help(player, "/axv active", "активные записи и просмотры");
+        help(player, "/axv info [id]", "сведения о просмотре или о записи");
         if (player.hasPermission("antixrayviewer.admin")) {
             help(player, "/axv delete <id>", "удалить запись");
         }
@@ -526,9 +598,10 @@ public class AntiXrayViewerCommand implements CommandExecutor, TabCompleter {
         if (args.length == 2) {
             switch (sub) {
                 case "view":
+                case "info":
                 case "delete":
                 case "remove":
-                    for (PlayerRecording recording : recordingManager.getCompletedRecordings()) {
+                    for (RecordingInfo recording : recordingManager.getCompletedRecordings()) {
                         result.add(String.valueOf(recording.getId()));
                     }
                     return result;
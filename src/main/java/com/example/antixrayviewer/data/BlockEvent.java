@@ -1,6 +1,5 @@
 package com.example.antixrayviewer.data;
 
-import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.block.data.BlockData;
 
@@ -10,6 +9,8 @@ import org.bukkit.block.data.BlockData;
  * В версии 1.6.0 добавлено сохранение полного состояния блока (BlockData)
  * и предыдущего состояния — это нужно для корректной перемотки записи
  * в обе стороны и для точного отображения блоков (поворот, waterlogged и т.д.).
+ * Состояния хранятся номерами общей {@link BlockStatePalette}: строка и BlockData
+ * одного состояния существуют в процессе в единственном экземпляре.
  */
 public class BlockEvent {
 
@@ -31,19 +32,21 @@ public class BlockEvent {
     private final float breakProgress; // 0.0 - 1.0
     private final int entityId;
 
-    /** Полное состояние блока в виде строки, например "minecraft:oak_stairs[facing=east]". Может быть null. */
-    private final String blockData;
-    /** Состояние блока до события (актуально для PLACE). Может быть null. */
-    private final String previousBlockData;
-
-    private transient BlockData resolvedBlockData;
-    private transient boolean blockDataResolved;
-    private transient BlockData resolvedPreviousBlockData;
-    private transient boolean previousBlockDataResolved;
+    /** Полное состояние блока, номер в {@link BlockStatePalette}. {@link BlockStatePalette#NONE}, если не записано. */
+    private final int blockState;
+    /** Состояние блока до события (актуально для PLACE). */
+    private final int previousBlockState;
 
     public BlockEvent(long timestamp, EventType type, int x, int y, int z,
                       String world, Material blockType, float breakProgress, int entityId,
                       String blockData, String previousBlockData) {
+        this(timestamp, type, x, y, z, world, blockType, breakProgress, entityId,
+            BlockStatePalette.idOf(emptyToNull(blockData)), BlockStatePalette.idOf(emptyToNull(previousBlockData)));
+    }
+
+    public BlockEvent(long timestamp, EventType type, int x, int y, int z,
+                      String world, Material blockType, float breakProgress, int entityId,
+                      int blockState, int previousBlockState) {
         this.timestamp = timestamp;
         this.type = type;
         this.x = x;
@@ -53,19 +56,21 @@ public class BlockEvent {
         this.blockType = blockType;
         this.breakProgress = breakProgress;
         this.entityId = entityId;
-        this.blockData = blockData;
-        this.previousBlockData = previousBlockData;
+        this.blockState = blockState;
+        this.previousBlockState = previousBlockState;
     }
 
     public BlockEvent(long timestamp, EventType type, int x, int y, int z,
                       String world, Material blockType, float breakProgress, int entityId) {
-        this(timestamp, type, x, y, z, world, blockType, breakProgress, entityId, null, null);
+        this(timestamp, type, x, y, z, world, blockType, breakProgress, entityId,
+            BlockStatePalette.NONE, BlockStatePalette.NONE);
     }
 
     // Упрощенный конструктор для событий без прогресса
     public BlockEvent(long timestamp, EventType type, int x, int y, int z,
                       String world, Material blockType) {
-        this(timestamp, type, x, y, z, world, blockType, 0.0f, -1, null, null);
+        this(timestamp, type, x, y, z, world, blockType, 0.0f, -1,
+            BlockStatePalette.NONE, BlockStatePalette.NONE);
     }
 
     // Геттеры
@@ -106,51 +111,84 @@ public class BlockEvent {
     }
 
     public String getBlockDataString() {
-        return blockData;
+        return BlockStatePalette.getString(blockState);
     }
 
     public String getPreviousBlockDataString() {
-        return previousBlockData;
+        return BlockStatePalette.getString(previousBlockState);
+    }
+
+    public int getBlockState() {
+        return blockState;
+    }
+
+    public int getPreviousBlockState() {
+        return previousBlockState;
     }
 
     /**
-     * Состояние блока на момент события. Кэшируется, поэтому дешево вызывать многократно.
+     * Номер состояния блока на момент события. Если точное состояние не записано или эта
+     * версия сервера его не знает — состояние материала по умолчанию.
      */
-    public BlockData resolveBlockData() {
-        if (!blockDataResolved) {
-            blockDataResolved = true;
-            resolvedBlockData = parse(blockData, blockType);
+    public int resolveBlockState() {
+        return resolveBlockState(blockState, blockType);
+    }
+
+    /**
+     * То же по полям события — для проходов по колонкам {@link FrameStore}.
+     */
+    public static int resolveBlockState(int blockState, Material blockType) {
+        if (blockState != BlockStatePalette.NONE && BlockStatePalette.getBlockData(blockState) != null) {
+            return blockState;
         }
-        return resolvedBlockData;
+        // Блок из другой версии/мода — падаем на fallback
+        return BlockStatePalette.defaultStateOf(blockType);
     }
 
     /**
-     * Состояние блока до события (для PLACE — что было заменено).
+     * Номер состояния блока до события (для PLACE — что было заменено) или NONE.
      */
-    public BlockData resolvePreviousBlockData() {
-        if (!previousBlockDataResolved) {
-            previousBlockDataResolved = true;
-            resolvedPreviousBlockData = parse(previousBlockData, null);
+    public int resolvePreviousBlockState() {
+        return resolvePreviousBlockState(previousBlockState);
+    }
+
+    public static int resolvePreviousBlockState(int previousBlockState) {
+        if (previousBlockState != BlockStatePalette.NONE && BlockStatePalette.getBlockData(previousBlockState) != null) {
+            return previousBlockState;
         }
-        return resolvedPreviousBlockData;
+        return BlockStatePalette.NONE;
+    }
+
+    /**
+     * Состояние блока на момент события. Общий экземпляр из палитры — не изменять.
+     */
+    public BlockData resolveBlockData() {
+        return BlockStatePalette.getBlockData(resolveBlockState());
     }
 
-    private static BlockData parse(String raw, Material fallback) {
-        if (raw != null && !raw.isEmpty()) {
-            try {
-                return Bukkit.createBlockData(raw);
-            } catch (IllegalArgumentException ignored) {
-                // Блок из другой версии/мода — падаем на fallback
-            }
+    /**
+     * Состояние блока до события (для PLACE — что было заменено). Общий экземпляр из палитры — не изменять.
+     */
+    public BlockData resolvePreviousBlockData() {
+        return BlockStatePalette.getBlockData(resolvePreviousBlockState());
+    }
+
+    private static String emptyToNull(String raw) {
+        return raw == null || raw.isEmpty() ? null : raw;
+    }
+
+    /**
+     * Ценный ли блок: руда или древние обломки. Такие разрушения считаются
+     * в каталоге записей и отмечаются маркерами на таймлинии.
+     */
+    public static boolean isValuable(Material material) {
+        if (material == null) {
+            return false;
         }
-        if (fallback != null && fallback.isBlock()) {
-            try {
-                return fallback.createBlockData();
-            } catch (IllegalArgumentException ignored) {
-                return null;
-            }
+        if (material == Material.ANCIENT_DEBRIS) {
+            return true;
         }
-        return null;
+        return material.name().endsWith("_ORE");
     }
 
     /**
@@ -0,0 +1,30 @@
+package com.example.antixrayviewer.data;
+
+/**
+ * Координаты блока, упакованные в один long.
+ *
+ * Раскладка как у ключей блоков Paper: x — 26 бит, z — 26 бит, y — 12 бит.
+ * Мир в ключ не входит — ключи всегда хранятся в разрезе мира.
+ * Заменяет строковые ключи вида "world:x:y:z", которые собирались на каждое событие.
+ */
+public final class BlockKey {
+
+    private BlockKey() {
+    }
+
+    public static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFFL);
+    }
+
+    public static int x(long key) {
+        return (int) (key >> 38);
+    }
+
+    public static int y(long key) {
+        return (int) (key << 52 >> 52);
+    }
+
+    public static int z(long key) {
+        return (int) (key << 26 >> 38);
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.antixrayviewer.data;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Общая палитра состояний блоков: состояние ↔ небольшой int ↔ общий экземпляр BlockData.
+ *
+ * Раньше на каждое событие копания вызывался {@code getAsString()}, а при воспроизведении
+ * каждое событие отдельно разбирало свою строку через {@code Bukkit.createBlockData} —
+ * длинная запись в камне давала десятки тысяч одинаковых строк и BlockData.
+ * Теперь строка строится и разбирается один раз на состояние на весь процесс, события,
+ * дельты таймлинии и виртуальные блоки хранят только номер или общий экземпляр.
+ *
+ * Экземпляры из {@link #getBlockData(int)} общие — их нельзя изменять, только читать и отправлять.
+ * Номер 0 зарезервирован под «нет состояния». Поиск по уже известному состоянию
+ * ничего не выделяет; регистрация и разбор нового — синхронизированы.
+ */
+public final class BlockStatePalette {
+
+    public static final int NONE = 0;
+
+    private static final Map<BlockData, Integer> byData = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> byString = new ConcurrentHashMap<>();
+    private static final Map<Material, Integer> defaults = new ConcurrentHashMap<>();
+    private static volatile String[] strings = new String[64];
+    /** Разобранные общие экземпляры; заполняются лениво, параллельно {@link #strings}. */
+    private static volatile BlockData[] blockData = new BlockData[64];
+    /** Состояния, которые не удалось разобрать (блок из другой версии/мода). */
+    private static volatile boolean[] unparseable = new boolean[64];
+    private static int size = 1;
+    private static volatile int air = -1;
+
+    private BlockStatePalette() {
+    }
+
+    /**
+     * Номер состояния блока. BlockData сравниваются по состоянию, поэтому
+     * новый экземпляр того же состояния находит уже выданный номер.
+     */
+    public static int idOf(BlockData data) {
+        if (data == null) {
+            return NONE;
+        }
+        Integer id = byData.get(data);
+        if (id != null) {
+            return id;
+        }
+        return register(data);
+    }
+
+    /**
+     * Номер состояния по строке (чтение записей с диска).
+     */
+    public static int idOf(String state) {
+        if (state == null) {
+            return NONE;
+        }
+        Integer id = byString.get(state);
+        if (id != null) {
+            return id;
+        }
+        return register(state);
+    }
+
+    private static synchronized int register(BlockData data) {
+        Integer existing = byData.get(data);
+        if (existing != null) {
+            return existing;
+        }
+        int id = register(data.getAsString());
+        // Ключ — собственная копия: вызывающий может менять свой экземпляр.
+        // Она же становится общим экземпляром состояния, если его ещё не разбирали
+        BlockData shared = blockData[id];
+        if (shared == null) {
+            shared = data.clone();
+            blockData[id] = shared;
+        }
+        byData.put(shared, id);
+        return id;
+    }
+
+    private static synchronized int register(String state) {
+        Integer existing = byString.get(state);
+        if (existing != null) {
+            return existing;
+        }
+        int id = size++;
+        String[] current = strings;
+        if (id == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+            blockData = Arrays.copyOf(blockData, current.length);
+            unparseable = Arrays.copyOf(unparseable, current.length);
+        }
+        current[id] = state;
+        strings = current;
+        byString.put(state, id);
+        return id;
+    }
+
+    /**
+     * Общая строка состояния или null для {@link #NONE}.
+     */
+    public static String getString(int id) {
+        if (id == NONE) {
+            return null;
+        }
+        return strings[id];
+    }
+
+    /**
+     * Общий экземпляр BlockData состояния. Разбирается один раз на весь процесс.
+     *
+     * @return null для {@link #NONE} и состояний, которые эта версия сервера не знает
+     */
+    public static BlockData getBlockData(int id) {
+        if (id == NONE) {
+            return null;
+        }
+        BlockData[] cache = blockData;
+        BlockData data = id < cache.length ? cache[id] : null;
+        if (data != null) {
+            return data;
+        }
+        return parse(id);
+    }
+
+    private static synchronized BlockData parse(int id) {
+        BlockData data = blockData[id];
+        if (data != null || unparseable[id]) {
+            return data;
+        }
+        try {
+            data = Bukkit.createBlockData(strings[id]);
+        } catch (IllegalArgumentException e) {
+            // Блок из другой версии/мода
+            unparseable[id] = true;
+            return null;
+        }
+        blockData[id] = data;
+        byData.putIfAbsent(data, id);
+        return data;
+    }
+
+    /**
+     * Состояние по умолчанию для материала (если точное состояние не записано или не разбирается).
+     */
+    public static int defaultStateOf(Material material) {
+        if (material == null || !material.isBlock()) {
+            return NONE;
+        }
+        Integer id = defaults.get(material);
+        if (id != null) {
+            return id;
+        }
+        int created;
+        try {
+            created = idOf(material.createBlockData());
+        } catch (IllegalArgumentException e) {
+            created = NONE;
+        }
+        defaults.put(material, created);
+        return created;
+    }
+
+    /**
+     * Номер единственного состояния материала без свойств (камень, руды, воздух) или
+     * {@link #NONE}, если у материала есть свойства и состояние надо читать из блока.
+     * Позволяет не вызывать {@code Block.getBlockData()}, который выделяет объект на вызов.
+     */
+    public static int singleStateOf(Material material) {
+        int id = defaultStateOf(material);
+        String state = getString(id);
+        return state != null && state.indexOf('[') < 0 ? id : NONE;
+    }
+
+    /**
+     * Номер состояния воздуха.
+     */
+    public static int air() {
+        int id = air;
+        if (id < 0) {
+            id = defaultStateOf(Material.AIR);
+            air = id;
+        }
+        return id;
+    }
+
+    public static synchronized int size() {
+        return size - 1;
+    }
+}
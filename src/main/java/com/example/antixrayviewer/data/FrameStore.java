@@ -0,0 +1,381 @@
+package com.example.antixrayviewer.data;
+
+import org.bukkit.Material;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Колоночное хранилище кадров записи (struct-of-arrays).
+ *
+ * Раньше каждый кадр был отдельным объектом RecordFrame со своей строкой мира и
+ * собственным ArrayList событий, хотя у большинства кадров событий нет — около 120 байт
+ * на кадр плюс заголовки объектов. Здесь каждое поле — отдельный примитивный массив:
+ * <ul>
+ *   <li>время, координаты и углы — long[]/double[]/float[];</li>
+ *   <li>флаги (присед, бег, полёт) — один byte[];</li>
+ *   <li>мир — short[] с индексом в таблице миров записи;</li>
+ *   <li>события всех кадров лежат в общих колонках того же вида, кадр хранит только смещение.
+ *       Объект {@link BlockEvent} на событие не создаётся ни при записи, ни при проходе по ним.</li>
+ * </ul>
+ * Итого около 50 байт на кадр без единого объекта на кадр, а проход по времени
+ * при воспроизведении идёт по плотному массиву.
+ *
+ * Во время записи массивы растут блоками, после завершения — обрезаются {@link #trimToSize()}.
+ */
+public final class FrameStore {
+
+    private static final int MIN_GROWTH = 256;
+    private static final BlockEvent.EventType[] EVENT_TYPES = BlockEvent.EventType.values();
+
+    private static final byte FLAG_SNEAKING = 1;
+    private static final byte FLAG_SPRINTING = 1 << 1;
+    private static final byte FLAG_FLYING = 1 << 2;
+
+    private int size;
+    private long[] times;
+    private double[] xs;
+    private double[] ys;
+    private double[] zs;
+    private float[] yaws;
+    private float[] pitches;
+    private byte[] flags;
+    private short[] worldIds;
+    private float[] health;
+    private byte[] food;
+    /** Индекс первого события кадра в колонках событий. */
+    private int[] eventStart;
+
+    private int eventCount;
+    private long[] eventTimes;
+    private byte[] eventTypes;
+    private int[] eventXs;
+    private int[] eventYs;
+    private int[] eventZs;
+    /** Мир события — индекс в той же таблице миров, что и у кадров. */
+    private short[] eventWorldIds;
+    private Material[] eventMaterials;
+    private float[] eventProgress;
+    private int[] eventEntityIds;
+    /** Номера {@link BlockStatePalette}. */
+    private int[] eventStates;
+    private int[] eventPreviousStates;
+
+    private final List<String> worlds = new ArrayList<>(2);
+    private int lastWorldId = -1;
+
+    public FrameStore() {
+        this(MIN_GROWTH);
+    }
+
+    public FrameStore(int initialCapacity) {
+        allocate(Math.max(1, initialCapacity));
+        resizeEvents(16);
+    }
+
+    private void allocate(int capacity) {
+        times = new long[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+        zs = new double[capacity];
+        yaws = new float[capacity];
+        pitches = new float[capacity];
+        flags = new byte[capacity];
+        worldIds = new short[capacity];
+        health = new float[capacity];
+        food = new byte[capacity];
+        eventStart = new int[capacity];
+    }
+
+    private void resize(int capacity) {
+        times = Arrays.copyOf(times, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        zs = Arrays.copyOf(zs, capacity);
+        yaws = Arrays.copyOf(yaws, capacity);
+        pitches = Arrays.copyOf(pitches, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        worldIds = Arrays.copyOf(worldIds, capacity);
+        health = Arrays.copyOf(health, capacity);
+        food = Arrays.copyOf(food, capacity);
+        eventStart = Arrays.copyOf(eventStart, capacity);
+    }
+
+    private void resizeEvents(int capacity) {
+        if (eventTimes == null) {
+            eventTimes = new long[0];
+            eventTypes = new byte[0];
+            eventXs = new int[0];
+            eventYs = new int[0];
+            eventZs = new int[0];
+            eventWorldIds = new short[0];
+            eventMaterials = new Material[0];
+            eventProgress = new float[0];
+            eventEntityIds = new int[0];
+            eventStates = new int[0];
+            eventPreviousStates = new int[0];
+        }
+        eventTimes = Arrays.copyOf(eventTimes, capacity);
+        eventTypes = Arrays.copyOf(eventTypes, capacity);
+        eventXs = Arrays.copyOf(eventXs, capacity);
+        eventYs = Arrays.copyOf(eventYs, capacity);
+        eventZs = Arrays.copyOf(eventZs, capacity);
+        eventWorldIds = Arrays.copyOf(eventWorldIds, capacity);
+        eventMaterials = Arrays.copyOf(eventMaterials, capacity);
+        eventProgress = Arrays.copyOf(eventProgress, capacity);
+        eventEntityIds = Arrays.copyOf(eventEntityIds, capacity);
+        eventStates = Arrays.copyOf(eventStates, capacity);
+        eventPreviousStates = Arrays.copyOf(eventPreviousStates, capacity);
+    }
+
+    /**
+     * Добавить кадр. События, добавленные после него через {@link #addEvent}, принадлежат ему.
+     *
+     * @return индекс кадра
+     */
+    public int add(long timestamp, double x, double y, double z, float yaw, float pitch, String world,
+                   boolean sneaking, boolean sprinting, boolean flying, double healthValue, int foodLevel) {
+        if (size == times.length) {
+            resize(size + Math.max(MIN_GROWTH, size >> 1));
+        }
+        int i = size;
+        times[i] = timestamp;
+        xs[i] = x;
+        ys[i] = y;
+        zs[i] = z;
+        yaws[i] = yaw;
+        pitches[i] = pitch;
+        byte packed = 0;
+        if (sneaking) {
+            packed |= FLAG_SNEAKING;
+        }
+        if (sprinting) {
+            packed |= FLAG_SPRINTING;
+        }
+        if (flying) {
+            packed |= FLAG_FLYING;
+        }
+        flags[i] = packed;
+        worldIds[i] = (short) worldId(world);
+        health[i] = (float) healthValue;
+        food[i] = (byte) Math.max(0, Math.min(127, foodLevel));
+        eventStart[i] = eventCount;
+        size++;
+        return i;
+    }
+
+    /**
+     * Добавить событие блока к последнему кадру.
+     */
+    public void addEvent(BlockEvent event) {
+        addEvent(event.getTimestamp(), event.getType(), event.getX(), event.getY(), event.getZ(), event.getWorld(),
+                event.getBlockType(), event.getBreakProgress(), event.getEntityId(),
+                event.getBlockState(), event.getPreviousBlockState());
+    }
+
+    /**
+     * Добавить событие блока к последнему кадру по полям — без объекта события.
+     * Так переносятся события из буферов записи.
+     */
+    public void addEvent(long timestamp, BlockEvent.EventType type, int x, int y, int z, String world,
+                         Material material, float breakProgress, int entityId, int state, int previousState) {
+        if (size == 0) {
+            throw new IllegalStateException("No frame to attach the event to");
+        }
+        if (eventCount == eventTimes.length) {
+            resizeEvents(eventCount + Math.max(16, eventCount >> 1));
+        }
+        int e = eventCount++;
+        eventTimes[e] = timestamp;
+        eventTypes[e] = (byte) type.ordinal();
+        eventXs[e] = x;
+        eventYs[e] = y;
+        eventZs[e] = z;
+        eventWorldIds[e] = (short) worldId(world);
+        eventMaterials[e] = material;
+        eventProgress[e] = breakProgress;
+        eventEntityIds[e] = entityId;
+        eventStates[e] = state;
+        eventPreviousStates[e] = previousState;
+    }
+
+    private int worldId(String world) {
+        // Мир почти никогда не меняется между соседними кадрами
+        if (lastWorldId >= 0 && worlds.get(lastWorldId).equals(world)) {
+            return lastWorldId;
+        }
+        int id = worlds.indexOf(world);
+        if (id < 0) {
+            id = worlds.size();
+            worlds.add(world);
+        }
+        lastWorldId = id;
+        return id;
+    }
+
+    /**
+     * Обрезать массивы до фактического размера (после завершения записи).
+     */
+    public void trimToSize() {
+        if (times.length != size) {
+            resize(Math.max(1, size));
+        }
+        if (eventTimes.length != eventCount) {
+            resizeEvents(eventCount);
+        }
+    }
+
+    /**
+     * Примерный объём в куче (байт).
+     */
+    public long estimateHeapBytes() {
+        // 8 + 3*8 + 2*4 + 1 + 2 + 4 + 1 + 4 байт на кадр
+        long frameBytes = (long) times.length * 52L;
+        // 8 + 1 + 3*4 + 2 + 4 + 4 + 4 + 2*4 байт на событие, ссылка на материал сжата
+        long eventBytes = (long) eventTimes.length * 43L;
+        return 128L + frameBytes + eventBytes;
+    }
+
+    // ===================== Чтение =====================
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    public double getX(int i) {
+        return xs[i];
+    }
+
+    public double getY(int i) {
+        return ys[i];
+    }
+
+    public double getZ(int i) {
+        return zs[i];
+    }
+
+    public float getYaw(int i) {
+        return yaws[i];
+    }
+
+    public float getPitch(int i) {
+        return pitches[i];
+    }
+
+    public boolean isSneaking(int i) {
+        return (flags[i] & FLAG_SNEAKING) != 0;
+    }
+
+    public boolean isSprinting(int i) {
+        return (flags[i] & FLAG_SPRINTING) != 0;
+    }
+
+    public boolean isFlying(int i) {
+        return (flags[i] & FLAG_FLYING) != 0;
+    }
+
+    public double getHealth(int i) {
+        return health[i];
+    }
+
+    public int getFoodLevel(int i) {
+        return food[i];
+    }
+
+    /** Индекс мира кадра в {@link #getWorldName(int)}. Сравнение индексов дешевле сравнения строк. */
+    public int getWorldId(int i) {
+        return worldIds[i];
+    }
+
+    public String getWorld(int i) {
+        return worlds.get(worldIds[i]);
+    }
+
+    public String getWorldName(int worldId) {
+        return worlds.get(worldId);
+    }
+
+    public int getWorldCount() {
+        return worlds.size();
+    }
+
+    /** Первое событие кадра i (включительно). */
+    public int getEventStart(int i) {
+        return eventStart[i];
+    }
+
+    /** Конец событий кадра i (исключительно). */
+    public int getEventEnd(int i) {
+        return i + 1 < size ? eventStart[i + 1] : eventCount;
+    }
+
+    public boolean hasEvents(int i) {
+        return getEventEnd(i) > eventStart[i];
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    public long getEventTime(int index) {
+        return eventTimes[index];
+    }
+
+    public BlockEvent.EventType getEventType(int index) {
+        return EVENT_TYPES[eventTypes[index]];
+    }
+
+    public int getEventX(int index) {
+        return eventXs[index];
+    }
+
+    public int getEventY(int index) {
+        return eventYs[index];
+    }
+
+    public int getEventZ(int index) {
+        return eventZs[index];
+    }
+
+    public String getEventWorld(int index) {
+        return worlds.get(eventWorldIds[index]);
+    }
+
+    public Material getEventMaterial(int index) {
+        return eventMaterials[index];
+    }
+
+    public float getEventProgress(int index) {
+        return eventProgress[index];
+    }
+
+    public int getEventEntityId(int index) {
+        return eventEntityIds[index];
+    }
+
+    public int getEventState(int index) {
+        return eventStates[index];
+    }
+
+    public int getEventPreviousState(int index) {
+        return eventPreviousStates[index];
+    }
+
+    /**
+     * Событие целиком. Создаёт объект — проходы по всем событиям читают колонки выше.
+     */
+    public BlockEvent getEvent(int index) {
+        return new BlockEvent(eventTimes[index], getEventType(index), eventXs[index], eventYs[index], eventZs[index],
+                getEventWorld(index), eventMaterials[index], eventProgress[index], eventEntityIds[index],
+                eventStates[index], eventPreviousStates[index]);
+    }
+}
@@ -1,7 +1,7 @@
 package com.example.antixrayviewer.data;
 
-import java.util.ArrayList;
-import java.util.List;
+import org.bukkit.Material;
+
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -19,7 +19,10 @@ public class PlayerRecording {
     private final long startTime;
     private long endTime;
     private String endReason;
-    private final List<RecordFrame> frames;
+    /** Кадры хранятся колонками, см. {@link FrameStore}. */
+    private final FrameStore frames;
+    /** Индекс таймлинии: читается из файла или строится один раз по завершённой записи. */
+    private volatile TimelineIndex timelineIndex;
     
     public PlayerRecording(UUID playerId, String playerName, String reason, long startTime) {
         this.id = ID_COUNTER.getAndIncrement();
@@ -27,7 +30,7 @@ public class PlayerRecording {
         this.playerName = playerName;
         this.reason = reason;
         this.startTime = startTime;
-        this.frames = new ArrayList<>();
+        this.frames = new FrameStore();
     }
 
     public PlayerRecording(int id, UUID playerId, String playerName, String reason, long startTime) {
@@ -36,15 +39,57 @@ public class PlayerRecording {
         this.playerName = playerName;
         this.reason = reason;
         this.startTime = startTime;
-        this.frames = new ArrayList<>();
+        this.frames = new FrameStore();
+        reserveId(id);
+    }
+    
+    /**
+     * Не выдавать новым записям этот id и меньшие (id уже занят сохранённой записью)
+     */
+    public static void reserveId(int id) {
         ID_COUNTER.updateAndGet(current -> Math.max(current, id + 1));
     }
     
     /**
-     * Добавить кадр к записи
+     * Добавить кадр к записи. События блоков добавляются к нему через {@link #addBlockEvent}.
+     */
+    public void addFrame(long timestamp, double x, double y, double z, float yaw, float pitch, String world,
+                         boolean sneaking, boolean sprinting, boolean flying, double health, int foodLevel) {
+        frames.add(timestamp, x, y, z, yaw, pitch, world, sneaking, sprinting, flying, health, foodLevel);
+    }
+    
+    /**
+     * Добавить готовый кадр вместе с его событиями (импорт старых записей)
      */
     public void addFrame(RecordFrame frame) {
-        frames.add(frame);
+        frames.add(frame.getTimestamp(), frame.getX(), frame.getY(), frame.getZ(), frame.getYaw(), frame.getPitch(),
+            frame.getWorld(), frame.isSneaking(), frame.isSprinting(), frame.isFlying(),
+            frame.getHealth(), frame.getFoodLevel());
+        for (BlockEvent event : frame.getBlockEventsView()) {
+            frames.addEvent(event);
+        }
+    }
+    
+    /**
+     * Добавить событие блока к последнему кадру
+     */
+    public void addBlockEvent(BlockEvent event) {
+        frames.addEvent(event);
+    }
+
+    /**
+     * Добавить событие блока к последнему кадру по полям, без объекта события
+     */
+    public void addBlockEvent(long timestamp, BlockEvent.EventType type, int x, int y, int z, String world,
+                              Material material, float breakProgress, int entityId, int state, int previousState) {
+        frames.addEvent(timestamp, type, x, y, z, world, material, breakProgress, entityId, state, previousState);
+    }
+    
+    /**
+     * Запись завершена: освобождаем запас, выделенный под рост массивов
+     */
+    public void trimToSize() {
+        frames.trimToSize();
     }
     
     /**
@@ -101,15 +146,11 @@ public class PlayerRecording {
         this.endReason = endReason;
     }
     
-    public List<RecordFrame> getFrames() {
-        return new ArrayList<>(frames);
-    }
-    
     /**
-     * Получить кадры без копирования списка (для горячих циклов воспроизведения).
+     * Колоночное хранилище кадров — для горячих циклов воспроизведения и сохранения.
      */
-    public List<RecordFrame> getFramesView() {
-        return java.util.Collections.unmodifiableList(frames);
+    public FrameStore getFrameStore() {
+        return frames;
     }
     
     /**
@@ -120,12 +161,53 @@ public class PlayerRecording {
     }
     
     /**
-     * Получить кадр по индексу
+     * Версия содержимого: меняется при добавлении кадров и событий. Вместе с id
+     * позволяет узнать, что перечитанная с диска запись — та же самая.
+     */
+    public long getContentVersion() {
+        return ((long) frames.size() << 32) | (frames.getEventCount() & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * Примерный объём записи в куче (байт). Нужен кэшу записей для учёта бюджета памяти.
+     */
+    public long estimateHeapBytes() {
+        TimelineIndex index = timelineIndex;
+        return 128L + frames.estimateHeapBytes() + (index != null ? index.estimateHeapBytes() : 0L);
+    }
+    
+    /**
+     * Индекс таймлинии. Если его не было в файле — строится по событиям и запоминается.
+     * Только для завершённой записи: кадры после построения меняться не должны.
+     */
+    public TimelineIndex getTimelineIndex() {
+        TimelineIndex index = timelineIndex;
+        if (index == null) {
+            // Построение детерминировано: если два потока посчитают одновременно, результат одинаков
+            index = TimelineIndex.build(this);
+            timelineIndex = index;
+        }
+        return index;
+    }
+    
+    public void setTimelineIndex(TimelineIndex timelineIndex) {
+        this.timelineIndex = timelineIndex;
+    }
+    
+    /**
+     * Получить копию кадра по индексу (создаёт объект — не для горячих циклов)
      */
     public RecordFrame getFrame(int index) {
-        if (index >= 0 && index < frames.size()) {
-            return frames.get(index);
+        if (index < 0 || index >= frames.size()) {
+            return null;
+        }
+        RecordFrame frame = new RecordFrame(frames.getTime(index), frames.getX(index), frames.getY(index),
+            frames.getZ(index), frames.getYaw(index), frames.getPitch(index), frames.getWorld(index),
+            frames.isSneaking(index), frames.isSprinting(index), frames.isFlying(index),
+            frames.getHealth(index), frames.getFoodLevel(index));
+        for (int e = frames.getEventStart(index); e < frames.getEventEnd(index); e++) {
+            frame.addBlockEvent(frames.getEvent(e));
         }
-        return null;
+        return frame;
     }
 }
\ No newline at end of file
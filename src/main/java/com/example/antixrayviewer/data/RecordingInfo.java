@@ -0,0 +1,109 @@
+package com.example.antixrayviewer.data;
+
+import java.util.UUID;
+
+/**
+ * Лёгкое описание записи без кадров.
+ *
+ * Хранится в каталоге хранилища и в списке завершённых записей: для /axv list
+ * не нужно держать в памяти тысячи кадров, они читаются с диска только при просмотре.
+ */
+public final class RecordingInfo {
+
+    private final int id;
+    private final UUID playerId;
+    private final String playerName;
+    private final String reason;
+    private final long startTime;
+    private final long endTime;
+    private final String endReason;
+    private final int frameCount;
+    private final int oreCount;
+    private final long byteSize;
+
+    public RecordingInfo(int id, UUID playerId, String playerName, String reason,
+                         long startTime, long endTime, String endReason,
+                         int frameCount, int oreCount, long byteSize) {
+        this.id = id;
+        this.playerId = playerId;
+        this.playerName = playerName;
+        this.reason = reason;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.endReason = endReason;
+        this.frameCount = frameCount;
+        this.oreCount = oreCount;
+        this.byteSize = byteSize;
+    }
+
+    /**
+     * Описание готовой записи. Размер файла известен только после сохранения.
+     */
+    public static RecordingInfo of(PlayerRecording recording, long byteSize) {
+        int ores = 0;
+        FrameStore frames = recording.getFrameStore();
+        for (int i = 0; i < frames.getEventCount(); i++) {
+            if (frames.getEventType(i) == BlockEvent.EventType.BREAK_COMPLETE
+                    && BlockEvent.isValuable(frames.getEventMaterial(i))) {
+                ores++;
+            }
+        }
+        return new RecordingInfo(recording.getId(), recording.getPlayerId(), recording.getPlayerName(),
+                recording.getReason(), recording.getStartTime(), recording.getEndTime(), recording.getEndReason(),
+                recording.getFrameCount(), ores, byteSize);
+    }
+
+    /**
+     * Получить длительность записи в миллисекундах
+     */
+    public long getDuration() {
+        return Math.max(0L, endTime - startTime);
+    }
+
+    /**
+     * Получить длительность записи в секундах
+     */
+    public int getDurationSeconds() {
+        return (int) (getDuration() / 1000);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public UUID getPlayerId() {
+        return playerId;
+    }
+
+    public String getPlayerName() {
+        return playerName;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public String getEndReason() {
+        return endReason;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getOreCount() {
+        return oreCount;
+    }
+
+    public long getByteSize() {
+        return byteSize;
+    }
+}
@@ -0,0 +1,457 @@
+package com.example.antixrayviewer.data;
+
+import org.bukkit.Material;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Предвычисленный индекс таймлинии записи: дельты блоков, интервалы ломания и маркеры.
+ *
+ * Всё это однозначно выводится из событий, поэтому считается один раз — при сохранении
+ * записи — и лежит в файле рядом с кадрами. Открытие записи больше не проходит по потоку
+ * событий: таймлиния собирается из готовых массивов, и цена не зависит от числа событий.
+ *
+ * Время — миллисекунды от начала записи (как в таймлинии), блоки — номера в {@link #getRefCount()}
+ * с мировой таблицей и упакованными координатами {@link BlockKey}, состояния — номера
+ * {@link BlockStatePalette}. Объект неизменяем и безопасно делится между потоками.
+ */
+public final class TimelineIndex {
+
+    /** Если BREAK_START не был записан, анимацию показываем за это время до разрушения. */
+    private static final long IMPLICIT_BREAK_LEAD_MS = 400L;
+
+    private final String[] worlds;
+
+    private final int[] refWorlds;
+    private final long[] refKeys;
+    /** Состояние блока до первой дельты; {@link BlockStatePalette#NONE}, если у блока только трещины. */
+    private final int[] refInitialStates;
+
+    private final long[] deltaTimes;
+    private final int[] deltaRefs;
+    private final int[] deltaFromStates;
+    private final int[] deltaToStates;
+    private final Material[] deltaMaterials;
+    private final boolean[] deltaDestructive;
+
+    /** Отсортированы по началу. */
+    private final long[] spanStarts;
+    private final long[] spanEnds;
+    private final int[] spanRefs;
+    private final boolean[] spanCompleted;
+
+    /** Отсортированы по времени. */
+    private final long[] markerTimes;
+    private final int[] markerRefs;
+    private final Material[] markerMaterials;
+
+    private final long maxSpanLength;
+    private final int oreBreakCount;
+
+    public TimelineIndex(String[] worlds, int[] refWorlds, long[] refKeys, int[] refInitialStates,
+                         long[] deltaTimes, int[] deltaRefs, int[] deltaFromStates, int[] deltaToStates,
+                         Material[] deltaMaterials, boolean[] deltaDestructive,
+                         long[] spanStarts, long[] spanEnds, int[] spanRefs, boolean[] spanCompleted,
+                         long[] markerTimes, int[] markerRefs, Material[] markerMaterials,
+                         long maxSpanLength, int oreBreakCount) {
+        this.worlds = worlds;
+        this.refWorlds = refWorlds;
+        this.refKeys = refKeys;
+        this.refInitialStates = refInitialStates;
+        this.deltaTimes = deltaTimes;
+        this.deltaRefs = deltaRefs;
+        this.deltaFromStates = deltaFromStates;
+        this.deltaToStates = deltaToStates;
+        this.deltaMaterials = deltaMaterials;
+        this.deltaDestructive = deltaDestructive;
+        this.spanStarts = spanStarts;
+        this.spanEnds = spanEnds;
+        this.spanRefs = spanRefs;
+        this.spanCompleted = spanCompleted;
+        this.markerTimes = markerTimes;
+        this.markerRefs = markerRefs;
+        this.markerMaterials = markerMaterials;
+        this.maxSpanLength = maxSpanLength;
+        this.oreBreakCount = oreBreakCount;
+    }
+
+    /**
+     * Построить индекс по событиям записи. Запись должна быть завершена (не изменяться).
+     */
+    public static TimelineIndex build(PlayerRecording recording) {
+        FrameStore frames = recording.getFrameStore();
+        long base = recording.getStartTime();
+        if (!frames.isEmpty()) {
+            base = Math.min(base, frames.getTime(0));
+        }
+
+        Builder builder = new Builder();
+        Map<Integer, Long> pendingBreakStarts = new HashMap<>();
+        int air = BlockStatePalette.air();
+        long previousFrameTime = 0L;
+
+        for (int frameIndex = 0; frameIndex < frames.size(); frameIndex++) {
+            long frameTime = frames.getTime(frameIndex) - base;
+            // Защита от немонотонных меток времени в старых записях
+            if (frameTime < previousFrameTime) {
+                frameTime = previousFrameTime;
+            }
+            previousFrameTime = frameTime;
+
+            int eventEnd = frames.getEventEnd(frameIndex);
+            for (int eventIndex = frames.getEventStart(frameIndex); eventIndex < eventEnd; eventIndex++) {
+                long eventTime = frames.getEventTime(eventIndex) - base;
+                long time = eventTime < 0 ? frameTime : eventTime;
+                int ref = builder.ref(frames.getEventWorld(eventIndex), frames.getEventX(eventIndex),
+                        frames.getEventY(eventIndex), frames.getEventZ(eventIndex));
+                Material material = frames.getEventMaterial(eventIndex);
+
+                switch (frames.getEventType(eventIndex)) {
+                    case BREAK_START: {
+                        pendingBreakStarts.put(ref, time);
+                        break;
+                    }
+                    case BREAK_CANCEL: {
+                        Long started = pendingBreakStarts.remove(ref);
+                        if (started != null && time > started) {
+                            builder.span(ref, started, time, false);
+                        }
+                        break;
+                    }
+                    case BREAK_PROGRESS: {
+                        pendingBreakStarts.putIfAbsent(ref, time);
+                        break;
+                    }
+                    case BREAK_COMPLETE: {
+                        Long started = pendingBreakStarts.remove(ref);
+                        long spanStart = started != null ? started : Math.max(0L, time - IMPLICIT_BREAK_LEAD_MS);
+                        builder.span(ref, spanStart, time, true);
+
+                        int from = builder.current(ref);
+                        if (from == BlockStatePalette.NONE) {
+                            from = BlockEvent.resolveBlockState(frames.getEventState(eventIndex), material);
+                            builder.initial(ref, from);
+                        }
+                        builder.delta(time, ref, from, air, material, true);
+
+                        if (BlockEvent.isValuable(material)) {
+                            builder.marker(time, ref, material);
+                            builder.ores++;
+                        }
+                        break;
+                    }
+                    case PLACE: {
+                        int placed = BlockEvent.resolveBlockState(frames.getEventState(eventIndex), material);
+                        if (placed == BlockStatePalette.NONE) {
+                            break;
+                        }
+                        int from = builder.current(ref);
+                        if (from == BlockStatePalette.NONE) {
+                            int replaced = BlockEvent.resolvePreviousBlockState(
+                                    frames.getEventPreviousState(eventIndex));
+                            from = replaced != BlockStatePalette.NONE ? replaced : air;
+                            builder.initial(ref, from);
+                        }
+                        builder.delta(time, ref, from, placed, material, false);
+                        break;
+                    }
+                    default:
+                        break;
+                }
+            }
+        }
+
+        // Если руды не было вообще — отмечаем все разрушения, чтобы прыжки по событиям работали
+        if (builder.markerCount == 0) {
+            for (int i = 0; i < builder.deltaCount; i++) {
+                if (builder.deltaDestructive[i]) {
+                    builder.marker(builder.deltaTimes[i], builder.deltaRefs[i], builder.deltaMaterials[i]);
+                }
+            }
+        }
+        return builder.finish();
+    }
+
+    /** Накопитель: растущие примитивные массивы, обрезаются в {@link #finish()}. */
+    private static final class Builder {
+        final Map<String, Integer> worldIndex = new HashMap<>();
+        final List<Map<Long, Integer>> refIndexByWorld = new ArrayList<>();
+        String[] worlds = new String[4];
+        int worldCount;
+
+        int[] refWorlds = new int[256];
+        long[] refKeys = new long[256];
+        int[] refInitialStates = new int[256];
+        /** Текущее состояние блока при проходе по событиям. */
+        int[] refCurrent = new int[256];
+        int refCount;
+
+        long[] deltaTimes = new long[256];
+        int[] deltaRefs = new int[256];
+        int[] deltaFromStates = new int[256];
+        int[] deltaToStates = new int[256];
+        Material[] deltaMaterials = new Material[256];
+        boolean[] deltaDestructive = new boolean[256];
+        int deltaCount;
+
+        long[] spanStarts = new long[64];
+        long[] spanEnds = new long[64];
+        int[] spanRefs = new int[64];
+        boolean[] spanCompleted = new boolean[64];
+        int spanCount;
+        long maxSpanLength = IMPLICIT_BREAK_LEAD_MS;
+
+        long[] markerTimes = new long[64];
+        int[] markerRefs = new int[64];
+        Material[] markerMaterials = new Material[64];
+        int markerCount;
+        int ores;
+
+        int ref(String world, int x, int y, int z) {
+            Integer worldId = worldIndex.get(world);
+            if (worldId == null) {
+                worldId = worldCount++;
+                worldIndex.put(world, worldId);
+                if (worldId == worlds.length) {
+                    worlds = Arrays.copyOf(worlds, worlds.length * 2);
+                }
+                worlds[worldId] = world;
+                refIndexByWorld.add(new HashMap<>());
+            }
+            Map<Long, Integer> refs = refIndexByWorld.get(worldId);
+            long key = BlockKey.pack(x, y, z);
+            Integer existing = refs.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            int ref = refCount++;
+            if (ref == refKeys.length) {
+                int capacity = refKeys.length * 2;
+                refWorlds = Arrays.copyOf(refWorlds, capacity);
+                refKeys = Arrays.copyOf(refKeys, capacity);
+                refInitialStates = Arrays.copyOf(refInitialStates, capacity);
+                refCurrent = Arrays.copyOf(refCurrent, capacity);
+            }
+            refWorlds[ref] = worldId;
+            refKeys[ref] = key;
+            refs.put(key, ref);
+            return ref;
+        }
+
+        int current(int ref) {
+            return refCurrent[ref];
+        }
+
+        void initial(int ref, int state) {
+            refInitialStates[ref] = state;
+        }
+
+        void delta(long time, int ref, int from, int to, Material material, boolean destructive) {
+            if (deltaCount == deltaTimes.length) {
+                int capacity = deltaTimes.length * 2;
+                deltaTimes = Arrays.copyOf(deltaTimes, capacity);
+                deltaRefs = Arrays.copyOf(deltaRefs, capacity);
+                deltaFromStates = Arrays.copyOf(deltaFromStates, capacity);
+                deltaToStates = Arrays.copyOf(deltaToStates, capacity);
+                deltaMaterials = Arrays.copyOf(deltaMaterials, capacity);
+                deltaDestructive = Arrays.copyOf(deltaDestructive, capacity);
+            }
+            deltaTimes[deltaCount] = time;
+            deltaRefs[deltaCount] = ref;
+            deltaFromStates[deltaCount] = from;
+            deltaToStates[deltaCount] = to;
+            deltaMaterials[deltaCount] = material;
+            deltaDestructive[deltaCount] = destructive;
+            deltaCount++;
+            refCurrent[ref] = to;
+        }
+
+        void span(int ref, long start, long end, boolean completed) {
+            if (spanCount == spanStarts.length) {
+                int capacity = spanStarts.length * 2;
+                spanStarts = Arrays.copyOf(spanStarts, capacity);
+                spanEnds = Arrays.copyOf(spanEnds, capacity);
+                spanRefs = Arrays.copyOf(spanRefs, capacity);
+                spanCompleted = Arrays.copyOf(spanCompleted, capacity);
+            }
+            spanStarts[spanCount] = start;
+            spanEnds[spanCount] = end;
+            spanRefs[spanCount] = ref;
+            spanCompleted[spanCount] = completed;
+            spanCount++;
+            maxSpanLength = Math.max(maxSpanLength, end - start);
+        }
+
+        void marker(long time, int ref, Material material) {
+            if (markerCount == markerTimes.length) {
+                int capacity = markerTimes.length * 2;
+                markerTimes = Arrays.copyOf(markerTimes, capacity);
+                markerRefs = Arrays.copyOf(markerRefs, capacity);
+                markerMaterials = Arrays.copyOf(markerMaterials, capacity);
+            }
+            markerTimes[markerCount] = time;
+            markerRefs[markerCount] = ref;
+            markerMaterials[markerCount] = material;
+            markerCount++;
+        }
+
+        TimelineIndex finish() {
+            // Интервалы — по началу, маркеры — по времени (сортировка устойчивая, как раньше)
+            Integer[] spanOrder = order(spanStarts, spanCount);
+            long[] sortedSpanStarts = new long[spanCount];
+            long[] sortedSpanEnds = new long[spanCount];
+            int[] sortedSpanRefs = new int[spanCount];
+            boolean[] sortedSpanCompleted = new boolean[spanCount];
+            for (int i = 0; i < spanCount; i++) {
+                int j = spanOrder[i];
+                sortedSpanStarts[i] = spanStarts[j];
+                sortedSpanEnds[i] = spanEnds[j];
+                sortedSpanRefs[i] = spanRefs[j];
+                sortedSpanCompleted[i] = spanCompleted[j];
+            }
+
+            Integer[] markerOrder = order(markerTimes, markerCount);
+            long[] sortedMarkerTimes = new long[markerCount];
+            int[] sortedMarkerRefs = new int[markerCount];
+            Material[] sortedMarkerMaterials = new Material[markerCount];
+            for (int i = 0; i < markerCount; i++) {
+                int j = markerOrder[i];
+                sortedMarkerTimes[i] = markerTimes[j];
+                sortedMarkerRefs[i] = markerRefs[j];
+                sortedMarkerMaterials[i] = markerMaterials[j];
+            }
+
+            return new TimelineIndex(Arrays.copyOf(worlds, worldCount),
+                    Arrays.copyOf(refWorlds, refCount), Arrays.copyOf(refKeys, refCount),
+                    Arrays.copyOf(refInitialStates, refCount),
+                    Arrays.copyOf(deltaTimes, deltaCount), Arrays.copyOf(deltaRefs, deltaCount),
+                    Arrays.copyOf(deltaFromStates, deltaCount), Arrays.copyOf(deltaToStates, deltaCount),
+                    Arrays.copyOf(deltaMaterials, deltaCount), Arrays.copyOf(deltaDestructive, deltaCount),
+                    sortedSpanStarts, sortedSpanEnds, sortedSpanRefs, sortedSpanCompleted,
+                    sortedMarkerTimes, sortedMarkerRefs, sortedMarkerMaterials,
+                    maxSpanLength, ores);
+        }
+
+        private static Integer[] order(long[] keys, int count) {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+            return order;
+        }
+    }
+
+    // ===================== Доступ =====================
+
+    public int getWorldCount() {
+        return worlds.length;
+    }
+
+    public String getWorld(int worldId) {
+        return worlds[worldId];
+    }
+
+    public int getRefCount() {
+        return refKeys.length;
+    }
+
+    public int getRefWorld(int ref) {
+        return refWorlds[ref];
+    }
+
+    public long getRefKey(int ref) {
+        return refKeys[ref];
+    }
+
+    public int getRefInitialState(int ref) {
+        return refInitialStates[ref];
+    }
+
+    public int getDeltaCount() {
+        return deltaTimes.length;
+    }
+
+    public long getDeltaTime(int delta) {
+        return deltaTimes[delta];
+    }
+
+    public int getDeltaRef(int delta) {
+        return deltaRefs[delta];
+    }
+
+    public int getDeltaFromState(int delta) {
+        return deltaFromStates[delta];
+    }
+
+    public int getDeltaToState(int delta) {
+        return deltaToStates[delta];
+    }
+
+    public Material getDeltaMaterial(int delta) {
+        return deltaMaterials[delta];
+    }
+
+    public boolean isDeltaDestructive(int delta) {
+        return deltaDestructive[delta];
+    }
+
+    public int getSpanCount() {
+        return spanStarts.length;
+    }
+
+    public long getSpanStart(int span) {
+        return spanStarts[span];
+    }
+
+    public long getSpanEnd(int span) {
+        return spanEnds[span];
+    }
+
+    public int getSpanRef(int span) {
+        return spanRefs[span];
+    }
+
+    public boolean isSpanCompleted(int span) {
+        return spanCompleted[span];
+    }
+
+    public int getMarkerCount() {
+        return markerTimes.length;
+    }
+
+    public long getMarkerTime(int marker) {
+        return markerTimes[marker];
+    }
+
+    public int getMarkerRef(int marker) {
+        return markerRefs[marker];
+    }
+
+    public Material getMarkerMaterial(int marker) {
+        return markerMaterials[marker];
+    }
+
+    public long getMaxSpanLength() {
+        return maxSpanLength;
+    }
+
+    public int getOreBreakCount() {
+        return oreBreakCount;
+    }
+
+    /**
+     * Примерный объём индекса в куче (байт).
+     */
+    public long estimateHeapBytes() {
+        return 128L
+                + refKeys.length * 16L
+                + deltaTimes.length * 29L
+                + spanStarts.length * 21L
+                + markerTimes.length * 16L;
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.antixrayviewer.managers;
+
+import com.example.antixrayviewer.data.BlockEvent;
+import com.example.antixrayviewer.data.BlockKey;
+import com.example.antixrayviewer.data.BlockStatePalette;
+import com.example.antixrayviewer.data.PlayerRecording;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.data.BlockData;
+
+import java.util.Arrays;
+
+/**
+ * Буфер событий блоков одного записываемого игрока между кадрами.
+ *
+ * Заменяет ArrayList, который создавался заново после каждого кадра, и строковые ключи блоков.
+ * События лежат в примитивных массивах, массивы переиспользуются, а при переносе в запись
+ * поля копируются в колонки {@link com.example.antixrayviewer.data.FrameStore} — объектов
+ * событий нет нигде. В установившемся режиме ни захват, ни перенос ничего не выделяют.
+ *
+ * Выделяет сам Bukkit — {@code Block.getBlockData()}. Поэтому у материалов без свойств
+ * состояние берётся из палитры по материалу ({@link #stateOf}), а у остальных читается
+ * один раз в начале ломания и переиспользуется для отмены и завершения ({@link #breakingState}).
+ * Имя мира берётся из кэша по последнему миру ({@link #worldName}).
+ */
+final class BlockEventBuffer {
+
+    private static final BlockEvent.EventType[] EVENT_TYPES = BlockEvent.EventType.values();
+
+    private int size;
+    private long[] times = new long[8];
+    private byte[] types = new byte[8];
+    private long[] keys = new long[8];
+    private String[] worlds = new String[8];
+    private Material[] materials = new Material[8];
+    private float[] progress = new float[8];
+    private int[] entityIds = new int[8];
+    private int[] states = new int[8];
+    private int[] previousStates = new int[8];
+
+    /** Блоки, которые игрок сейчас ломает: ключ, время начала и состояние блока в начале. */
+    private long[] breakingKeys = new long[4];
+    private long[] breakingSince = new long[4];
+    private int[] breakingStates = new int[4];
+    private int breakingCount;
+
+    /** Мир последнего события и его имя: игрок почти всегда копает в одном мире. */
+    private World lastWorld;
+    private String lastWorldName;
+
+    void add(long time, BlockEvent.EventType type, String world, int x, int y, int z, Material material,
+             float breakProgress, int entityId, int state, int previousState) {
+        if (size == times.length) {
+            grow();
+        }
+        times[size] = time;
+        types[size] = (byte) type.ordinal();
+        keys[size] = BlockKey.pack(x, y, z);
+        worlds[size] = world;
+        materials[size] = material;
+        progress[size] = breakProgress;
+        entityIds[size] = entityId;
+        states[size] = state;
+        previousStates[size] = previousState;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = size * 2;
+        times = Arrays.copyOf(times, capacity);
+        types = Arrays.copyOf(types, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        worlds = Arrays.copyOf(worlds, capacity);
+        materials = Arrays.copyOf(materials, capacity);
+        progress = Arrays.copyOf(progress, capacity);
+        entityIds = Arrays.copyOf(entityIds, capacity);
+        states = Arrays.copyOf(states, capacity);
+        previousStates = Arrays.copyOf(previousStates, capacity);
+    }
+
+    /**
+     * Записать событие блока из обработчика события Bukkit.
+     *
+     * @param replaced состояние до установки (для PLACE) или null
+     */
+    void capture(long time, BlockEvent.EventType type, Block block, float progress, BlockState replaced,
+                 int entityId) {
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+        Material material = block.getType();
+        int previousState = replaced != null ? stateOf(replaced) : BlockStatePalette.NONE;
+
+        // Отмена и завершение ломания берут состояние, запомненное в начале
+        long key = BlockKey.pack(x, y, z);
+        int state = type == BlockEvent.EventType.BREAK_START
+            ? BlockStatePalette.NONE : breakingState(key, material);
+        if (state == BlockStatePalette.NONE) {
+            state = stateOf(block, material);
+        }
+
+        // Отмечаем начало и конец ломания
+        if (type == BlockEvent.EventType.BREAK_START) {
+            startBreaking(key, time, state);
+        } else if (type == BlockEvent.EventType.BREAK_CANCEL || type == BlockEvent.EventType.BREAK_COMPLETE) {
+            stopBreaking(key);
+        }
+        add(time, type, worldName(block.getWorld()), x, y, z, material, progress, entityId, state, previousState);
+    }
+
+    /**
+     * Номер состояния блока. {@code getBlockData()} выделяет объект, поэтому вызывается
+     * только для материалов со свойствами.
+     */
+    static int stateOf(Block block, Material material) {
+        int single = BlockStatePalette.singleStateOf(material);
+        return single != BlockStatePalette.NONE ? single : BlockStatePalette.idOf(block.getBlockData());
+    }
+
+    static int stateOf(BlockState state) {
+        int single = BlockStatePalette.singleStateOf(state.getType());
+        return single != BlockStatePalette.NONE ? single : BlockStatePalette.idOf(state.getBlockData());
+    }
+
+    /**
+     * Перенести накопленные события в последний кадр записи и очистить буфер.
+     */
+    void drainTo(PlayerRecording recording) {
+        for (int i = 0; i < size; i++) {
+            long key = keys[i];
+            recording.addBlockEvent(times[i], EVENT_TYPES[types[i]], BlockKey.x(key), BlockKey.y(key), BlockKey.z(key),
+                worlds[i], materials[i], progress[i], entityIds[i], states[i], previousStates[i]);
+        }
+        size = 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Имя мира без обращения к миру, пока события идут из того же мира.
+     */
+    String worldName(World world) {
+        if (world != lastWorld) {
+            lastWorld = world;
+            lastWorldName = world.getName();
+        }
+        return lastWorldName;
+    }
+
+    void startBreaking(long key, long time, int state) {
+        for (int i = 0; i < breakingCount; i++) {
+            if (breakingKeys[i] == key) {
+                breakingSince[i] = time;
+                breakingStates[i] = state;
+                return;
+            }
+        }
+        if (breakingCount == breakingKeys.length) {
+            breakingKeys = Arrays.copyOf(breakingKeys, breakingCount * 2);
+            breakingSince = Arrays.copyOf(breakingSince, breakingCount * 2);
+            breakingStates = Arrays.copyOf(breakingStates, breakingCount * 2);
+        }
+        breakingKeys[breakingCount] = key;
+        breakingSince[breakingCount] = time;
+        breakingStates[breakingCount] = state;
+        breakingCount++;
+    }
+
+    /**
+     * Состояние, запомненное в начале ломания этого блока, если блок с тех пор остался
+     * тем же материалом; иначе {@link BlockStatePalette#NONE} — тогда состояние надо прочитать.
+     */
+    int breakingState(long key, Material material) {
+        for (int i = 0; i < breakingCount; i++) {
+            if (breakingKeys[i] == key) {
+                BlockData data = BlockStatePalette.getBlockData(breakingStates[i]);
+                return data != null && data.getMaterial() == material ? breakingStates[i] : BlockStatePalette.NONE;
+            }
+        }
+        return BlockStatePalette.NONE;
+    }
+
+    void stopBreaking(long key) {
+        for (int i = 0; i < breakingCount; i++) {
+            if (breakingKeys[i] == key) {
+                breakingCount--;
+                breakingKeys[i] = breakingKeys[breakingCount];
+                breakingSince[i] = breakingSince[breakingCount];
+                breakingStates[i] = breakingStates[breakingCount];
+                return;
+            }
+        }
+    }
+}
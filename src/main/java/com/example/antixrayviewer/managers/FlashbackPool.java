@@ -0,0 +1,96 @@
+package com.example.antixrayviewer.managers;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Пул кольцевых буферов flashback с жёстким лимитом.
+ *
+ * Буферы одинакового размера создаются лениво, но не больше {@code maxRings} штук,
+ * и после использования возвращаются в пул. Поэтому память под flashback ограничена
+ * сверху {@link #getBudgetBytes()} независимо от онлайна: если все буферы заняты,
+ * новые игроки просто не буферизуются, пока кто-то не освободит свой.
+ */
+final class FlashbackPool {
+
+    private final int frameCapacity;
+    private final int eventCapacity;
+    private final int maxRings;
+    private final Map<UUID, FlashbackRing> active = new HashMap<>();
+    private final ArrayDeque<FlashbackRing> free = new ArrayDeque<>();
+    private int created;
+
+    FlashbackPool(int frameCapacity, int eventCapacity, int maxRings) {
+        this.frameCapacity = Math.max(1, frameCapacity);
+        this.eventCapacity = Math.max(0, eventCapacity);
+        this.maxRings = Math.max(0, maxRings);
+    }
+
+    FlashbackRing get(UUID playerId) {
+        return active.get(playerId);
+    }
+
+    /**
+     * Буфер игрока; если его нет — выдаёт свободный. null, если пул исчерпан.
+     */
+    FlashbackRing acquire(UUID playerId) {
+        FlashbackRing ring = active.get(playerId);
+        if (ring != null) {
+            return ring;
+        }
+        ring = free.poll();
+        if (ring == null) {
+            if (created >= maxRings) {
+                return null;
+            }
+            ring = new FlashbackRing(frameCapacity, eventCapacity);
+            created++;
+        }
+        active.put(playerId, ring);
+        return ring;
+    }
+
+    /**
+     * Забрать буфер игрока из пула (для переноса в запись). После переноса вернуть через {@link #recycle}.
+     */
+    FlashbackRing take(UUID playerId) {
+        return active.remove(playerId);
+    }
+
+    void release(UUID playerId) {
+        FlashbackRing ring = active.remove(playerId);
+        if (ring != null) {
+            recycle(ring);
+        }
+    }
+
+    void recycle(FlashbackRing ring) {
+        ring.clear();
+        free.push(ring);
+    }
+
+    void clear() {
+        for (FlashbackRing ring : active.values()) {
+            recycle(ring);
+        }
+        active.clear();
+    }
+
+    int getActiveCount() {
+        return active.size();
+    }
+
+    int getMaxRings() {
+        return maxRings;
+    }
+
+    long getUsedBytes() {
+        return created * FlashbackRing.estimateBytes(frameCapacity, eventCapacity);
+    }
+
+    long getBudgetBytes() {
+        return maxRings * FlashbackRing.estimateBytes(frameCapacity, eventCapacity);
+    }
+}
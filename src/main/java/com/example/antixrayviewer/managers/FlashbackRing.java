@@ -0,0 +1,220 @@
+package com.example.antixrayviewer.managers;
+
+import com.example.antixrayviewer.data.BlockEvent;
+import com.example.antixrayviewer.data.BlockKey;
+import com.example.antixrayviewer.data.BlockStatePalette;
+import com.example.antixrayviewer.data.PlayerRecording;
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.util.Arrays;
+
+/**
+ * Кольцевой буфер последних секунд одного игрока до срабатывания детекта.
+ *
+ * Размер фиксирован при создании: новые кадры и события затирают самые старые,
+ * поэтому память на игрока не растёт, сколько бы он ни копал. Кадры и события
+ * лежат в примитивных массивах, как в {@link com.example.antixrayviewer.data.FrameStore}.
+ */
+final class FlashbackRing {
+
+    private static final byte FLAG_SNEAKING = 1;
+    private static final byte FLAG_SPRINTING = 1 << 1;
+    private static final byte FLAG_FLYING = 1 << 2;
+
+    private static final BlockEvent.EventType[] EVENT_TYPES = BlockEvent.EventType.values();
+
+    private final long[] times;
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+    private final float[] yaws;
+    private final float[] pitches;
+    private final byte[] flags;
+    private final float[] health;
+    private final byte[] food;
+    private final String[] worlds;
+    /** Индекс, куда запишется следующий кадр. */
+    private int frameHead;
+    private int frameCount;
+
+    private final long[] eventTimes;
+    private final byte[] eventTypes;
+    private final long[] eventKeys;
+    private final String[] eventWorlds;
+    private final Material[] eventMaterials;
+    private final float[] eventProgress;
+    private final int[] eventEntityIds;
+    private final int[] eventStates;
+    private final int[] eventPreviousStates;
+    private int eventHead;
+    private int eventCount;
+    /** Мир последнего события и его имя — как в {@link BlockEventBuffer#worldName}. */
+    private World lastWorld;
+    private String lastWorldName;
+
+    FlashbackRing(int frameCapacity, int eventCapacity) {
+        times = new long[frameCapacity];
+        xs = new double[frameCapacity];
+        ys = new double[frameCapacity];
+        zs = new double[frameCapacity];
+        yaws = new float[frameCapacity];
+        pitches = new float[frameCapacity];
+        flags = new byte[frameCapacity];
+        health = new float[frameCapacity];
+        food = new byte[frameCapacity];
+        worlds = new String[frameCapacity];
+
+        eventTimes = new long[eventCapacity];
+        eventTypes = new byte[eventCapacity];
+        eventKeys = new long[eventCapacity];
+        eventWorlds = new String[eventCapacity];
+        eventMaterials = new Material[eventCapacity];
+        eventProgress = new float[eventCapacity];
+        eventEntityIds = new int[eventCapacity];
+        eventStates = new int[eventCapacity];
+        eventPreviousStates = new int[eventCapacity];
+    }
+
+    /**
+     * Примерный объём одного буфера в куче (байт).
+     */
+    static long estimateBytes(int frameCapacity, int eventCapacity) {
+        // 8 + 3*8 + 2*4 + 1 + 4 + 1 + ссылка на строку мира
+        long frameBytes = (long) frameCapacity * 50L;
+        // 8 + 1 + 8 + 2 ссылки + 4 + 4 + 4 + 4
+        long eventBytes = (long) eventCapacity * 41L;
+        return 256L + frameBytes + eventBytes;
+    }
+
+    void addFrame(long timestamp, double x, double y, double z, float yaw, float pitch, String world,
+                  boolean sneaking, boolean sprinting, boolean flying, double healthValue, int foodLevel) {
+        int i = frameHead;
+        times[i] = timestamp;
+        xs[i] = x;
+        ys[i] = y;
+        zs[i] = z;
+        yaws[i] = yaw;
+        pitches[i] = pitch;
+        byte packed = 0;
+        if (sneaking) {
+            packed |= FLAG_SNEAKING;
+        }
+        if (sprinting) {
+            packed |= FLAG_SPRINTING;
+        }
+        if (flying) {
+            packed |= FLAG_FLYING;
+        }
+        flags[i] = packed;
+        health[i] = (float) healthValue;
+        food[i] = (byte) Math.max(0, Math.min(127, foodLevel));
+        worlds[i] = world;
+        frameHead = (i + 1) % times.length;
+        if (frameCount < times.length) {
+            frameCount++;
+        }
+    }
+
+    void addEvent(long time, BlockEvent.EventType type, String world, int x, int y, int z, Material material,
+                  float breakProgress, int entityId, int state, int previousState) {
+        if (eventTimes.length == 0) {
+            return;
+        }
+        int i = eventHead;
+        eventTimes[i] = time;
+        eventTypes[i] = (byte) type.ordinal();
+        eventKeys[i] = BlockKey.pack(x, y, z);
+        eventWorlds[i] = world;
+        eventMaterials[i] = material;
+        eventProgress[i] = breakProgress;
+        eventEntityIds[i] = entityId;
+        eventStates[i] = state;
+        eventPreviousStates[i] = previousState;
+        eventHead = (i + 1) % eventTimes.length;
+        if (eventCount < eventTimes.length) {
+            eventCount++;
+        }
+    }
+
+    String worldName(World world) {
+        if (world != lastWorld) {
+            lastWorld = world;
+            lastWorldName = world.getName();
+        }
+        return lastWorldName;
+    }
+
+    boolean isEmpty() {
+        return frameCount == 0;
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    /** Время самого старого кадра в буфере. */
+    long getOldestTime() {
+        return times[frameIndex(0)];
+    }
+
+    /** Время самого свежего кадра в буфере. */
+    long getNewestTime() {
+        return times[frameIndex(frameCount - 1)];
+    }
+
+    private int frameIndex(int n) {
+        return (frameHead - frameCount + n + times.length) % times.length;
+    }
+
+    private int eventIndex(int n) {
+        return (eventHead - eventCount + n + eventTimes.length) % eventTimes.length;
+    }
+
+    void clear() {
+        frameHead = 0;
+        frameCount = 0;
+        eventHead = 0;
+        eventCount = 0;
+        Arrays.fill(worlds, null);
+        Arrays.fill(eventWorlds, null);
+        Arrays.fill(eventMaterials, null);
+    }
+
+    /**
+     * Переложить содержимое буфера в начало новой записи.
+     *
+     * Событие прикрепляется к первому кадру, снятому не раньше него — так же,
+     * как при обычной записи. События новее последнего кадра уходят в {@code pending}
+     * и попадут в первый «живой» кадр. События старше самого старого кадра отбрасываются.
+     */
+    void spliceInto(PlayerRecording recording, BlockEventBuffer pending) {
+        int e = 0;
+        // Пропускаем события, чьи кадры уже затёрты
+        long oldest = frameCount > 0 ? getOldestTime() : Long.MAX_VALUE;
+        while (e < eventCount && eventTimes[eventIndex(e)] < oldest && frameCount > 0) {
+            e++;
+        }
+        for (int n = 0; n < frameCount; n++) {
+            int i = frameIndex(n);
+            recording.addFrame(times[i], xs[i], ys[i], zs[i], yaws[i], pitches[i], worlds[i],
+                (flags[i] & FLAG_SNEAKING) != 0, (flags[i] & FLAG_SPRINTING) != 0, (flags[i] & FLAG_FLYING) != 0,
+                health[i], food[i]);
+            while (e < eventCount && eventTimes[eventIndex(e)] <= times[i]) {
+                int j = eventIndex(e++);
+                long key = eventKeys[j];
+                recording.addBlockEvent(eventTimes[j], EVENT_TYPES[eventTypes[j]],
+                    BlockKey.x(key), BlockKey.y(key), BlockKey.z(key), eventWorlds[j], eventMaterials[j],
+                    eventProgress[j], eventEntityIds[j],
+                    eventStates[j], eventPreviousStates[j]);
+            }
+        }
+        while (e < eventCount) {
+            int j = eventIndex(e++);
+            long key = eventKeys[j];
+            pending.add(eventTimes[j], EVENT_TYPES[eventTypes[j]], eventWorlds[j],
+                BlockKey.x(key), BlockKey.y(key), BlockKey.z(key), eventMaterials[j],
+                eventProgress[j], eventEntityIds[j], eventStates[j], eventPreviousStates[j]);
+        }
+    }
+}
@@ -2,11 +2,18 @@ package com.example.antixrayviewer.managers;
 
 import com.example.antixrayviewer.AntiXrayViewer;
 import com.example.antixrayviewer.data.PlayerRecording;
-import com.example.antixrayviewer.data.RecordFrame;
+import com.example.antixrayviewer.data.RecordingInfo;
 import com.example.antixrayviewer.data.BlockEvent;
+import com.example.antixrayviewer.data.BlockStatePalette;
+import com.example.antixrayviewer.data.FrameStore;
+import com.example.antixrayviewer.replay.ReplayManager;
+import com.example.antixrayviewer.storage.RecordingCache;
 import com.example.antixrayviewer.storage.RecordingStorage;
+import com.example.antixrayviewer.storage.StoragePipeline;
 import org.bukkit.Location;
+import org.bukkit.Material;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -15,48 +22,134 @@ import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.block.BlockDamageEvent;
 import org.bukkit.event.block.BlockDamageAbortEvent;
-import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.scheduler.BukkitTask;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 
 public class RecordingManager implements Listener {
     
     private final AntiXrayViewer plugin;
     private final Map<UUID, PlayerRecording> recordings = new ConcurrentHashMap<>();
-    private final Map<UUID, BukkitTask> recordingTasks = new HashMap<>();
-    private final List<PlayerRecording> completedRecordings = new ArrayList<>();
-    private final Map<UUID, List<BlockEvent>> pendingBlockEvents = new ConcurrentHashMap<>();
-    private final Map<UUID, Map<String, Long>> blockBreakingProgress = new ConcurrentHashMap<>();
+    /** Слоты общего тика записи, в порядке начала записи. */
+    private final Map<UUID, RecorderSlot> recorderSlots = new LinkedHashMap<>();
+    /** Метаданные завершённых записей (новые первые). Кадры грузятся с диска по требованию. */
+    private final List<RecordingInfo> completedRecordings = new ArrayList<>();
+    /** Только что завершённые записи, которые ещё пишутся на диск. */
+    private final Map<Integer, PlayerRecording> unsavedRecordings = new ConcurrentHashMap<>();
     private final RecordingStorage storage;
+    private final StoragePipeline pipeline;
+    private final RecordingCache cache;
+    /** Записи, которые не поместились в очередь хранилища и ждут повторной постановки. */
+    private final Deque<PlayerRecording> deferredSaves = new ArrayDeque<>();
+    private boolean deferredRetryScheduled;
+    private final long shutdownTimeoutMillis;
+    /** Период записи сегментов журнала активной записи (0 — журнал выключен). */
+    private final long segmentMillis;
     
     private final long recordingDuration;
     private final int recordIntervalTicks;
     private final int maxSavedRecordings;
     
+    /**
+     * Один общий таймер на все записи вместо отдельного BukkitRunnable на каждого игрока.
+     * Записи раскладываются по фазам 0..interval-1, чтобы при 30+ записях
+     * кадры снимались не все в один тик, а равномерно.
+     */
+    private BukkitTask recorderTask;
+    private int[] phaseLoad;
+    private long recorderTick;
+    private long lastSampleNanos;
+    private double averageSampleNanos;
+    private int lastSampledCount;
+    
+    /**
+     * Flashback: кольцевые буферы последних секунд игроков ниже заданной высоты.
+     * При срабатывании детекта буфер становится началом записи, и в ней видно,
+     * как игрок вышел на первые жилы. null, если выключено в конфиге.
+     */
+    private final FlashbackPool flashback;
+    private final int flashbackIntervalTicks;
+    private final long flashbackWindow;
+    private final double flashbackMaxY;
+    /** Переиспользуемая позиция для опроса игроков в flashback. */
+    private final Location scratchLocation = new Location(null, 0, 0, 0);
+    
+    /** Состояние одной записи в общем тике. */
+    private static final class RecorderSlot {
+        final PlayerRecording recording;
+        final Player player;
+        final int phase;
+        final long deadline;
+        /** События блоков, накопленные с прошлого кадра. */
+        final BlockEventBuffer events = new BlockEventBuffer();
+        /** Сколько кадров уже ушло в журнал на диске. */
+        int journaledFrames;
+        long nextSegmentAt;
+        
+        RecorderSlot(PlayerRecording recording, Player player, int phase, long deadline) {
+            this.recording = recording;
+            this.player = player;
+            this.phase = phase;
+            this.deadline = deadline;
+        }
+    }
+    
     public RecordingManager(AntiXrayViewer plugin) {
         this.plugin = plugin;
         
         this.recordingDuration = plugin.getConfig().getInt("recording.duration", 180) * 1000L;
-        this.recordIntervalTicks = plugin.getConfig().getInt("recording.interval-ticks", 2);
+        this.recordIntervalTicks = Math.max(1, plugin.getConfig().getInt("recording.interval-ticks", 2));
+        this.phaseLoad = new int[recordIntervalTicks];
         this.maxSavedRecordings = plugin.getConfig().getInt("recording.max-saved", 50);
+        this.cache = new RecordingCache(plugin.getConfig().getLong("storage.cache-mb", 64L) * 1024L * 1024L);
+        
+        int flashbackSeconds = Math.max(1, plugin.getConfig().getInt("recording.flashback.seconds", 60));
+        this.flashbackIntervalTicks = Math.max(1, plugin.getConfig().getInt("recording.flashback.interval-ticks", 4));
+        this.flashbackWindow = flashbackSeconds * 1000L;
+        this.flashbackMaxY = plugin.getConfig().getDouble("recording.flashback.max-y", 16.0);
+        if (plugin.getConfig().getBoolean("recording.flashback.enabled", false)) {
+            int frameCapacity = Math.max(1, flashbackSeconds * 20 / flashbackIntervalTicks);
+            this.flashback = new FlashbackPool(frameCapacity,
+                plugin.getConfig().getInt("recording.flashback.max-events", 512),
+                plugin.getConfig().getInt("recording.flashback.pool-size", 64));
+        } else {
+            this.flashback = null;
+        }
         
         // Создаем хранилище записей
         this.storage = new RecordingStorage(plugin);
+        this.pipeline = new StoragePipeline(storage, plugin.getLogger(),
+            plugin.getConfig().getInt("storage.queue-size", 8));
+        this.shutdownTimeoutMillis = plugin.getConfig().getLong("storage.shutdown-timeout-seconds", 30L) * 1000L;
+        this.segmentMillis = Math.max(0L, plugin.getConfig().getLong("storage.segment-seconds", 10L) * 1000L);
         
         // Загружаем сохраненные записи
         loadSavedRecordings();
         
         // Регистрируем слушатель событий
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        
+        // С flashback общий тик нужен всегда, а не только во время записей
+        if (flashback != null) {
+            startRecorderTask();
+        }
+    }
+    
+    private void startRecorderTask() {
+        if (recorderTask == null) {
+            recorderTask = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tickRecorders, 1L, 1L);
+        }
     }
     
     /**
-     * Загрузить сохраненные записи из файлов
+     * Загрузить каталог сохраненных записей (без кадров)
      */
     private void loadSavedRecordings() {
-        List<PlayerRecording> loaded = storage.loadAllRecordings();
+        List<RecordingInfo> loaded = storage.loadCatalog();
         completedRecordings.addAll(loaded);
         
         // Сортируем по ID в обратном порядке (новые первые)
@@ -64,8 +157,8 @@ public class RecordingManager implements Listener {
         
         // Ограничиваем количество записей
         while (completedRecordings.size() > maxSavedRecordings) {
-            PlayerRecording removed = completedRecordings.remove(completedRecordings.size() - 1);
-            storage.deleteRecording(removed.getId());
+            RecordingInfo removed = completedRecordings.remove(completedRecordings.size() - 1);
+            pipeline.offerDelete(removed.getId());
         }
         
         plugin.getLogger().info("Загружено " + loaded.size() + " записей из хранилища");
@@ -82,40 +175,40 @@ public class RecordingManager implements Listener {
             return;
         }
         
+        long now = System.currentTimeMillis();
+        FlashbackRing prefix = flashback != null ? flashback.take(playerId) : null;
+        
         PlayerRecording recording = new PlayerRecording(
             playerId,
             player.getName(),
             reason,
-            System.currentTimeMillis()
+            // С flashback запись начинается с самого старого кадра буфера
+            prefix != null && !prefix.isEmpty() ? Math.min(now, prefix.getOldestTime()) : now
         );
         
         recordings.put(playerId, recording);
         
-        // Создаем задачу для периодической записи позиции игрока
-        BukkitTask task = new BukkitRunnable() {
-            private long startTime = System.currentTimeMillis();
-            
-            @Override
-            public void run() {
-                // Проверяем, не вышел ли игрок
-                Player currentPlayer = plugin.getServer().getPlayer(playerId);
-                if (currentPlayer == null || !currentPlayer.isOnline()) {
-                    stopRecording(playerId, "Игрок вышел с сервера");
-                    return;
-                }
-                
-                // Проверяем, не истекло ли время записи
-                if (System.currentTimeMillis() - startTime > recordingDuration) {
-                    stopRecording(playerId, "Время записи истекло");
-                    return;
-                }
-                
-                // Записываем текущий кадр
-                recordFrame(currentPlayer, recording);
+        // Ставим запись в наименее загруженную фазу общего тика
+        int phase = 0;
+        for (int i = 1; i < phaseLoad.length; i++) {
+            if (phaseLoad[i] < phaseLoad[phase]) {
+                phase = i;
             }
-        }.runTaskTimer(plugin, 0, recordIntervalTicks);
+        }
+        phaseLoad[phase]++;
+        RecorderSlot slot = new RecorderSlot(recording, player, phase, now + recordingDuration);
+        slot.nextSegmentAt = now + segmentMillis;
+        recorderSlots.put(playerId, slot);
+        
+        if (prefix != null) {
+            prefix.spliceInto(recording, slot.events);
+            flashback.recycle(prefix);
+        }
+        
+        // Первый кадр снимаем сразу, как и раньше
+        recordFrame(slot);
         
-        recordingTasks.put(playerId, task);
+        startRecorderTask();
         
         plugin.getLogger().info(String.format(
             "Начата запись игрока %s (UUID: %s) по причине: %s",
@@ -128,34 +221,29 @@ public class RecordingManager implements Listener {
      */
     public void stopRecording(UUID playerId, String endReason) {
         PlayerRecording recording = recordings.remove(playerId);
-        BukkitTask task = recordingTasks.remove(playerId);
+        RecorderSlot slot = recorderSlots.remove(playerId);
         
-        if (task != null) {
-            task.cancel();
+        if (slot != null) {
+            phaseLoad[slot.phase]--;
+        }
+        if (recorderSlots.isEmpty() && flashback == null && recorderTask != null) {
+            recorderTask.cancel();
+            recorderTask = null;
         }
-        
-        // Очищаем буферы событий
-        pendingBlockEvents.remove(playerId);
-        blockBreakingProgress.remove(playerId);
         
         if (recording != null) {
             recording.setEndTime(System.currentTimeMillis());
             recording.setEndReason(endReason);
+            recording.trimToSize();
             
             // Сохраняем запись
             saveRecording(recording);
             
-            // Подсчитываем общее количество событий блоков
-            int totalBlockEvents = 0;
-            for (RecordFrame frame : recording.getFrames()) {
-                if (frame.hasBlockEvents()) {
-                    totalBlockEvents += frame.getBlockEvents().size();
-                }
-            }
+            int totalBlockEvents = recording.getFrameStore().getEventCount();
             
             plugin.getLogger().info(String.format(
                 "Остановлена запись игрока %s. Причина: %s. Записано кадров: %d, событий блоков: %d",
-                recording.getPlayerName(), endReason, recording.getFrames().size(), totalBlockEvents
+                recording.getPlayerName(), endReason, recording.getFrameCount(), totalBlockEvents
             ));
             
             // Уведомляем администраторов
@@ -163,13 +251,176 @@ public class RecordingManager implements Listener {
         }
     }
     
+    /**
+     * Общий тик записи: за один проход снимает кадры всех записей текущей фазы.
+     */
+    private void tickRecorders() {
+        long started = System.nanoTime();
+        int phase = (int) (recorderTick++ % recordIntervalTicks);
+        long now = System.currentTimeMillis();
+        int sampled = 0;
+        List<UUID> finished = null;
+        List<String> finishReasons = null;
+        
+        for (Map.Entry<UUID, RecorderSlot> entry : recorderSlots.entrySet()) {
+            RecorderSlot slot = entry.getValue();
+            if (slot.phase != phase) {
+                continue;
+            }
+            String reason = null;
+            // Проверяем, не вышел ли игрок
+            if (!slot.player.isOnline()) {
+                reason = "Игрок вышел с сервера";
+            } else if (now > slot.deadline) {
+                // Время записи истекло
+                reason = "Время записи истекло";
+            }
+            if (reason != null) {
+                if (finished == null) {
+                    finished = new ArrayList<>();
+                    finishReasons = new ArrayList<>();
+                }
+                finished.add(entry.getKey());
+                finishReasons.add(reason);
+                continue;
+            }
+            recordFrame(slot);
+            sampled++;
+            
+            if (segmentMillis > 0 && now >= slot.nextSegmentAt) {
+                writeSegment(slot);
+                slot.nextSegmentAt = now + segmentMillis;
+            }
+        }
+        
+        // Останавливаем после прохода: stopRecording меняет recorderSlots
+        if (finished != null) {
+            for (int i = 0; i < finished.size(); i++) {
+                stopRecording(finished.get(i), finishReasons.get(i));
+            }
+        }
+        
+        if (flashback != null && recorderTick % flashbackIntervalTicks == 0) {
+            sampled += sampleFlashback(now);
+        }
+        
+        long elapsed = System.nanoTime() - started;
+        lastSampleNanos = elapsed;
+        lastSampledCount = sampled;
+        averageSampleNanos = averageSampleNanos == 0.0 ? elapsed : averageSampleNanos * 0.95 + elapsed * 0.05;
+    }
+    
+    /**
+     * Отправить в журнал на диске кадры, снятые с прошлого сегмента.
+     * Кодируется здесь (кадры меняются только в основном потоке), пишет поток хранилища —
+     * так диск нагружается равномерно всю запись, а не одним всплеском в конце.
+     */
+    private void writeSegment(RecorderSlot slot) {
+        FrameStore frames = slot.recording.getFrameStore();
+        int to = frames.size();
+        if (to <= slot.journaledFrames) {
+            return;
+        }
+        try {
+            byte[] segment = storage.encodeJournalSegment(slot.recording, slot.journaledFrames, to);
+            pipeline.offerAppend(slot.recording.getId(), segment);
+            slot.journaledFrames = to;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Не удалось закодировать сегмент записи #" + slot.recording.getId(), e);
+        }
+    }
+    
+    /**
+     * Снять кадр flashback для всех игроков ниже порога высоты, которых сейчас не записывают.
+     *
+     * @return сколько кадров снято
+     */
+    private int sampleFlashback(long now) {
+        int sampled = 0;
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            UUID playerId = player.getUniqueId();
+            if (recorderSlots.containsKey(playerId)) {
+                continue;
+            }
+            Location loc = player.getLocation(scratchLocation);
+            FlashbackRing ring;
+            if (loc.getY() <= flashbackMaxY) {
+                ring = flashback.acquire(playerId);
+            } else {
+                ring = flashback.get(playerId);
+                // Игрок давно наверху — всё в буфере уже устарело, отдаём его другим
+                if (ring != null && now - ring.getNewestTime() > flashbackWindow) {
+                    flashback.release(playerId);
+                }
+                continue;
+            }
+            if (ring == null) {
+                // Пул исчерпан
+                continue;
+            }
+            ring.addFrame(now, loc.getX(), loc.getY(), loc.getZ(), loc.getYaw(), loc.getPitch(),
+                player.getWorld().getName(), player.isSneaking(), player.isSprinting(), player.isFlying(),
+                player.getHealth(), player.getFoodLevel());
+            sampled++;
+        }
+        return sampled;
+    }
+    
+    /**
+     * Буферов flashback занято сейчас (0, если flashback выключен)
+     */
+    public int getFlashbackActiveCount() {
+        return flashback != null ? flashback.getActiveCount() : 0;
+    }
+    
+    /**
+     * Размер пула буферов flashback (0, если flashback выключен)
+     */
+    public int getFlashbackPoolSize() {
+        return flashback != null ? flashback.getMaxRings() : 0;
+    }
+    
+    /**
+     * Память, выделенная под буферы flashback, и её верхняя граница (байт)
+     */
+    public long getFlashbackUsedBytes() {
+        return flashback != null ? flashback.getUsedBytes() : 0L;
+    }
+    
+    public long getFlashbackBudgetBytes() {
+        return flashback != null ? flashback.getBudgetBytes() : 0L;
+    }
+    
+    /**
+     * Время последнего прохода общего тика записи (нс)
+     */
+    public long getLastSampleNanos() {
+        return lastSampleNanos;
+    }
+    
+    /**
+     * Скользящее среднее времени прохода общего тика записи (нс)
+     */
+    public double getAverageSampleNanos() {
+        return averageSampleNanos;
+    }
+    
+    /**
+     * Сколько записей было снято в последнем проходе
+     */
+    public int getLastSampledCount() {
+        return lastSampledCount;
+    }
+    
     /**
      * Записать один кадр движения игрока
      */
-    private void recordFrame(Player player, PlayerRecording recording) {
+    private void recordFrame(RecorderSlot slot) {
+        Player player = slot.player;
+        PlayerRecording recording = slot.recording;
         Location loc = player.getLocation();
         
-        RecordFrame frame = new RecordFrame(
+        recording.addFrame(
             System.currentTimeMillis(),
             loc.getX(),
             loc.getY(),
@@ -185,15 +436,9 @@ public class RecordingManager implements Listener {
         );
         
         // Добавляем накопленные события блоков к кадру
-        UUID playerId = player.getUniqueId();
-        List<BlockEvent> events = pendingBlockEvents.remove(playerId);
-        if (events != null && !events.isEmpty()) {
-            for (BlockEvent event : events) {
-                frame.addBlockEvent(event);
-            }
+        if (!slot.events.isEmpty()) {
+            slot.events.drainTo(recording);
         }
-        
-        recording.addFrame(frame);
     }
     
     /**
@@ -201,25 +446,84 @@ public class RecordingManager implements Listener {
      */
     private void saveRecording(PlayerRecording recording) {
         // Запись сразу попадает в список, чтобы её можно было смотреть без ожидания диска
-        completedRecordings.add(0, recording);
+        RecordingInfo info = RecordingInfo.of(recording, 0L);
+        completedRecordings.add(0, info);
+        unsavedRecordings.put(recording.getId(), recording);
         
         // Ограничиваем количество сохраненных записей
-        java.util.List<Integer> toDelete = new java.util.ArrayList<>();
         while (completedRecordings.size() > maxSavedRecordings) {
-            PlayerRecording removed = completedRecordings.remove(completedRecordings.size() - 1);
-            toDelete.add(removed.getId());
+            RecordingInfo removed = completedRecordings.remove(completedRecordings.size() - 1);
+            unsavedRecordings.remove(removed.getId());
+            cache.invalidate(removed.getId());
+            invalidateTimeline(removed.getId());
+            pipeline.offerDelete(removed.getId());
         }
         
-        // Запись на диск выполняется АСИНХРОННО: раньше сериализация тысяч кадров
-        // происходила в основном потоке и вызывала фриз сервера в момент завершения записи
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-            boolean saved = storage.saveRecording(recording);
-            if (!saved) {
-                plugin.getLogger().severe("Запись #" + recording.getId() + " не сохранилась на диск");
-                plugin.getServer().getScheduler().runTask(plugin, () -> completedRecordings.remove(recording));
+        // Кодирование и запись идут в отдельном потоке хранилища, по одной записи за раз.
+        // Если его очередь заполнена — запись ждёт в памяти и ставится позже
+        submitSave(recording);
+    }
+    
+    private void submitSave(PlayerRecording recording) {
+        if (!deferredSaves.isEmpty() || !pipeline.offerSave(recording, saved -> onSaved(recording, saved))) {
+            deferredSaves.add(recording);
+            // При выключении отложенные записи дописывает shutdown()
+            if (plugin.isEnabled()) {
+                scheduleDeferredSaves();
             }
-            for (Integer id : toDelete) {
-                storage.deleteRecording(id);
+        }
+    }
+    
+    private void scheduleDeferredSaves() {
+        if (deferredRetryScheduled) {
+            return;
+        }
+        deferredRetryScheduled = true;
+        plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
+            deferredRetryScheduled = false;
+            while (!deferredSaves.isEmpty()) {
+                PlayerRecording next = deferredSaves.peek();
+                if (!pipeline.offerSave(next, saved -> onSaved(next, saved))) {
+                    scheduleDeferredSaves();
+                    return;
+                }
+                deferredSaves.poll();
+            }
+        }, 20L);
+    }
+    
+    /**
+     * Запись сохранена (или нет). Вызывается в потоке хранилища.
+     */
+    private void onSaved(PlayerRecording recording, boolean saved) {
+        if (!saved) {
+            plugin.getLogger().severe("Запись #" + recording.getId() + " не сохранилась на диск");
+        }
+        // При выключении планировщик уже недоступен, а список записей больше никому не нужен
+        if (!plugin.isEnabled()) {
+            return;
+        }
+        plugin.getServer().getScheduler().runTask(plugin, () -> {
+            if (unsavedRecordings.remove(recording.getId()) != null && saved) {
+                // Свежую запись скорее всего откроют — оставляем её в кэше
+                cache.put(recording);
+            }
+            int index = -1;
+            for (int i = 0; i < completedRecordings.size(); i++) {
+                if (completedRecordings.get(i).getId() == recording.getId()) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            RecordingInfo stored = storage.getRecordingInfo(recording.getId());
+            if (saved && stored != null) {
+                // После сохранения становится известен размер файла
+                completedRecordings.set(index, stored);
+            } else if (!saved) {
+                completedRecordings.remove(index);
             }
         });
     }
@@ -233,7 +537,7 @@ public class RecordingManager implements Listener {
             "§7Кадров: §e%d §7| ID: §b#%d §7| §f/axv view %d",
 
             recording.getPlayerName(),
-            recording.getFrames().size(),
+            recording.getFrameCount(),
             recording.getId(),
             recording.getId()
         );
@@ -252,9 +556,9 @@ public class RecordingManager implements Listener {
     }
     
     /**
-     * Получить все завершенные записи
+     * Получить метаданные всех завершенных записей
      */
-    public List<PlayerRecording> getCompletedRecordings() {
+    public List<RecordingInfo> getCompletedRecordings() {
         // Синхронизируем с файловой системой
         syncRecordingsWithFileSystem();
         return new ArrayList<>(completedRecordings);
@@ -265,9 +569,12 @@ public class RecordingManager implements Listener {
      * Удаляет из памяти записи, файлы которых не существуют
      */
     public void syncRecordingsWithFileSystem() {
-        List<PlayerRecording> toRemove = new ArrayList<>();
+        List<RecordingInfo> toRemove = new ArrayList<>();
         
-        for (PlayerRecording recording : completedRecordings) {
+        for (RecordingInfo recording : completedRecordings) {
+            if (unsavedRecordings.containsKey(recording.getId())) {
+                continue;
+            }
             if (!storage.recordingFileExists(recording.getId())) {
                 toRemove.add(recording);
                 plugin.getLogger().info("Запись #" + recording.getId() + " удалена из памяти (файл не найден)");
@@ -288,26 +595,75 @@ public class RecordingManager implements Listener {
      */
     public void reloadRecordings() {
         completedRecordings.clear();
+        cache.clear();
         loadSavedRecordings();
     }
     
     /**
-     * Получить запись по ID
+     * Получить метаданные записи по ID (без загрузки кадров)
      */
-    public PlayerRecording getRecording(int id) {
-        return completedRecordings.stream()
-            .filter(r -> r.getId() == id)
-            .findFirst()
-            .orElse(null);
+    public RecordingInfo getRecordingInfo(int id) {
+        for (RecordingInfo info : completedRecordings) {
+            if (info.getId() == id) {
+                return info;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Запись по ID вместе с кадрами, если она уже в памяти (ещё не сохранена или в кэше).
+     * Диск не трогает: иначе {@code /axv view} читал бы файл в основном потоке.
+     *
+     * @return запись или null, если её надо читать через {@link #loadRecording(int)}
+     */
+    public PlayerRecording getLoadedRecording(int id) {
+        if (getRecordingInfo(id) == null) {
+            return null;
+        }
+        PlayerRecording unsaved = unsavedRecordings.get(id);
+        if (unsaved != null) {
+            return unsaved;
+        }
+        return cache.get(id);
+    }
+
+    /**
+     * Прочитать запись с диска и положить в кэш. Вызывается в фоновом потоке:
+     * хранилище и кэш записей потокобезопасны.
+     */
+    public PlayerRecording loadRecording(int id) {
+        PlayerRecording loaded = storage.loadRecording(id);
+        if (loaded != null) {
+            cache.put(loaded);
+        }
+        return loaded;
+    }
+    
+    public RecordingCache getRecordingCache() {
+        return cache;
     }
     
     /**
      * Удалить запись по ID
      */
     public boolean deleteRecording(int id) {
+        boolean wasUnsaved = unsavedRecordings.remove(id) != null;
+        deferredSaves.removeIf(r -> r.getId() == id);
+        cache.invalidate(id);
+        invalidateTimeline(id);
         boolean removedFromList = completedRecordings.removeIf(r -> r.getId() == id);
-        boolean removedFromStorage = storage.deleteRecording(id);
-        return removedFromList || removedFromStorage;
+        boolean fileExists = storage.recordingFileExists(id);
+        // Сам файл удаляется в потоке хранилища; ожидающее сохранение этой записи отменится
+        pipeline.offerDelete(id);
+        return removedFromList || fileExists || wasUnsaved;
+    }
+    
+    private void invalidateTimeline(int id) {
+        ReplayManager replays = plugin.getReplayManager();
+        if (replays != null) {
+            replays.invalidateTimeline(id);
+        }
     }
     
     /**
@@ -324,6 +680,50 @@ public class RecordingManager implements Listener {
         for (UUID playerId : new HashSet<>(recordings.keySet())) {
             stopRecording(playerId, "Плагин выключен");
         }
+        if (flashback != null) {
+            flashback.clear();
+        }
+        if (recorderTask != null) {
+            recorderTask.cancel();
+            recorderTask = null;
+        }
+    }
+    
+    /**
+     * Дописать на диск всё, что стоит в очереди хранилища (при выключении плагина).
+     * Основной поток ждёт ровно столько, сколько нужно потоку хранилища, но не дольше таймаута.
+     */
+    public void shutdown() {
+        stopAllRecordings();
+        try {
+            for (PlayerRecording recording : deferredSaves) {
+                pipeline.putSave(recording, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        deferredSaves.clear();
+        long started = System.currentTimeMillis();
+        if (pipeline.shutdown(shutdownTimeoutMillis)) {
+            plugin.getLogger().info("Очередь хранилища дописана за " + (System.currentTimeMillis() - started) + " мс");
+        } else {
+            plugin.getLogger().severe("Очередь хранилища не успела дописаться за "
+                + (shutdownTimeoutMillis / 1000L) + " с, осталось операций: " + pipeline.getQueueDepth());
+        }
+    }
+    
+    public StoragePipeline getStoragePipeline() {
+        return pipeline;
+    }
+    
+    /**
+     * Игрок вышел — его буфер flashback больше не нужен
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        if (flashback != null) {
+            flashback.release(event.getPlayer().getUniqueId());
+        }
     }
     
     // ========== ОБРАБОТЧИКИ СОБЫТИЙ БЛОКОВ ==========
@@ -333,35 +733,7 @@ public class RecordingManager implements Listener {
      */
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onBlockDamage(BlockDamageEvent event) {
-        Player player = event.getPlayer();
-        if (!isRecording(player)) {
-            return;
-        }
-        
-        Block block = event.getBlock();
-        String blockKey = getBlockKey(block);
-        UUID playerId = player.getUniqueId();
-        
-        // Записываем время начала ломания
-        blockBreakingProgress.computeIfAbsent(playerId, k -> new HashMap<>())
-            .put(blockKey, System.currentTimeMillis());
-        
-        // Добавляем событие начала ломания в буфер
-        BlockEvent blockEvent = new BlockEvent(
-            System.currentTimeMillis(),
-            BlockEvent.EventType.BREAK_START,
-            block.getX(),
-            block.getY(),
-            block.getZ(),
-            block.getWorld().getName(),
-            block.getType(),
-            0.1f,
-            player.getEntityId(),
-            block.getBlockData().getAsString(),
-            null
-        );
-        
-        pendingBlockEvents.computeIfAbsent(playerId, k -> new ArrayList<>()).add(blockEvent);
+        captureBlockEvent(event.getPlayer(), BlockEvent.EventType.BREAK_START, event.getBlock(), 0.1f, null);
     }
     
     /**
@@ -369,77 +741,15 @@ public class RecordingManager implements Listener {
      */
     @EventHandler(priority = EventPriority.MONITOR)
     public void onBlockDamageAbort(BlockDamageAbortEvent event) {
-        Player player = event.getPlayer();
-        if (!isRecording(player)) {
-            return;
-        }
-        
-        Block block = event.getBlock();
-        String blockKey = getBlockKey(block);
-        UUID playerId = player.getUniqueId();
-        
-        // Удаляем прогресс ломания
-        Map<String, Long> progress = blockBreakingProgress.get(playerId);
-        if (progress != null) {
-            progress.remove(blockKey);
-        }
-        
-        // Добавляем событие отмены ломания в буфер
-        BlockEvent blockEvent = new BlockEvent(
-            System.currentTimeMillis(),
-            BlockEvent.EventType.BREAK_CANCEL,
-            block.getX(),
-            block.getY(),
-            block.getZ(),
-            block.getWorld().getName(),
-            block.getType(),
-            0.0f,
-            player.getEntityId(),
-            block.getBlockData().getAsString(),
-            null
-        );
-        
-        pendingBlockEvents.computeIfAbsent(playerId, k -> new ArrayList<>()).add(blockEvent);
+        captureBlockEvent(event.getPlayer(), BlockEvent.EventType.BREAK_CANCEL, event.getBlock(), 0.0f, null);
     }
     
     /**
-     * Обр��ботка полного ломания блока
+     * Обработка полного ломания блока
      */
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onBlockBreak(BlockBreakEvent event) {
-        Player player = event.getPlayer();
-        if (!isRecording(player)) {
-            return;
-        }
-        
-        Block block = event.getBlock();
-        String blockKey = getBlockKey(block);
-        UUID playerId = player.getUniqueId();
-        
-        // Удаляем прогресс ломания
-        Map<String, Long> progress = blockBreakingProgress.get(playerId);
-        if (progress != null) {
-            progress.remove(blockKey);
-        }
-        
-        // Добавляем событие завершения ломания в буфер
-        BlockEvent blockEvent = new BlockEvent(
-            System.currentTimeMillis(),
-            BlockEvent.EventType.BREAK_COMPLETE,
-            block.getX(),
-            block.getY(),
-            block.getZ(),
-            block.getWorld().getName(),
-            block.getType(),
-            1.0f,
-            player.getEntityId(),
-            // Сохраняем ПОЛНОЕ состояние блока (поворот, waterlogged и т.д.),
-            // а не только Material — иначе при воспроизведении блоки выглядят неверно
-            block.getBlockData().getAsString(),
-            null
-        );
-        
-        pendingBlockEvents.computeIfAbsent(playerId, k -> new ArrayList<>()).add(blockEvent);
+        captureBlockEvent(event.getPlayer(), BlockEvent.EventType.BREAK_COMPLETE, event.getBlock(), 1.0f, null);
     }
     
     /**
@@ -448,46 +758,48 @@ public class RecordingManager implements Listener {
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onBlockPlace(BlockPlaceEvent event) {
         Player player = event.getPlayer();
-        if (!isRecording(player)) {
+        Block block = event.getBlockPlaced();
+        // Состояние до установки — нужно для перемотки назад
+        if (!captureBlockEvent(player, BlockEvent.EventType.PLACE, block, 1.0f, event.getBlockReplacedState())) {
             return;
         }
         
-        Block block = event.getBlockPlaced();
-        UUID playerId = player.getUniqueId();
-        
-        // Добавляем событие установки блока в буфер
-        BlockEvent blockEvent = new BlockEvent(
-            System.currentTimeMillis(),
-            BlockEvent.EventType.PLACE,
-            block.getX(),
-            block.getY(),
-            block.getZ(),
-            block.getWorld().getName(),
-            block.getType(),
-            1.0f,
-            player.getEntityId(),
-            block.getBlockData().getAsString(),
-            // Состояние до установки — нужно для перемотки назад
-            event.getBlockReplacedState().getBlockData().getAsString()
-        );
-        
-        pendingBlockEvents.computeIfAbsent(playerId, k -> new ArrayList<>()).add(blockEvent);
-        
-        plugin.getLogger().fine(String.format(
-            "Записана установка блока: %s в %d,%d,%d мире %s игроком %s",
-            block.getType(), block.getX(), block.getY(), block.getZ(),
-            block.getWorld().getName(), player.getName()
-        ));
+        if (plugin.getLogger().isLoggable(Level.FINE)) {
+            plugin.getLogger().fine(String.format(
+                "Записана установка блока: %s в %d,%d,%d мире %s игроком %s",
+                block.getType(), block.getX(), block.getY(), block.getZ(),
+                block.getWorld().getName(), player.getName()
+            ));
+        }
     }
     
     /**
-     * Создать уникальный ключ для блока
+     * Положить событие блока в буфер записи игрока, а если его не записывают — в буфер flashback.
+     * Сохраняем ПОЛНОЕ состояние блока (поворот, waterlogged и т.д.),
+     * а не только Material — иначе при воспроизведении блоки выглядят неверно.
+     *
+     * @return true, если событие куда-то записано
      */
-    private String getBlockKey(Block block) {
-        return block.getWorld().getName() + ":" +
-               block.getX() + ":" +
-               block.getY() + ":" +
-               block.getZ();
+    private boolean captureBlockEvent(Player player, BlockEvent.EventType type, Block block, float progress,
+                                      BlockState replaced) {
+        UUID playerId = player.getUniqueId();
+        RecorderSlot slot = recorderSlots.get(playerId);
+        FlashbackRing ring = slot == null && flashback != null ? flashback.get(playerId) : null;
+        if (slot == null && ring == null) {
+            return false;
+        }
+        
+        long now = System.currentTimeMillis();
+        if (ring != null) {
+            Material material = block.getType();
+            int previousState = replaced != null ? BlockEventBuffer.stateOf(replaced) : BlockStatePalette.NONE;
+            ring.addEvent(now, type, ring.worldName(block.getWorld()), block.getX(), block.getY(), block.getZ(),
+                material, progress, player.getEntityId(), BlockEventBuffer.stateOf(block, material), previousState);
+            return true;
+        }
+        
+        slot.events.capture(now, type, block, progress, replaced, player.getEntityId());
+        return true;
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,223 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.data.BlockKey;
+import io.papermc.paper.math.Position;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Возврат зрителю реального мира после просмотра, растянутый на несколько тиков.
+ *
+ * Раньше {@link VirtualBlockView#restore()} за один тик читал из мира каждый отправленный блок
+ * и слал его отдельным пакетом — на большой записи {@code /axv stop} давал заметный спайк.
+ * Теперь:
+ * <ul>
+ *   <li>в основном потоке снимаются только {@link ChunkSnapshot} затронутых чанков,
+ *       не больше {@link #SNAPSHOTS_PER_TICK} за тик;</li>
+ *   <li>сравнение «реальный блок ↔ отправленный» идёт в фоне по снимкам,
+ *       совпадающие блоки вообще не отправляются;</li>
+ *   <li>различия уходят пакетами изменения секции в пределах бюджета, который выдаёт
+ *       {@link ReplayManager} из общего {@link PacketBudget} наравне с сессиями.</li>
+ * </ul>
+ * Ведёт возврат таймер {@link ReplayManager}; пока он идёт, новая сессия того же зрителя
+ * блоки не отправляет. Снимок на несколько тиков старше мира: блок, изменённый в мире
+ * за эти тики, клиент увидит в состоянии снимка до следующей отправки чанка.
+ */
+final class BlockRestore {
+
+    private static final int SNAPSHOTS_PER_TICK = 16;
+
+    private final Plugin plugin;
+    private final Player viewer;
+    private final String world;
+    /** Чанки и их блоки подряд: блоки чанка c — [chunkStart[c], chunkStart[c + 1]). */
+    private final int[] chunkX;
+    private final int[] chunkZ;
+    private final int[] chunkStart;
+    private final long[] keys;
+    /**
+     * Что было отправлено клиенту. Разрешено из палитры заранее, в основном потоке:
+     * фоновое сравнение не должно разбирать строки состояний.
+     */
+    private final BlockData[] sent;
+
+    /** Различия, готовые к отправке: одна карта — одна секция. */
+    private final Queue<Map<Position, BlockData>> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger computing = new AtomicInteger();
+    private int nextChunk;
+    private int packetsPerTick;
+    private int bytesPerTick;
+    private boolean finished;
+
+    BlockRestore(Plugin plugin, Player viewer, String world, int[] chunkX, int[] chunkZ, int[] chunkStart,
+                 long[] keys, BlockData[] sent, int packetsPerTick, int bytesPerTick) {
+        this.plugin = plugin;
+        this.viewer = viewer;
+        this.world = world;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.chunkStart = chunkStart;
+        this.keys = keys;
+        this.sent = sent;
+        this.packetsPerTick = packetsPerTick;
+        this.bytesPerTick = bytesPerTick;
+    }
+
+    Player getViewer() {
+        return viewer;
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    /** Вес в дележе общего бюджета: пока отправлять нечего, доля не нужна. */
+    int getBudgetWeight() {
+        return finished || ready.isEmpty() ? 0 : 2;
+    }
+
+    void setBudget(int packetsPerTick, int bytesPerTick) {
+        this.packetsPerTick = packetsPerTick;
+        this.bytesPerTick = bytesPerTick;
+    }
+
+    /**
+     * Снять очередные чанки и отдать их сравнение в фон. Основной поток.
+     */
+    void tick() {
+        World current = currentWorld();
+        if (current == null) {
+            // Зритель ушёл или сменил мир — клиент и так получит реальные чанки заново
+            finish();
+            return;
+        }
+        if (nextChunk < chunkX.length) {
+            int from = nextChunk;
+            int to = Math.min(chunkX.length, from + SNAPSHOTS_PER_TICK);
+            ChunkSnapshot[] snapshots = snapshot(current, from, to);
+            nextChunk = to;
+            computing.incrementAndGet();
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                try {
+                    diff(snapshots, from, to);
+                } finally {
+                    computing.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    /**
+     * Отправить готовые различия в пределах бюджета тика. Основной поток.
+     */
+    void flush() {
+        if (finished) {
+            return;
+        }
+        World current = currentWorld();
+        if (current == null) {
+            finish();
+            return;
+        }
+        send(current, packetsPerTick, bytesPerTick);
+        if (nextChunk == chunkX.length && computing.get() == 0 && ready.isEmpty()) {
+            finish();
+        }
+    }
+
+    /**
+     * Досчитать и отправить всё оставшееся сразу, в текущем (основном) потоке.
+     * Для выключения сервера: планировщик недоступен, а спайк уже никого не волнует.
+     */
+    void finishNow() {
+        World current = currentWorld();
+        if (!finished && current != null) {
+            if (nextChunk < chunkX.length) {
+                diff(snapshot(current, nextChunk, chunkX.length), nextChunk, chunkX.length);
+                nextChunk = chunkX.length;
+            }
+            send(current, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        }
+        finish();
+    }
+
+    private World currentWorld() {
+        World current = viewer.isOnline() ? viewer.getWorld() : null;
+        return current != null && current.getName().equals(world) ? current : null;
+    }
+
+    private void finish() {
+        finished = true;
+        // Фоновый расчёт, который ещё идёт, допишет в очередь уже после нас — это просто мусор
+        ready.clear();
+    }
+
+    private ChunkSnapshot[] snapshot(World current, int from, int to) {
+        ChunkSnapshot[] snapshots = new ChunkSnapshot[to - from];
+        for (int c = from; c < to; c++) {
+            // Незагруженный чанк клиент получит заново с реальными данными
+            if (current.isChunkLoaded(chunkX[c], chunkZ[c])) {
+                snapshots[c - from] = current.getChunkAt(chunkX[c], chunkZ[c]).getChunkSnapshot(false, false, false);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Сравнить отправленное с реальным по снимкам и сложить различия по секциям.
+     * Работает и в фоне: трогает только снимки и свои массивы.
+     */
+    private void diff(ChunkSnapshot[] snapshots, int from, int to) {
+        Map<Long, Map<Position, BlockData>> sections = new HashMap<>();
+        for (int c = from; c < to; c++) {
+            ChunkSnapshot snapshot = snapshots[c - from];
+            if (snapshot == null) {
+                continue;
+            }
+            for (int i = chunkStart[c]; i < chunkStart[c + 1]; i++) {
+                long key = keys[i];
+                int x = BlockKey.x(key);
+                int y = BlockKey.y(key);
+                int z = BlockKey.z(key);
+                BlockData real = snapshot.getBlockData(x & 15, y, z & 15);
+                if (real.equals(sent[i])) {
+                    continue;
+                }
+                sections.computeIfAbsent(BlockKey.pack(x >> 4, y >> 4, z >> 4), section -> new HashMap<>())
+                        .put(Position.block(x, y, z), real);
+            }
+        }
+        ready.addAll(sections.values());
+    }
+
+    private void send(World current, int packetLimit, int byteLimit) {
+        int packets = 0;
+        long bytes = 0L;
+        while (packets < packetLimit && bytes < byteLimit) {
+            Map<Position, BlockData> changes = ready.poll();
+            if (changes == null) {
+                return;
+            }
+            if (changes.size() == 1) {
+                Map.Entry<Position, BlockData> change = changes.entrySet().iterator().next();
+                Position position = change.getKey();
+                viewer.sendBlockChange(new Location(current, position.blockX(), position.blockY(), position.blockZ()),
+                        change.getValue());
+            } else {
+                viewer.sendMultiBlockChange(changes);
+            }
+            packets++;
+            bytes += VirtualBlockView.SECTION_HEADER_BYTES + changes.size() * VirtualBlockView.SECTION_ENTRY_BYTES;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.data.FrameStore;
+
+/**
+ * Заранее посчитанная траектория камеры с шагом в один тик (50 мс).
+ *
+ * Обычный {@link ReplayTimeline#sample} на каждый тик каждого зрителя делает бинарный поиск
+ * кадра, сравнивает миры, проверяет разрывы и считает сплайн. Трек вычисляет всё это один раз
+ * при построении таймлинии и хранит результат в примитивных массивах:
+ * <ul>
+ *   <li>момент, кратный шагу, — просто чтение из массивов;</li>
+ *   <li>между точками трека — линейная интерполяция соседних точек (сплайн уже учтён в них);</li>
+ *   <li>у разрывов (телепорт, другой мир) и вне трека — обычная интерполяция по кадрам.</li>
+ * </ul>
+ * Неизменяем после построения, делится между сессиями вместе с таймлинией.
+ */
+final class CameraTrack {
+
+    static final long STEP_MS = 50L;
+
+    private static final byte SNEAKING = 1;
+    private static final byte SPRINTING = 2;
+    private static final byte FLYING = 4;
+    private static final byte DISCONTINUITY = 8;
+
+    private final FrameStore frames;
+    private final int size;
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    private final float[] yaw;
+    private final float[] pitch;
+    private final float[] health;
+    private final byte[] food;
+    private final byte[] flags;
+    /** Индекс мира в {@link FrameStore#getWorldName(int)}, -1 — точки нет. */
+    private final int[] worlds;
+    private final int[] frameIndexes;
+
+    CameraTrack(ReplayTimeline timeline, FrameStore frames) {
+        this.frames = frames;
+        this.size = (int) Math.min(Integer.MAX_VALUE - 1L, timeline.getDuration() / STEP_MS + 1L);
+        this.x = new double[size];
+        this.y = new double[size];
+        this.z = new double[size];
+        this.yaw = new float[size];
+        this.pitch = new float[size];
+        this.health = new float[size];
+        this.food = new byte[size];
+        this.flags = new byte[size];
+        this.worlds = new int[size];
+        this.frameIndexes = new int[size];
+
+        ReplayTimeline.Sample sample = new ReplayTimeline.Sample();
+        for (int k = 0; k < size; k++) {
+            timeline.interpolate(k * STEP_MS, sample);
+            x[k] = sample.x;
+            y[k] = sample.y;
+            z[k] = sample.z;
+            yaw[k] = sample.yaw;
+            pitch[k] = sample.pitch;
+            health[k] = (float) sample.health;
+            food[k] = (byte) sample.foodLevel;
+            flags[k] = (byte) ((sample.sneaking ? SNEAKING : 0) | (sample.sprinting ? SPRINTING : 0)
+                    | (sample.flying ? FLYING : 0) | (sample.discontinuity ? DISCONTINUITY : 0));
+            worlds[k] = sample.world == null ? -1 : frames.getWorldId(sample.frameIndex);
+            frameIndexes[k] = sample.frameIndex;
+        }
+    }
+
+    /**
+     * Заполнить out из трека. false — момент вне трека или рядом с разрывом,
+     * тогда нужна обычная интерполяция по кадрам.
+     */
+    boolean sample(long time, ReplayTimeline.Sample out) {
+        if (time < 0L) {
+            return false;
+        }
+        long k = time / STEP_MS;
+        if (k >= size) {
+            return false;
+        }
+        int i = (int) k;
+        long offset = time - k * STEP_MS;
+        if (offset == 0L) {
+            copy(i, out);
+            return worlds[i] >= 0;
+        }
+
+        // Между точками больше одной границы кадров — внутри мог спрятаться телепорт,
+        // который ни одна из точек не видит; такие места считаем по кадрам
+        int j = i + 1;
+        if (j >= size || worlds[i] < 0 || worlds[i] != worlds[j]
+                || ((flags[i] | flags[j]) & DISCONTINUITY) != 0
+                || frameIndexes[j] - frameIndexes[i] > 1) {
+            return false;
+        }
+        double t = (double) offset / (double) STEP_MS;
+        int nearest = t < 0.5 ? i : j;
+        copy(nearest, out);
+        out.frameIndex = frameIndexes[i];
+        out.x = x[i] + (x[j] - x[i]) * t;
+        out.y = y[i] + (y[j] - y[i]) * t;
+        out.z = z[i] + (z[j] - z[i]) * t;
+        out.yaw = ReplayTimeline.lerpAngle(yaw[i], yaw[j], (float) t);
+        out.pitch = pitch[i] + (pitch[j] - pitch[i]) * (float) t;
+        out.health = health[i] + (health[j] - health[i]) * t;
+        return true;
+    }
+
+    private void copy(int i, ReplayTimeline.Sample out) {
+        byte f = flags[i];
+        out.world = worlds[i] < 0 ? null : frames.getWorldName(worlds[i]);
+        out.x = x[i];
+        out.y = y[i];
+        out.z = z[i];
+        out.yaw = yaw[i];
+        out.pitch = pitch[i];
+        out.sneaking = (f & SNEAKING) != 0;
+        out.sprinting = (f & SPRINTING) != 0;
+        out.flying = (f & FLYING) != 0;
+        out.discontinuity = (f & DISCONTINUITY) != 0;
+        out.health = health[i];
+        out.foodLevel = food[i];
+        out.frameIndex = frameIndexes[i];
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.antixrayviewer.replay;
+
+import java.util.Arrays;
+
+/**
+ * Хеш-таблица long → int с открытой адресацией (линейное пробирование).
+ *
+ * Замена {@code HashMap<BlockRef, ...>} для больших наборов блоков: нет узлов, упаковки
+ * Long/Integer и объектов-ключей — только два массива. Удаления не поддерживаются:
+ * блоки в слое зрителя только добавляются, а сбрасывается слой целиком через {@link #clear}.
+ * Значения — неотрицательные числа, {@link #get} возвращает -1, если ключа нет.
+ */
+final class LongIntMap {
+
+    private static final int EMPTY = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    LongIntMap() {
+        this(16);
+    }
+
+    LongIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(8, expected * 4 / 3)) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        // Перемешивание из SplitMix64: соседние координаты не должны попадать в соседние ячейки
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    int get(long key) {
+        int i = hash(key) & mask;
+        while (values[i] != EMPTY) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Записать значение (неотрицательное) для ключа, перезаписав прежнее.
+     */
+    void put(long key, int value) {
+        int i = hash(key) & mask;
+        while (values[i] != EMPTY) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        // Заполненность не больше 3/4 — цепочки пробирования остаются короткими
+        if (++size * 4 > keys.length * 3) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == EMPTY) {
+                continue;
+            }
+            int j = hash(oldKeys[i]) & mask;
+            while (values[j] != EMPTY) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(values, EMPTY);
+            size = 0;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+}
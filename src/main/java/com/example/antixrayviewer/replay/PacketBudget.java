@@ -0,0 +1,227 @@
+package com.example.antixrayviewer.replay;
+
+import org.bukkit.Server;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Адаптивный бюджет отправки виртуальных блоков.
+ *
+ * Раньше у каждой сессии было фиксированное число обновлений на тик: на лагающем сервере
+ * это добивало TPS, а на пустом сервере зря тормозило перемотку. Теперь бюджет сессии
+ * на каждом тике выбирается между min и max из конфига:
+ * <ul>
+ *   <li>по нагрузке сервера — среднему времени тика (MSPT): до {@link #MSPT_RELAXED} мс
+ *       полный бюджет, к {@link #MSPT_OVERLOADED} мс сходит к минимуму;</li>
+ *   <li>по соединению зрителя — ping: медленному клиенту пачка пакетов только увеличит задержку;</li>
+ *   <li>общим лимитом на все сессии: он делится по весам ({@link ReplaySession#getBudgetWeight()}),
+ *       сессии без очереди ничего не получают, а недобранное одной сессией достаётся остальным.</li>
+ * </ul>
+ * Общий лимит не превышается никогда. Каждая сессия с очередью получает хотя бы минимум,
+ * пока минимумы всех влезают в лимит; если зрителей больше, минимум в этом тике получают
+ * столько сессий, сколько влезает, по кругу, а остальные ждут своей очереди.
+ * Возвраты реального мира после просмотра ({@link BlockRestore}) получают долю из того же
+ * общего лимита, что и сессии.
+ * Используется только из основного потока.
+ */
+public final class PacketBudget {
+
+    private static final double MSPT_RELAXED = 30.0;
+    private static final double MSPT_OVERLOADED = 50.0;
+    private static final int PING_RELAXED = 100;
+    private static final int PING_SLOW = 400;
+    /** Даже при плохом ping зритель получает хотя бы такую долю адаптивного бюджета. */
+    private static final double MIN_PING_FACTOR = 0.25;
+
+    private final Server server;
+    private final int minPackets;
+    private final int maxPackets;
+    private final int minBytes;
+    private final int maxBytes;
+    private final int globalPackets;
+    private final int globalBytes;
+
+    /** С какой сессии с очередью начинать раздачу минимумов, когда на всех не хватает. */
+    private int rotation;
+
+    /** Нагрузка сервера считается один раз за тик сервера, а не на каждую сессию. */
+    private int loadTick = Integer.MIN_VALUE;
+    private double mspt;
+    private double loadFactor = 1.0;
+
+    /** Рабочие массивы распределения, переиспользуются между тиками. */
+    private int[] weights = new int[8];
+    private int[] pings = new int[8];
+    private int[] wantPackets = new int[8];
+    private int[] wantBytes = new int[8];
+    private int[] givenPackets = new int[8];
+    private int[] givenBytes = new int[8];
+    private int[] fundedWeights = new int[8];
+
+    public PacketBudget(Server server, int minPackets, int maxPackets,
+                        int minBytes, int maxBytes, int globalPackets, int globalBytes) {
+        this.server = server;
+        this.minPackets = Math.max(1, minPackets);
+        this.maxPackets = Math.max(this.minPackets, maxPackets);
+        this.minBytes = Math.max(1024, minBytes);
+        this.maxBytes = Math.max(this.minBytes, maxBytes);
+        this.globalPackets = Math.max(this.minPackets, globalPackets);
+        this.globalBytes = Math.max(this.minBytes, globalBytes);
+    }
+
+    /**
+     * Разделить бюджет текущего тика между сессиями и возвратами и выставить его каждому.
+     */
+    void distribute(List<ReplaySession> sessions, List<BlockRestore> restores) {
+        int count = sessions.size() + restores.size();
+        if (weights.length < count) {
+            int capacity = Math.max(count, weights.length * 2);
+            weights = Arrays.copyOf(weights, capacity);
+            pings = Arrays.copyOf(pings, capacity);
+        }
+        int sessionCount = sessions.size();
+        for (int i = 0; i < sessionCount; i++) {
+            ReplaySession session = sessions.get(i);
+            weights[i] = session.getBudgetWeight();
+            pings[i] = session.getViewer().getPing();
+        }
+        for (int i = sessionCount; i < count; i++) {
+            BlockRestore restore = restores.get(i - sessionCount);
+            weights[i] = restore.getBudgetWeight();
+            pings[i] = restore.getViewer().getPing();
+        }
+        allocate(count, weights, pings);
+        for (int i = 0; i < sessionCount; i++) {
+            sessions.get(i).getBlocks().setBudget(getPackets(i), getBytes(i));
+        }
+        for (int i = sessionCount; i < count; i++) {
+            restores.get(i - sessionCount).setBudget(getPackets(i), getBytes(i));
+        }
+    }
+
+    /**
+     * Посчитать бюджет count сессий по их весам и ping; результат — {@link #getPackets(int)}
+     * и {@link #getBytes(int)}.
+     */
+    void allocate(int count, int[] sessionWeights, int[] sessionPings) {
+        if (wantPackets.length < count) {
+            int capacity = Math.max(count, wantPackets.length * 2);
+            wantPackets = Arrays.copyOf(wantPackets, capacity);
+            wantBytes = Arrays.copyOf(wantBytes, capacity);
+            givenPackets = Arrays.copyOf(givenPackets, capacity);
+            givenBytes = Arrays.copyOf(givenBytes, capacity);
+            fundedWeights = Arrays.copyOf(fundedWeights, capacity);
+        }
+
+        int active = 0;
+        for (int i = 0; i < count; i++) {
+            if (sessionWeights[i] > 0) {
+                active++;
+            }
+        }
+        // Сколько минимумов влезает в общий лимит; если не всем — начинаем с того, до кого
+        // не дошли в прошлый раз
+        int funded = Math.min(active, Math.min(globalPackets / minPackets, globalBytes / minBytes));
+        int first = funded < active ? rotation % active : 0;
+        rotation = funded < active ? first + funded : 0;
+
+        double load = loadFactor();
+        int totalWeight = 0;
+        int order = 0;
+        for (int i = 0; i < count; i++) {
+            fundedWeights[i] = 0;
+            if (sessionWeights[i] > 0 && (order++ - first + active) % active < funded) {
+                fundedWeights[i] = sessionWeights[i];
+                totalWeight += sessionWeights[i];
+            }
+            // Минимум выдаётся отдельно, по весам делится только то, что сверх него
+            double factor = load * pingFactor(sessionPings[i]);
+            wantPackets[i] = (int) Math.round((maxPackets - minPackets) * factor);
+            wantBytes[i] = (int) Math.round((maxBytes - minBytes) * factor);
+        }
+
+        share(count, fundedWeights, totalWeight, globalPackets - funded * minPackets, wantPackets, givenPackets);
+        share(count, fundedWeights, totalWeight, globalBytes - funded * minBytes, wantBytes, givenBytes);
+        for (int i = 0; i < count; i++) {
+            if (fundedWeights[i] > 0) {
+                givenPackets[i] += minPackets;
+                givenBytes[i] += minBytes;
+            }
+        }
+    }
+
+    /** Пакетов на тик для сессии i последнего распределения; 0 — в этом тике не отправляет. */
+    int getPackets(int i) {
+        return givenPackets[i];
+    }
+
+    /** Байт на тик для сессии i последнего распределения. */
+    int getBytes(int i) {
+        return givenBytes[i];
+    }
+
+    /**
+     * Доли общего лимита по весам, не больше желаемого каждой сессией. То, что сессия
+     * не взяла, за второй проход делится между теми, кому не хватило.
+     */
+    private static void share(int count, int[] weights, int totalWeight, int global, int[] want, int[] given) {
+        if (totalWeight == 0) {
+            Arrays.fill(given, 0, count, 0);
+            return;
+        }
+        int left = global;
+        int hungryWeight = 0;
+        for (int i = 0; i < count; i++) {
+            given[i] = (int) Math.min(want[i], (long) global * weights[i] / totalWeight);
+            left -= given[i];
+            if (given[i] < want[i]) {
+                hungryWeight += weights[i];
+            }
+        }
+        if (left <= 0 || hungryWeight == 0) {
+            return;
+        }
+        int spare = left;
+        for (int i = 0; i < count; i++) {
+            if (given[i] < want[i]) {
+                given[i] = (int) Math.min(want[i], given[i] + (long) spare * weights[i] / hungryWeight);
+            }
+        }
+    }
+
+    private double loadFactor() {
+        int tick = server.getCurrentTick();
+        if (tick != loadTick) {
+            loadTick = tick;
+            mspt = server.getAverageTickTime();
+            loadFactor = 1.0 - clamp((mspt - MSPT_RELAXED) / (MSPT_OVERLOADED - MSPT_RELAXED));
+        }
+        return loadFactor;
+    }
+
+    private static double pingFactor(int ping) {
+        double slow = clamp((double) (ping - PING_RELAXED) / (PING_SLOW - PING_RELAXED));
+        return 1.0 - slow * (1.0 - MIN_PING_FACTOR);
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0.0, Math.min(1.0, value));
+    }
+
+    public double getMspt() {
+        return mspt;
+    }
+
+    public double getLoadFactor() {
+        return loadFactor;
+    }
+
+    public int getGlobalPackets() {
+        return globalPackets;
+    }
+
+    public int getGlobalBytes() {
+        return globalBytes;
+    }
+}
@@ -2,6 +2,8 @@ package com.example.antixrayviewer.replay;
 
 import com.example.antixrayviewer.AntiXrayViewer;
 import com.example.antixrayviewer.data.PlayerRecording;
+import com.example.antixrayviewer.data.RecordingInfo;
+import com.example.antixrayviewer.managers.RecordingManager;
 import io.papermc.paper.event.packet.PlayerChunkLoadEvent;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
@@ -10,6 +12,7 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerGameModeChangeEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -17,30 +20,171 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Реестр активных сессий просмотра и гарантийная очистка.
  *
  * Раньше сессии хранились в классе команды и никогда не чистились при выходе игрока:
  * виртуальные блоки и режим наблюдателя могли "зависнуть" навсегда.
+ *
+ * Менеджер же ведёт все сессии одним таймером: вместо N независимых задач — один проход
+ * за тик, общий бюджет пакетов делится между сессиями по весам, а отправка блоков
+ * ограничена по времени CPU. Сессии, до которых очередь не дошла, идут первыми в следующем тике.
+ * Тот же таймер ведёт возвраты реального мира ({@link BlockRestore}) после просмотра:
+ * их пакеты идут из того же общего бюджета.
  */
 public final class ReplayManager implements Listener {
 
     private final AntiXrayViewer plugin;
     private final Map<UUID, ReplaySession> sessions = new HashMap<>();
+    /** Незавершённые возвраты реального мира завершённых сессий. */
+    private final List<BlockRestore> restores = new ArrayList<>();
+    private final TimelineCache timelines;
+    private final PacketBudget budget;
+    private final long driverBudgetNanos;
+
+    /** Общий таймер всех сессий и возвратов; запускается с первой сессией и гасится с последней. */
+    private BukkitTask driver;
+    /** Снимок сессий текущего тика, переиспользуется. */
+    private final List<ReplaySession> ticking = new ArrayList<>();
+    /** С какой сессии начинать отправку блоков в следующем тике. */
+    private int flushOffset;
+    private long lastDriverNanos;
+    private int lastDeferred;
 
     public ReplayManager(AntiXrayViewer plugin) {
         this.plugin = plugin;
+        this.timelines = new TimelineCache(
+                task -> plugin.getServer().getScheduler().runTaskAsynchronously(plugin, task),
+                plugin.getConfig().getInt("replay.performance.timeline-cache-size", 4),
+                plugin.getConfig().getBoolean("replay.performance.camera-track", true));
+        this.budget = new PacketBudget(plugin.getServer(),
+                plugin.getConfig().getInt("replay.performance.block-packets-per-tick-min", 8),
+                plugin.getConfig().getInt("replay.performance.block-packets-per-tick", 64),
+                plugin.getConfig().getInt("replay.performance.block-bytes-per-tick-min", 4096),
+                plugin.getConfig().getInt("replay.performance.block-bytes-per-tick", 32768),
+                plugin.getConfig().getInt("replay.performance.global-packets-per-tick", 256),
+                plugin.getConfig().getInt("replay.performance.global-bytes-per-tick", 131072));
+        this.driverBudgetNanos = (long) (Math.max(0.5,
+                plugin.getConfig().getDouble("replay.performance.driver-budget-ms", 5.0)) * 1_000_000.0);
     }
 
-    public ReplaySession start(Player viewer, PlayerRecording recording) {
+    /**
+     * Начать просмотр. Запись может ещё читаться с диска, а таймлиния — строиться:
+     * тогда сессия ждёт их в режиме загрузки.
+     */
+    public ReplaySession start(Player viewer, RecordingInfo info) {
         stop(viewer);
-        ReplaySession session = new ReplaySession(plugin, viewer, recording);
+        RecordingManager recordings = plugin.getRecordingManager();
+        int id = info.getId();
+        PlayerRecording loaded = recordings.getLoadedRecording(id);
+        CompletableFuture<ReplayTimeline> timeline = loaded != null
+                ? timelines.acquire(loaded)
+                : timelines.acquire(id, () -> recordings.loadRecording(id));
+        ReplaySession session = new ReplaySession(plugin, viewer, info, timeline, timelines);
         sessions.put(viewer.getUniqueId(), session);
         session.start();
+        startDriver();
         return session;
     }
 
+    /**
+     * Принять возврат реального мира завершённой сессии. Пока он идёт, новая сессия
+     * того же зрителя блоки не отправляет — иначе возврат затёр бы её блоки.
+     */
+    void restore(BlockRestore restore) {
+        if (!plugin.isEnabled()) {
+            // Сервер выключается: таймеров уже не будет
+            restore.finishNow();
+            return;
+        }
+        restores.add(restore);
+        startDriver();
+    }
+
+    public boolean isRestoring(Player viewer) {
+        for (BlockRestore restore : restores) {
+            if (restore.getViewer().getUniqueId().equals(viewer.getUniqueId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void startDriver() {
+        if (driver == null) {
+            driver = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tickSessions, 1L, 1L);
+        }
+    }
+
+    /**
+     * Один тик всех сессий и возвратов: воспроизведение, дележ бюджета, отправка блоков.
+     */
+    private void tickSessions() {
+        long started = System.nanoTime();
+        ticking.clear();
+        ticking.addAll(sessions.values());
+        for (ReplaySession session : ticking) {
+            session.tick();
+        }
+        // Сессия могла завершиться сама (зритель вышел, ошибка загрузки) — убираем её из реестра
+        ticking.removeIf(ReplaySession::isStopped);
+        sessions.values().removeIf(ReplaySession::isStopped);
+        for (BlockRestore restore : restores) {
+            restore.tick();
+        }
+        restores.removeIf(BlockRestore::isFinished);
+        if (ticking.isEmpty() && restores.isEmpty()) {
+            stopDriver();
+            return;
+        }
+
+        budget.distribute(ticking, restores);
+
+        // Возвраты первыми: они короткие, а сессия их зрителя ждёт окончания
+        for (BlockRestore restore : restores) {
+            restore.flush();
+        }
+        restores.removeIf(BlockRestore::isFinished);
+        for (int i = ticking.size() - 1; i >= 0; i--) {
+            if (isRestoring(ticking.get(i).getViewer())) {
+                ticking.remove(i);
+            }
+        }
+        if (ticking.isEmpty()) {
+            lastDeferred = 0;
+            lastDriverNanos = System.nanoTime() - started;
+            return;
+        }
+
+        // Отправка блоков — самая дорогая часть; по кругу с плавающего начала,
+        // чтобы при нехватке времени откладывались каждый раз разные сессии
+        int count = ticking.size();
+        int start = flushOffset % count;
+        int flushed = 0;
+        while (flushed < count) {
+            ticking.get((start + flushed) % count).flushBlocks();
+            flushed++;
+            if (System.nanoTime() - started > driverBudgetNanos) {
+                break;
+            }
+        }
+        lastDeferred = count - flushed;
+        flushOffset = lastDeferred > 0 ? start + flushed : start + 1;
+        lastDriverNanos = System.nanoTime() - started;
+    }
+
+    private void stopDriver() {
+        if (driver != null) {
+            driver.cancel();
+            driver = null;
+        }
+        ticking.clear();
+        lastDriverNanos = 0L;
+        lastDeferred = 0;
+    }
+
     public ReplaySession get(Player viewer) {
         ReplaySession session = sessions.get(viewer.getUniqueId());
         if (session != null && session.isStopped()) {
@@ -76,6 +220,41 @@ public final class ReplayManager implements Listener {
         for (ReplaySession session : copy) {
             session.stop(false);
         }
+        for (BlockRestore restore : restores) {
+            restore.finishNow();
+        }
+        restores.clear();
+        stopDriver();
+        timelines.clear();
+    }
+
+    /**
+     * Запись удалена — её таймлиния больше не должна выдаваться новым сессиям.
+     */
+    public void invalidateTimeline(int recordingId) {
+        timelines.invalidate(recordingId);
+    }
+
+    public PacketBudget getPacketBudget() {
+        return budget;
+    }
+
+    /** Сколько занял последний тик всех сессий, нс. */
+    public long getLastDriverNanos() {
+        return lastDriverNanos;
+    }
+
+    /** Сколько сессий в последнем тике не успели отправить блоки и ждут следующего. */
+    public int getLastDeferred() {
+        return lastDeferred;
+    }
+
+    public double getDriverBudgetMs() {
+        return driverBudgetNanos / 1_000_000.0;
+    }
+
+    public TimelineCache getTimelineCache() {
+        return timelines;
     }
 
     public Collection<ReplaySession> getSessions() {
@@ -107,7 +286,7 @@ public final class ReplayManager implements Listener {
     @EventHandler
     public void onWorldChange(PlayerChangedWorldEvent event) {
         ReplaySession session = sessions.get(event.getPlayer().getUniqueId());
-        if (session == null) {
+        if (session == null || session.isLoading()) {
             return;
         }
         // Смена мира вручную — виртуальные блоки больше не имеют смысла
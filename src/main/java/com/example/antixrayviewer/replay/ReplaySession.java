@@ -2,6 +2,7 @@ package com.example.antixrayviewer.replay;
 
 import com.example.antixrayviewer.AntiXrayViewer;
 import com.example.antixrayviewer.data.PlayerRecording;
+import com.example.antixrayviewer.data.RecordingInfo;
 import net.kyori.adventure.bossbar.BossBar;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.event.ClickEvent;
@@ -15,13 +16,12 @@ import org.bukkit.Sound;
 import org.bukkit.World;
 import org.bukkit.block.data.BlockData;
 import org.bukkit.entity.Player;
-import org.bukkit.scheduler.BukkitTask;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 
 /**
  * Сессия воспроизведения записи для одного зрителя.
@@ -31,31 +31,48 @@ import java.util.Set;
  *   <li>время — в миллисекундах, а не в индексах кадров: появилась перемотка, скорости,
  *       обратное воспроизведение и отрезки;</li>
  *   <li>блоки синхронизируются инкрементально и только для зрителя;</li>
- *   <li>все эффекты (частицы, звуки, трещины) отправляются лично зрителю.</li>
+ *   <li>все эффекты (частицы, звуки, трещины) отправляются лично зрителю;</li>
+ *   <li>таймлиния строится в фоне: пока её нет, сессия стоит в режиме загрузки,
+ *       и основной поток не ждёт разбора записи;</li>
+ *   <li>своего таймера у сессии нет: все сессии ведёт {@link ReplayManager}, он же делит
+ *       между ними бюджет отправки блоков.</li>
  * </ul>
  */
 public final class ReplaySession {
 
     private static final long TICK_MS = 50L;
-    private static final int MAX_BACKWARD_STEPS = 512;
     private static final int TIMELINE_CELLS = 32;
+    /** Раньше этого загрузка не заканчивается: телепорт и первые чанки должны дойти до клиента. */
+    private static final int MIN_WARMUP_TICKS = 3;
 
     private final AntiXrayViewer plugin;
     private final Player viewer;
-    private final PlayerRecording recording;
-    private final ReplayTimeline timeline;
+    /** Сведения из каталога: сами кадры могут ещё читаться с диска вместе с таймлинией. */
+    private final RecordingInfo info;
+    /** Общий кэш, из которого взята таймлиния: при остановке её надо вернуть. */
+    private final TimelineCache timelines;
+    private final CompletableFuture<ReplayTimeline> pendingTimeline;
     private final VirtualBlockView blocks;
-    private final ReplayCamera camera;
+    /** null, пока таймлиния строится. */
+    private ReplayTimeline timeline;
+    private ReplayTimeline.SpanCursor spans;
+    private ReplayTimeline.StateDiff stateDiff;
+    private ReplayCamera camera;
 
     private final boolean particlesEnabled;
     private final boolean soundsEnabled;
     private final double maxSpeed;
     private final double breakAnimationDistanceSq;
 
-    private final Map<BlockRef, Integer> activeDamage = new HashMap<>();
-    private final Set<BlockRef> damageScratch = new HashSet<>();
+    /** Отправленная стадия трещины и тик, в котором интервал последний раз был активен. */
+    private static final class Damage {
+        int stage;
+        long seenTick;
+    }
+
+    private final Map<BlockRef, Damage> activeDamage = new HashMap<>();
+    private long damageTick;
 
-    private BukkitTask task;
     private BossBar bossBar;
 
     private long clock;
@@ -67,40 +84,44 @@ public final class ReplaySession {
     private int cursor;
     private int tickCounter;
     private boolean stopped;
-    /** Сколько тиков ещё ждём загрузки мира клиентом перед стартом воспроизведения. */
+    /** Сколько тиков ещё ждём загрузки мира клиентом перед стартом воспроизведения (не больше). */
     private int warmupTicks;
+    private int warmupElapsed;
+    /**
+     * В очереди блоков есть изменения воспроизведения, перемотки или пересборки,
+     * которые ещё не ушли. На паузе долю бюджета получает только такая сессия.
+     */
+    private boolean catchingUp;
 
     private Location returnLocation;
     private GameMode returnGameMode;
     private boolean restoringGameMode;
 
-    public ReplaySession(AntiXrayViewer plugin, Player viewer, PlayerRecording recording) {
+    /**
+     * @param timeline таймлиния записи; если записи нет в памяти, future сначала читает её с диска,
+     *                 и всё это время сессия остаётся в режиме загрузки
+     */
+    public ReplaySession(AntiXrayViewer plugin, Player viewer, RecordingInfo info,
+                         CompletableFuture<ReplayTimeline> timeline, TimelineCache timelines) {
         this.plugin = plugin;
         this.viewer = viewer;
-        this.recording = recording;
-        this.timeline = new ReplayTimeline(recording);
+        this.info = info;
+        this.pendingTimeline = timeline;
+        this.timelines = timelines;
 
-        int updatesPerTick = plugin.getConfig().getInt("replay.performance.block-updates-per-tick", 256);
+        int packetsPerTick = plugin.getConfig().getInt("replay.performance.block-packets-per-tick", 64);
+        int bytesPerTick = plugin.getConfig().getInt("replay.performance.block-bytes-per-tick", 32768);
         double renderDistance = plugin.getConfig().getDouble("replay.performance.block-render-distance", 96.0);
         double breakDistance = plugin.getConfig().getDouble("replay.performance.break-animation-distance", 48.0);
-        this.blocks = new VirtualBlockView(plugin, viewer, updatesPerTick, renderDistance);
+        this.blocks = new VirtualBlockView(plugin, viewer, packetsPerTick, bytesPerTick, renderDistance);
         this.breakAnimationDistanceSq = breakDistance * breakDistance;
 
-        CameraMode defaultMode = CameraMode.parse(
-                plugin.getConfig().getString("replay.camera.default-mode", "FIRST_PERSON"), CameraMode.FIRST_PERSON);
-        double smoothing = plugin.getConfig().getDouble("replay.camera.smoothing", 0.35);
-        double thirdPerson = plugin.getConfig().getDouble("replay.camera.third-person-distance", 4.0);
-        boolean showAvatar = plugin.getConfig().getBoolean("replay.camera.show-avatar", true);
-        this.camera = new ReplayCamera(plugin, viewer, timeline, recording.getPlayerId(), recording.getPlayerName(),
-                defaultMode, smoothing, thirdPerson, showAvatar);
-
         this.particlesEnabled = plugin.getConfig().getBoolean("replay.playback.particles", true);
         this.soundsEnabled = plugin.getConfig().getBoolean("replay.playback.sounds", true);
         this.maxSpeed = Math.max(1.0, plugin.getConfig().getDouble("replay.playback.max-speed", 8.0));
         this.speed = clampSpeed(plugin.getConfig().getDouble("replay.playback.default-speed", 1.0));
 
         this.rangeStart = 0L;
-        this.rangeEnd = timeline.getDuration();
     }
 
     // ===================== Жизненный цикл =====================
@@ -115,6 +136,47 @@ public final class ReplaySession {
             restoringGameMode = false;
         }
 
+        bossBar = BossBar.bossBar(Component.text("Загрузка записи…"), 0f, BossBar.Color.YELLOW, BossBar.Overlay.NOTCHED_20);
+        viewer.showBossBar(bossBar);
+
+        if (pendingTimeline.isDone()) {
+            // Таймлиния уже в кэше — стартуем сразу, без лишнего тика ожидания
+            onTimelineBuilt(pendingTimeline.getNow(null), null);
+        } else {
+            pendingTimeline.whenComplete((built, error) -> {
+                if (plugin.isEnabled()) {
+                    plugin.getServer().getScheduler().runTask(plugin, () -> onTimelineBuilt(built, error));
+                }
+            });
+        }
+    }
+
+    /**
+     * Таймлиния готова (основной поток): переносим камеру, накладываем блоки и уходим в прогрев.
+     */
+    private void onTimelineBuilt(ReplayTimeline built, Throwable error) {
+        if (stopped) {
+            return;
+        }
+        if (built == null) {
+            plugin.getLogger().log(Level.SEVERE, "Не удалось подготовить таймлинию записи #" + info.getId(), error);
+            viewer.sendMessage(Component.text("✖ Не удалось подготовить запись #" + info.getId() + ".", NamedTextColor.RED));
+            stop(false);
+            return;
+        }
+        this.timeline = built;
+        this.spans = built.newSpanCursor();
+        this.stateDiff = built.newStateDiff();
+        this.rangeEnd = built.getDuration();
+
+        CameraMode defaultMode = CameraMode.parse(
+                plugin.getConfig().getString("replay.camera.default-mode", "FIRST_PERSON"), CameraMode.FIRST_PERSON);
+        double smoothing = plugin.getConfig().getDouble("replay.camera.smoothing", 0.35);
+        double thirdPerson = plugin.getConfig().getDouble("replay.camera.third-person-distance", 4.0);
+        boolean showAvatar = plugin.getConfig().getBoolean("replay.camera.show-avatar", true);
+        this.camera = new ReplayCamera(plugin, viewer, built, info.getPlayerId(), info.getPlayerName(),
+                defaultMode, smoothing, thirdPerson, showAvatar);
+
         clock = rangeStart;
 
         // ПОРЯДОК ВАЖЕН: сначала переносим камеру, и только потом считаем блоки.
@@ -125,17 +187,12 @@ public final class ReplaySession {
         applyFullState(clock);
         blocks.resync();
 
-        bossBar = BossBar.bossBar(Component.text("Загрузка записи…"), 0f, BossBar.Color.YELLOW, BossBar.Overlay.NOTCHED_20);
-        viewer.showBossBar(bossBar);
-
         // Пока клиент после телепорта получает чанки, воспроизведение стоит:
         // пакеты изменения блоков, отправленные раньше самого чанка, клиент затирает.
         warmupTicks = Math.max(0, plugin.getConfig().getInt("replay.performance.start-delay-ticks", 40));
 
         updateFooter();
         sendPanel();
-
-        task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
     }
 
     public void stop() {
@@ -148,14 +205,15 @@ public final class ReplaySession {
         }
         stopped = true;
 
-        if (task != null) {
-            task.cancel();
-            task = null;
-        }
-
         clearAllBreakAnimations();
-        blocks.restore();
-        camera.cleanup();
+        BlockRestore restore = blocks.restore();
+        if (restore != null) {
+            plugin.getReplayManager().restore(restore);
+        }
+        if (camera != null) {
+            camera.cleanup();
+        }
+        timelines.release(info.getId(), pendingTimeline);
 
         if (viewer.isOnline()) {
             if (bossBar != null) {
@@ -186,9 +244,18 @@ public final class ReplaySession {
         return restoringGameMode;
     }
 
+    /** Таймлиния ещё строится: управление воспроизведением пока недоступно. */
+    public boolean isLoading() {
+        return timeline == null;
+    }
+
     // ===================== Основной цикл =====================
 
-    private void tick() {
+    /**
+     * Один тик воспроизведения: время, камера, HUD. Блоки здесь только ставятся в очередь —
+     * отправляет их {@link #flushBlocks()} в пределах бюджета, выданного менеджером.
+     */
+    void tick() {
         if (stopped) {
             return;
         }
@@ -197,22 +264,31 @@ public final class ReplaySession {
             return;
         }
 
+        if (timeline == null) {
+            if (++tickCounter % 10 == 0) {
+                viewer.sendActionBar(Component.text("⏳ Подготовка записи…", NamedTextColor.YELLOW));
+            }
+            return;
+        }
+
         if (warmupTicks > 0) {
-            // Ждём загрузку мира у клиента и всё это время повторно отправляем блоки
+            // Ждём загрузку мира у клиента. Повторно слать блоки не нужно: в чанки, которых
+            // у клиента нет, они не уходят, а пришедший чанк сам возвращает их в очередь.
+            // Как только все чанки рядом получены и очередь пуста — стартуем, не дожидаясь лимита
             warmupTicks--;
-            if (warmupTicks % 10 == 0) {
-                blocks.resync();
-            }
-            blocks.flush();
+            boolean ready = ++warmupElapsed >= MIN_WARMUP_TICKS && blocks.isClientReady();
             if (warmupTicks % 4 == 0) {
                 viewer.sendActionBar(Component.text("⏳ Загрузка записи… блоков: " + blocks.getTrackedBlocks(),
                         NamedTextColor.YELLOW));
             }
-            if (warmupTicks == 0) {
+            if (ready || warmupTicks == 0) {
+                warmupTicks = 0;
                 camera.update(clock, true);
                 applyFullState(clock);
-                blocks.resync();
-                blocks.flush();
+                if (!ready) {
+                    // Лимит вышел, а клиент так и не получил всё — страховочная переотправка
+                    blocks.resync();
+                }
                 updateHud();
             }
             return;
@@ -245,7 +321,6 @@ public final class ReplaySession {
 
         camera.update(clock, false);
         updateBreakAnimations();
-        blocks.flush();
 
         if (++tickCounter % 4 == 0) {
             updateHud();
@@ -256,6 +331,38 @@ public final class ReplaySession {
         }
     }
 
+    /**
+     * Отправить очередь блоков в пределах текущего бюджета. Вызывается менеджером после {@link #tick()}.
+     */
+    void flushBlocks() {
+        if (!stopped && timeline != null) {
+            blocks.flush();
+        }
+    }
+
+    /**
+     * Вес сессии при дележе общего бюджета: 0 — отправлять нечего или пауза,
+     * 1 — загрузка мира или досылка на паузе, 2 — идёт воспроизведение.
+     *
+     * Пауза пропускается, только если досылать нечего: перемотка, пересборка и последний
+     * шаг перед автопаузой в конце диапазона должны дойти до зрителя, иначе он смотрит
+     * на старую картинку. Загрузку мира не пропускаем: именно тогда уходят первые
+     * виртуальные блоки, без них старт ждал бы лимита и страховочной переотправки.
+     */
+    int getBudgetWeight() {
+        if (stopped || timeline == null || blocks.getPendingUpdates() == 0) {
+            catchingUp = false;
+            return 0;
+        }
+        if (warmupTicks > 0) {
+            return 1;
+        }
+        if (paused) {
+            return catchingUp ? 1 : 0;
+        }
+        return 2;
+    }
+
     // ===================== Управление воспроизведением =====================
 
     public void setPaused(boolean value) {
@@ -299,18 +406,13 @@ public final class ReplaySession {
         long previous = clock;
         clock = Math.max(rangeStart, Math.min(rangeEnd, target));
 
-        long distance = Math.abs(clock - previous);
-        if (distance > 2000L) {
-            applyFullState(clock);
-        } else {
-            syncBlocks(previous, clock, true);
-        }
+        syncBlocks(previous, clock, true);
 
         clearAllBreakAnimations();
         camera.update(clock, true);
-        // После перемотки камера могла уехать далеко — добираем блоки, которые теперь рядом
+        // После перемотки камера могла уехать далеко — добираем блоки, которые теперь рядом.
+        // Отправит их ближайший тик менеджера в пределах общего бюджета
         blocks.revalidate();
-        blocks.flush();
         if (!silent) {
             updateHud();
         }
@@ -392,8 +494,13 @@ public final class ReplaySession {
         return timeline.getDuration();
     }
 
+    public int getRecordingId() {
+        return info.getId();
+    }
+
+    /** Запись целиком; null, пока она загружается. */
     public PlayerRecording getRecording() {
-        return recording;
+        return timeline != null ? timeline.getRecording() : null;
     }
 
     public ReplayTimeline getTimeline() {
@@ -404,21 +511,29 @@ public final class ReplaySession {
         return viewer;
     }
 
+    public VirtualBlockView getBlocks() {
+        return blocks;
+    }
+
     /** Мир, в котором сейчас идёт воспроизведение. */
     public String getTimelineWorld() {
-        String world = camera.getLastSample().world;
+        String world = camera != null ? camera.getLastSample().world : null;
         if (world != null) {
             return world;
         }
-        return recording.getFrameCount() > 0 ? recording.getFrame(0).getWorld() : "";
+        PlayerRecording recording = getRecording();
+        return recording != null && recording.getFrameCount() > 0 ? recording.getFrameStore().getWorld(0) : "";
     }
 
     // ===================== Синхронизация блоков =====================
 
     private void applyFullState(long time) {
-        Map<BlockRef, BlockData> state = timeline.stateAt(time);
-        blocks.setAll(state);
-        cursor = timeline.deltaIndexFor(time);
+        // Состояние каждого блока — по его истории, без промежуточной карты
+        int target = timeline.deltaIndexFor(time);
+        for (int r = 0; r < timeline.getRefCount(); r++) {
+            blocks.set(timeline.getRef(r), timeline.stateIdAt(r, target));
+        }
+        cursor = target;
     }
 
     /**
@@ -429,13 +544,14 @@ public final class ReplaySession {
         if (target == cursor) {
             return;
         }
+        catchingUp = true;
 
         boolean effects = !seeking && Math.abs(speed) <= 4.0;
 
-        if (target > cursor) {
+        if (target > cursor && !seeking) {
             for (int i = cursor; i < target; i++) {
                 ReplayTimeline.BlockDelta delta = timeline.getDeltas().get(i);
-                blocks.set(delta.ref, delta.to);
+                blocks.set(delta.ref, delta.toState);
                 if (effects) {
                     playDeltaEffects(delta);
                 }
@@ -444,14 +560,15 @@ public final class ReplaySession {
             return;
         }
 
-        // Назад: отменяем дельты в обратном порядке, либо строим состояние заново
-        if (cursor - target > MAX_BACKWARD_STEPS) {
-            applyFullState(to);
-            return;
-        }
-        for (int i = cursor - 1; i >= target; i--) {
-            ReplayTimeline.BlockDelta delta = timeline.getDeltas().get(i);
-            blocks.set(delta.ref, delta.from);
+        // Перемотка и движение назад: отправляем только блоки, которые в целевой позиции
+        // выглядят иначе, чем сейчас. Раньше большой прыжок перезаписывал всё состояние
+        applyDiff(target);
+    }
+
+    private void applyDiff(int target) {
+        stateDiff.compute(cursor, target);
+        for (int i = 0; i < stateDiff.size(); i++) {
+            blocks.set(stateDiff.getRef(i), stateDiff.getState(i));
         }
         cursor = target;
     }
@@ -497,17 +614,11 @@ public final class ReplaySession {
         String worldName = world.getName();
         Location viewerLocation = viewer.getLocation();
 
-        damageScratch.clear();
-
-        java.util.List<ReplayTimeline.BreakSpan> spans = timeline.getBreakSpans();
-        for (int i = timeline.firstSpanIndexFor(clock); i < spans.size(); i++) {
+        // Объекты Damage создаются только при появлении новой трещины, обычный тик не выделяет память
+        long tick = ++damageTick;
+        spans.moveTo(clock);
+        for (int i = 0; i < spans.size(); i++) {
             ReplayTimeline.BreakSpan span = spans.get(i);
-            if (span.start > clock) {
-                break;
-            }
-            if (span.end <= clock) {
-                continue;
-            }
             if (!worldName.equals(span.ref.getWorld())) {
                 continue;
             }
@@ -522,19 +633,26 @@ public final class ReplaySession {
                 stage = 1;
             }
 
-            damageScratch.add(span.ref);
-            Integer previous = activeDamage.get(span.ref);
-            if (previous == null || previous != stage) {
+            Damage damage = activeDamage.get(span.ref);
+            if (damage == null) {
+                damage = new Damage();
+                activeDamage.put(span.ref, damage);
+            }
+            damage.seenTick = tick;
+            if (damage.stage != stage) {
                 viewer.sendBlockDamage(span.ref.toLocation(world), stage / 9.0f);
-                activeDamage.put(span.ref, stage);
+                damage.stage = stage;
             }
         }
 
         // Сбрасываем трещины, которые больше не активны (раньше они зависали на блоках)
-        Iterator<Map.Entry<BlockRef, Integer>> iterator = activeDamage.entrySet().iterator();
+        if (activeDamage.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<BlockRef, Damage>> iterator = activeDamage.entrySet().iterator();
         while (iterator.hasNext()) {
-            Map.Entry<BlockRef, Integer> entry = iterator.next();
-            if (damageScratch.contains(entry.getKey())) {
+            Map.Entry<BlockRef, Damage> entry = iterator.next();
+            if (entry.getValue().seenTick == tick) {
                 continue;
             }
             if (worldName.equals(entry.getKey().getWorld())) {
@@ -572,9 +690,8 @@ public final class ReplaySession {
      */
     public int resyncBlocks() {
         applyFullState(clock);
-        int queued = blocks.resync();
-        blocks.flush();
-        return queued;
+        catchingUp = true;
+        return blocks.resync();
     }
 
     // ===================== Интерфейс =====================
@@ -589,7 +706,7 @@ public final class ReplaySession {
 
         if (bossBar != null) {
             bossBar.progress(progress);
-            bossBar.name(Component.text(recording.getPlayerName() + " — " + formatTime(clock) + " / " + formatTime(duration)
+            bossBar.name(Component.text(info.getPlayerName() + " — " + formatTime(clock) + " / " + formatTime(duration)
                     + "  " + (paused ? "⏸" : "▶") + " x" + trimSpeed(speed)));
             bossBar.color(paused ? BossBar.Color.YELLOW : BossBar.Color.BLUE);
         }
@@ -625,7 +742,7 @@ public final class ReplaySession {
 
         Component footer = Component.text(liveBar(Math.max(1L, timeline.getDuration())), NamedTextColor.AQUA)
                 .append(Component.newline())
-                .append(Component.text("Запись #" + recording.getId() + " · " + recording.getPlayerName(), NamedTextColor.GOLD))
+                .append(Component.text("Запись #" + info.getId() + " · " + info.getPlayerName(), NamedTextColor.GOLD))
                 .append(Component.newline())
                 .append(Component.text(formatTime(clock) + " / " + formatTime(Math.max(1L, timeline.getDuration()))
                         + " · x" + trimSpeed(speed) + " · " + camera.getMode().getDisplayName(), NamedTextColor.WHITE))
@@ -747,7 +864,7 @@ public final class ReplaySession {
         Component space = Component.text(" ");
 
         viewer.sendMessage(Component.text("▬▬▬ ", NamedTextColor.DARK_GRAY)
-                .append(Component.text("Запись #" + recording.getId() + " · " + recording.getPlayerName(), NamedTextColor.GOLD)
+                .append(Component.text("Запись #" + info.getId() + " · " + info.getPlayerName(), NamedTextColor.GOLD)
                         .decorate(TextDecoration.BOLD))
                 .append(Component.text(" ▬▬▬ ", NamedTextColor.DARK_GRAY))
                 .append(button("↻", "/axv panel", "Обновить панель"))
@@ -1,12 +1,15 @@
 package com.example.antixrayviewer.replay;
 
-import com.example.antixrayviewer.data.BlockEvent;
+import com.example.antixrayviewer.data.BlockKey;
+import com.example.antixrayviewer.data.BlockStatePalette;
+import com.example.antixrayviewer.data.FrameStore;
 import com.example.antixrayviewer.data.PlayerRecording;
-import com.example.antixrayviewer.data.RecordFrame;
+import com.example.antixrayviewer.data.TimelineIndex;
 import org.bukkit.Material;
 import org.bukkit.block.data.BlockData;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -15,36 +18,41 @@ import java.util.Map;
 /**
  * Предварительно построенная таймлиния записи.
  *
- * Строится ОДИН раз при открытии записи и даёт:
+ * Собирается при открытии записи из готового {@link TimelineIndex} и даёт:
  * <ul>
  *   <li>временную шкалу в миллисекундах от начала записи (а не индексы кадров);</li>
  *   <li>список дельт изменения блоков (from → to), т.е. перемотка работает в обе стороны;</li>
- *   <li>ключевые кадры состояния блоков — мгновенный seek в любую точку;</li>
- *   <li>интервалы ломания блоков для плавной анимации трещин;</li>
- *   <li>маркеры важных событий (для прыжков next/prev и отметок на полосе).</li>
+ *   <li>разреженную историю каждого блока при линейной памяти: состояние одного блока
+ *       в любой точке — O(log изменений блока), полное состояние — O(блоков · log n);</li>
+ *   <li>интервалы ломания блоков для плавной анимации трещин — с индексом по времени,
+ *       который отдаёт только активные в момент интервалы;</li>
+ *   <li>маркеры важных событий (для прыжков next/prev и отметок на полосе);</li>
+ *   <li>по желанию — заранее посчитанный трек камеры ({@link CameraTrack}).</li>
  * </ul>
  */
 public final class ReplayTimeline {
 
-    /** Каждые N дельт сохраняем полный снимок состояния. */
-    private static final int KEYFRAME_INTERVAL = 128;
-
-    /** Если BREAK_START не был записан, анимацию показываем за это время до разрушения. */
-    private static final long IMPLICIT_BREAK_LEAD_MS = 400L;
-
+    /**
+     * Изменение блока. {@code from}/{@code to} — общие экземпляры {@link BlockStatePalette},
+     * их нельзя изменять; сравнение состояний — по номерам.
+     */
     public static final class BlockDelta {
         public final long time;
         public final BlockRef ref;
+        public final int fromState;
+        public final int toState;
         public final BlockData from;
         public final BlockData to;
         public final Material material;
         public final boolean destructive;
 
-        BlockDelta(long time, BlockRef ref, BlockData from, BlockData to, Material material, boolean destructive) {
+        BlockDelta(long time, BlockRef ref, int fromState, int toState, Material material, boolean destructive) {
             this.time = time;
             this.ref = ref;
-            this.from = from;
-            this.to = to;
+            this.fromState = fromState;
+            this.toState = toState;
+            this.from = BlockStatePalette.getBlockData(fromState);
+            this.to = BlockStatePalette.getBlockData(toState);
             this.material = material;
             this.destructive = destructive;
         }
@@ -76,17 +84,6 @@ public final class ReplayTimeline {
         }
     }
 
-    /** Снимок состояния блоков после применения deltaIndex дельт. */
-    private static final class Snapshot {
-        final int deltaIndex;
-        final Map<BlockRef, BlockData> state;
-
-        Snapshot(int deltaIndex, Map<BlockRef, BlockData> state) {
-            this.deltaIndex = deltaIndex;
-            this.state = state;
-        }
-    }
-
     /** Интерполированное состояние игрока в произвольный момент времени. */
     public static final class Sample {
         public String world;
@@ -106,31 +103,62 @@ public final class ReplayTimeline {
     }
 
     private final PlayerRecording recording;
-    private final List<RecordFrame> frames;
+    private final FrameStore frames;
     private final long[] frameTimes;
     private final long duration;
 
     private final List<BlockDelta> deltas;
     private final Map<BlockRef, BlockData> initialState;
-    private final List<Snapshot> keyframes;
+
+    /*
+     * История блоков вместо ключевых кадров. Раньше каждые 128 дельт копировалось всё
+     * накопленное состояние, и на длинной шахте память росла квадратично.
+     * Теперь у каждого затронутого блока есть номер r, а номера его дельт лежат подряд
+     * в historyDeltas[historyStart[r] .. historyStart[r + 1]) по возрастанию (CSR).
+     * Память — O(блоков + дельт), состояние блока на момент — бинарный поиск по его истории.
+     */
+    private final BlockRef[] refs;
+    private final int[] historyStart;
+    private final int[] historyDeltas;
     private final List<BreakSpan> breakSpans;
     private final List<Marker> markers;
-    private final long maxSpanLength;
-    private final int oreBreakCount;
+    private final TimelineIndex index;
+
+    /*
+     * Индекс интервалов ломания. Раньше поиск шёл от time - maxSpanLength, и один зависший
+     * BREAK_START на минуту заставлял каждый тик перебирать сотни давно закончившихся интервалов.
+     * Теперь шкала разбита на корзины по SPAN_BUCKET_MS: в spanBucketSpans[spanBucketStart[b] ..
+     * spanBucketStart[b + 1]) лежат номера интервалов, пересекающих корзину b (CSR, по возрастанию).
+     * Запрос в момент t смотрит одну корзину; длинный интервал просто занимает несколько корзин.
+     */
+    private static final long SPAN_BUCKET_MS = 1000L;
+    private final int[] spanBucketStart;
+    private final int[] spanBucketSpans;
+
+    /** Трек камеры с шагом в тик или null, если выключен. */
+    private final CameraTrack cameraTrack;
 
     public ReplayTimeline(PlayerRecording recording) {
+        this(recording, false);
+    }
+
+    /**
+     * @param buildCameraTrack посчитать трек камеры с шагом в тик: память на каждую секунду записи
+     *                         в обмен на чтение из массива вместо интерполяции при обычной скорости
+     */
+    public ReplayTimeline(PlayerRecording recording, boolean buildCameraTrack) {
         this.recording = recording;
-        this.frames = recording.getFramesView();
+        this.frames = recording.getFrameStore();
 
         long base = recording.getStartTime();
         if (!frames.isEmpty()) {
-            base = Math.min(base, frames.get(0).getTimestamp());
+            base = Math.min(base, frames.getTime(0));
         }
 
         this.frameTimes = new long[frames.size()];
         long previous = 0L;
         for (int i = 0; i < frames.size(); i++) {
-            long t = frames.get(i).getTimestamp() - base;
+            long t = frames.getTime(i) - base;
             // Защита от немонотонных меток времени в старых записях
             if (t < previous) {
                 t = previous;
@@ -142,132 +170,102 @@ public final class ReplayTimeline {
         long computedDuration = frameTimes.length == 0 ? 0L : frameTimes[frameTimes.length - 1];
         this.duration = Math.max(1L, computedDuration);
 
-        List<BlockDelta> builtDeltas = new ArrayList<>();
-        Map<BlockRef, BlockData> builtInitial = new HashMap<>();
-        List<Snapshot> builtKeyframes = new ArrayList<>();
-        List<BreakSpan> builtSpans = new ArrayList<>();
-        List<Marker> builtMarkers = new ArrayList<>();
-        Map<BlockRef, BlockData> running = new HashMap<>();
-        Map<BlockRef, Long> pendingBreakStarts = new HashMap<>();
-
-        long longestSpan = IMPLICIT_BREAK_LEAD_MS;
-        int ores = 0;
-
-        for (int frameIndex = 0; frameIndex < frames.size(); frameIndex++) {
-            RecordFrame frame = frames.get(frameIndex);
-            if (!frame.hasBlockEvents()) {
-                continue;
+        // Дельты, интервалы и маркеры берутся из готового индекса (из файла или построенного
+        // один раз по событиям) — по потоку событий здесь больше не проходим
+        TimelineIndex index = recording.getTimelineIndex();
+        this.index = index;
+
+        int refCount = index.getRefCount();
+        BlockRef[] builtRefs = new BlockRef[refCount];
+        Map<BlockRef, BlockData> builtInitial = new HashMap<>(refCount * 2);
+        for (int r = 0; r < refCount; r++) {
+            long key = index.getRefKey(r);
+            builtRefs[r] = new BlockRef(index.getWorld(index.getRefWorld(r)), BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+            BlockData data = BlockStatePalette.getBlockData(index.getRefInitialState(r));
+            if (data != null) {
+                builtInitial.put(builtRefs[r], data);
             }
+        }
 
-            for (BlockEvent event : frame.getBlockEventsView()) {
-                long time = clampTime(event.getTimestamp() - base, frameTimes[frameIndex]);
-                BlockRef ref = new BlockRef(event.getWorld(), event.getX(), event.getY(), event.getZ());
-
-                switch (event.getType()) {
-                    case BREAK_START: {
-                        pendingBreakStarts.put(ref, time);
-                        break;
-                    }
-                    case BREAK_CANCEL: {
-                        Long started = pendingBreakStarts.remove(ref);
-                        if (started != null && time > started) {
-                            builtSpans.add(new BreakSpan(ref, started, time, false));
-                            longestSpan = Math.max(longestSpan, time - started);
-                        }
-                        break;
-                    }
-                    case BREAK_PROGRESS: {
-                        pendingBreakStarts.putIfAbsent(ref, time);
-                        break;
-                    }
-                    case BREAK_COMPLETE: {
-                        Long started = pendingBreakStarts.remove(ref);
-                        long spanStart = started != null ? started : Math.max(0L, time - IMPLICIT_BREAK_LEAD_MS);
-                        builtSpans.add(new BreakSpan(ref, spanStart, time, true));
-                        longestSpan = Math.max(longestSpan, time - spanStart);
-
-                        BlockData broken = event.resolveBlockData();
-                        BlockData from = running.get(ref);
-                        if (from == null) {
-                            from = broken;
-                            builtInitial.put(ref, broken);
-                        }
-                        BlockData air = Material.AIR.createBlockData();
-                        builtDeltas.add(new BlockDelta(time, ref, from, air, event.getBlockType(), true));
-                        running.put(ref, air);
-
-                        if (isValuable(event.getBlockType())) {
-                            builtMarkers.add(new Marker(time, event.getBlockType(), ref));
-                            ores++;
-                        }
-                        break;
-                    }
-                    case PLACE: {
-                        BlockData placed = event.resolveBlockData();
-                        if (placed == null) {
-                            break;
-                        }
-                        BlockData from = running.get(ref);
-                        if (from == null) {
-                            BlockData replaced = event.resolvePreviousBlockData();
-                            from = replaced != null ? replaced : Material.AIR.createBlockData();
-                            builtInitial.put(ref, from);
-                        }
-                        builtDeltas.add(new BlockDelta(time, ref, from, placed, event.getBlockType(), false));
-                        running.put(ref, placed);
-                        break;
-                    }
-                    default:
-                        break;
-                }
+        int deltaCount = index.getDeltaCount();
+        List<BlockDelta> builtDeltas = new ArrayList<>(deltaCount);
+        for (int d = 0; d < deltaCount; d++) {
+            builtDeltas.add(new BlockDelta(index.getDeltaTime(d), builtRefs[index.getDeltaRef(d)],
+                    index.getDeltaFromState(d), index.getDeltaToState(d), index.getDeltaMaterial(d),
+                    index.isDeltaDestructive(d)));
+        }
 
-                if (!builtDeltas.isEmpty() && builtDeltas.size() % KEYFRAME_INTERVAL == 0) {
-                    int index = builtDeltas.size();
-                    if (builtKeyframes.isEmpty()
-                            || builtKeyframes.get(builtKeyframes.size() - 1).deltaIndex != index) {
-                        builtKeyframes.add(new Snapshot(index, new HashMap<>(running)));
-                    }
-                }
-            }
+        List<BreakSpan> builtSpans = new ArrayList<>(index.getSpanCount());
+        for (int i = 0; i < index.getSpanCount(); i++) {
+            builtSpans.add(new BreakSpan(builtRefs[index.getSpanRef(i)], index.getSpanStart(i), index.getSpanEnd(i),
+                    index.isSpanCompleted(i)));
         }
 
-        // Если руды не было вообще — отмечаем все разрушения, чтобы прыжки по событиям работали
-        if (builtMarkers.isEmpty()) {
-            for (BlockDelta delta : builtDeltas) {
-                if (delta.destructive) {
-                    builtMarkers.add(new Marker(delta.time, delta.material, delta.ref));
-                }
-            }
+        List<Marker> builtMarkers = new ArrayList<>(index.getMarkerCount());
+        for (int i = 0; i < index.getMarkerCount(); i++) {
+            builtMarkers.add(new Marker(index.getMarkerTime(i), index.getMarkerMaterial(i),
+                    builtRefs[index.getMarkerRef(i)]));
         }
 
-        builtSpans.sort((a, b) -> Long.compare(a.start, b.start));
-        builtMarkers.sort((a, b) -> Long.compare(a.time, b.time));
+        // Раскладываем номера дельт по блокам: подсчёт, префиксные суммы, заполнение.
+        // Дельты идут по времени, поэтому история каждого блока сразу отсортирована
+        int[] starts = new int[refCount + 1];
+        for (int d = 0; d < deltaCount; d++) {
+            starts[index.getDeltaRef(d) + 1]++;
+        }
+        for (int r = 0; r < refCount; r++) {
+            starts[r + 1] += starts[r];
+        }
+        int[] history = new int[deltaCount];
+        int[] fill = Arrays.copyOf(starts, refCount);
+        for (int d = 0; d < deltaCount; d++) {
+            history[fill[index.getDeltaRef(d)]++] = d;
+        }
 
         this.deltas = Collections.unmodifiableList(builtDeltas);
         this.initialState = Collections.unmodifiableMap(builtInitial);
-        this.keyframes = Collections.unmodifiableList(builtKeyframes);
+        this.refs = builtRefs;
+        this.historyStart = starts;
+        this.historyDeltas = history;
         this.breakSpans = Collections.unmodifiableList(builtSpans);
         this.markers = Collections.unmodifiableList(builtMarkers);
-        this.maxSpanLength = longestSpan;
-        this.oreBreakCount = ores;
-    }
 
-    private long clampTime(long eventTime, long frameTime) {
-        if (eventTime < 0) {
-            return frameTime;
+        // Корзины интервалов — тем же способом: подсчёт, префиксные суммы, заполнение
+        int spanCount = index.getSpanCount();
+        int bucketCount = 0;
+        for (int i = 0; i < spanCount; i++) {
+            bucketCount = Math.max(bucketCount, lastSpanBucket(i) + 1);
         }
-        return eventTime;
-    }
-
-    private static boolean isValuable(Material material) {
-        if (material == null) {
-            return false;
+        int[] bucketStarts = new int[bucketCount + 1];
+        for (int i = 0; i < spanCount; i++) {
+            for (int b = spanBucket(index.getSpanStart(i)); b <= lastSpanBucket(i); b++) {
+                bucketStarts[b + 1]++;
+            }
+        }
+        for (int b = 0; b < bucketCount; b++) {
+            bucketStarts[b + 1] += bucketStarts[b];
         }
-        if (material == Material.ANCIENT_DEBRIS) {
-            return true;
+        int[] bucketSpans = new int[bucketStarts[bucketCount]];
+        int[] bucketFill = Arrays.copyOf(bucketStarts, bucketCount);
+        for (int i = 0; i < spanCount; i++) {
+            for (int b = spanBucket(index.getSpanStart(i)); b <= lastSpanBucket(i); b++) {
+                bucketSpans[bucketFill[b]++] = i;
+            }
         }
-        String name = material.name();
-        return name.endsWith("_ORE");
+        this.spanBucketStart = bucketStarts;
+        this.spanBucketSpans = bucketSpans;
+
+        this.cameraTrack = buildCameraTrack && !frames.isEmpty() ? new CameraTrack(this, frames) : null;
+    }
+
+    private static int spanBucket(long time) {
+        return (int) Math.min(Integer.MAX_VALUE - 1, Math.max(0L, time) / SPAN_BUCKET_MS);
+    }
+
+    /** Последняя корзина, которую задевает интервал i (конец интервала не включается). */
+    private int lastSpanBucket(int i) {
+        long start = index.getSpanStart(i);
+        return spanBucket(Math.max(start, index.getSpanEnd(i) - 1L));
     }
 
     // ===================== Временная шкала =====================
@@ -319,14 +317,26 @@ public final class ReplayTimeline {
      */
     public Sample sample(long time, Sample reuse) {
         Sample out = reuse != null ? reuse : new Sample();
+        if (cameraTrack != null && cameraTrack.sample(time, out)) {
+            return out;
+        }
+        return interpolate(time, out);
+    }
+
+    public boolean hasCameraTrack() {
+        return cameraTrack != null;
+    }
+
+    /**
+     * Интерполяция по кадрам записи без трека камеры.
+     */
+    Sample interpolate(long time, Sample out) {
         if (frames.isEmpty()) {
             return out;
         }
 
         int i1 = frameIndexAt(time);
         int i2 = Math.min(i1 + 1, frames.size() - 1);
-        RecordFrame f1 = frames.get(i1);
-        RecordFrame f2 = frames.get(i2);
 
         double t;
         long t1 = frameTimes[i1];
@@ -342,65 +352,68 @@ public final class ReplayTimeline {
             }
         }
 
-        boolean sameWorld = f1.getWorld().equals(f2.getWorld());
+        int world = frames.getWorldId(i1);
+        boolean sameWorld = world == frames.getWorldId(i2);
+        boolean first = t < 0.5;
         out.discontinuity = !sameWorld;
-        out.world = f1.getWorld();
+        out.world = frames.getWorldName(world);
         out.frameIndex = i1;
-        out.sneaking = t < 0.5 ? f1.isSneaking() : f2.isSneaking();
-        out.sprinting = t < 0.5 ? f1.isSprinting() : f2.isSprinting();
-        out.flying = t < 0.5 ? f1.isFlying() : f2.isFlying();
-        out.health = f1.getHealth() + (f2.getHealth() - f1.getHealth()) * t;
-        out.foodLevel = t < 0.5 ? f1.getFoodLevel() : f2.getFoodLevel();
+        out.sneaking = frames.isSneaking(first ? i1 : i2);
+        out.sprinting = frames.isSprinting(first ? i1 : i2);
+        out.flying = frames.isFlying(first ? i1 : i2);
+        out.health = frames.getHealth(i1) + (frames.getHealth(i2) - frames.getHealth(i1)) * t;
+        out.foodLevel = frames.getFoodLevel(first ? i1 : i2);
 
         if (!sameWorld) {
-            out.x = f1.getX();
-            out.y = f1.getY();
-            out.z = f1.getZ();
-            out.yaw = f1.getYaw();
-            out.pitch = f1.getPitch();
+            out.x = frames.getX(i1);
+            out.y = frames.getY(i1);
+            out.z = frames.getZ(i1);
+            out.yaw = frames.getYaw(i1);
+            out.pitch = frames.getPitch(i1);
             return out;
         }
 
-        double dx = f2.getX() - f1.getX();
-        double dy = f2.getY() - f1.getY();
-        double dz = f2.getZ() - f1.getZ();
+        double dx = frames.getX(i2) - frames.getX(i1);
+        double dy = frames.getY(i2) - frames.getY(i1);
+        double dz = frames.getZ(i2) - frames.getZ(i1);
         double segment = dx * dx + dy * dy + dz * dz;
 
         if (segment > 64.0) {
             // Огромный скачок — телепорт/элитры: не сглаживаем, а фиксируем разрыв
+            int nearest = first ? i1 : i2;
             out.discontinuity = true;
-            out.x = t < 0.5 ? f1.getX() : f2.getX();
-            out.y = t < 0.5 ? f1.getY() : f2.getY();
-            out.z = t < 0.5 ? f1.getZ() : f2.getZ();
-            out.yaw = t < 0.5 ? f1.getYaw() : f2.getYaw();
-            out.pitch = t < 0.5 ? f1.getPitch() : f2.getPitch();
+            out.x = frames.getX(nearest);
+            out.y = frames.getY(nearest);
+            out.z = frames.getZ(nearest);
+            out.yaw = frames.getYaw(nearest);
+            out.pitch = frames.getPitch(nearest);
             return out;
         }
 
-        RecordFrame f0 = frames.get(Math.max(0, i1 - 1));
-        RecordFrame f3 = frames.get(Math.min(frames.size() - 1, i2 + 1));
-        boolean splineOk = f0.getWorld().equals(f1.getWorld()) && f3.getWorld().equals(f1.getWorld())
-                && distanceSquared(f0, f1) < 64.0 && distanceSquared(f2, f3) < 64.0;
+        int i0 = Math.max(0, i1 - 1);
+        int i3 = Math.min(frames.size() - 1, i2 + 1);
+        boolean splineOk = frames.getWorldId(i0) == world && frames.getWorldId(i3) == world
+                && distanceSquared(i0, i1) < 64.0 && distanceSquared(i2, i3) < 64.0;
 
         if (splineOk) {
-            out.x = catmullRom(f0.getX(), f1.getX(), f2.getX(), f3.getX(), t);
-            out.y = catmullRom(f0.getY(), f1.getY(), f2.getY(), f3.getY(), t);
-            out.z = catmullRom(f0.getZ(), f1.getZ(), f2.getZ(), f3.getZ(), t);
+            out.x = catmullRom(frames.getX(i0), frames.getX(i1), frames.getX(i2), frames.getX(i3), t);
+            out.y = catmullRom(frames.getY(i0), frames.getY(i1), frames.getY(i2), frames.getY(i3), t);
+            out.z = catmullRom(frames.getZ(i0), frames.getZ(i1), frames.getZ(i2), frames.getZ(i3), t);
         } else {
-            out.x = f1.getX() + dx * t;
-            out.y = f1.getY() + dy * t;
-            out.z = f1.getZ() + dz * t;
+            out.x = frames.getX(i1) + dx * t;
+            out.y = frames.getY(i1) + dy * t;
+            out.z = frames.getZ(i1) + dz * t;
         }
 
-        out.yaw = lerpAngle(f1.getYaw(), f2.getYaw(), (float) t);
-        out.pitch = f1.getPitch() + (f2.getPitch() - f1.getPitch()) * (float) t;
+        out.yaw = lerpAngle(frames.getYaw(i1), frames.getYaw(i2), (float) t);
+        out.pitch = frames.getPitch(i1) + (frames.getPitch(i2) - frames.getPitch(i1)) * (float) t;
         return out;
     }
 
-    private static double distanceSquared(RecordFrame a, RecordFrame b) {
-        double dx = a.getX() - b.getX();
-        double dy = a.getY() - b.getY();
-        double dz = a.getZ() - b.getZ();
+    private double distanceSquared(int a, int b) {
+        double dx = frames.getX(a) - frames.getX(b);
+        double dy = frames.getY(a) - frames.getY(b);
+        double dz = frames.getZ(a) - frames.getZ(b);
         return dx * dx + dy * dy + dz * dz;
     }
 
@@ -449,27 +462,130 @@ public final class ReplayTimeline {
 
     /**
      * Полное состояние всех затронутых блоков на момент time.
-     * Использует ближайший ключевой кадр, поэтому даже большой скачок дешёвый.
+     * Для каждого блока — бинарный поиск по его истории, так что цена не зависит от того,
+     * как далеко прыгаем, но линейна по числу блоков: O(блоков · log n), а не логарифм.
+     * Для перемотки дешевле {@link StateDiff} — он смотрит только блоки, менявшиеся между позициями.
      */
     public Map<BlockRef, BlockData> stateAt(long time) {
         int target = deltaIndexFor(time);
-        Map<BlockRef, BlockData> state = new HashMap<>(initialState);
-
-        int start = 0;
-        for (int i = keyframes.size() - 1; i >= 0; i--) {
-            Snapshot snapshot = keyframes.get(i);
-            if (snapshot.deltaIndex <= target) {
-                state.putAll(snapshot.state);
-                start = snapshot.deltaIndex;
-                break;
+        Map<BlockRef, BlockData> state = new HashMap<>(refs.length * 2);
+        for (int r = 0; r < refs.length; r++) {
+            BlockData data = BlockStatePalette.getBlockData(stateIdAt(r, target));
+            if (data != null) {
+                state.put(refs[r], data);
+            }
+        }
+        return state;
+    }
+
+    public int getRefCount() {
+        return refs.length;
+    }
+
+    public BlockRef getRef(int r) {
+        return refs[r];
+    }
+
+    /**
+     * Номер состояния блока r (в палитре) после применения первых deltaIndex дельт.
+     * Бинарный поиск по истории блока: O(log изменений блока).
+     */
+    public int stateIdAt(int r, int deltaIndex) {
+        int low = historyStart[r];
+        int high = historyStart[r + 1] - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (historyDeltas[mid] < deltaIndex) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
             }
         }
+        return found < 0 ? index.getRefInitialState(r) : index.getDeltaToState(historyDeltas[found]);
+    }
+
+    /**
+     * Разница состояний блоков между двумя позициями таймлинии. Свой у каждой сессии,
+     * после создания память выделяет только при росте буфера.
+     */
+    public StateDiff newStateDiff() {
+        return new StateDiff();
+    }
 
-        for (int i = start; i < target; i++) {
-            BlockDelta delta = deltas.get(i);
-            state.put(delta.ref, delta.to);
+    /**
+     * Блоки, состояние которых после первых from дельт отличается от состояния после первых to.
+     * <ul>
+     *   <li>кандидаты — только блоки, затронутые дельтами между позициями (каждый один раз);</li>
+     *   <li>если дельт между позициями больше, чем блоков, проверяются все блоки;</li>
+     *   <li>блок, который менялся туда и обратно, в разницу не попадает.</li>
+     * </ul>
+     * Так большая перемотка отдаёт зрителю десятки блоков, а не всё состояние целиком.
+     * Используется только из основного потока.
+     */
+    public final class StateDiff {
+        private final int[] marks = new int[refs.length];
+        private int stamp;
+        private int[] changed = new int[16];
+        private int[] states = new int[16];
+        private int count;
+
+        private StateDiff() {
+        }
+
+        public void compute(int from, int to) {
+            count = 0;
+            if (from == to) {
+                return;
+            }
+            if (++stamp == 0) {
+                Arrays.fill(marks, 0);
+                stamp = 1;
+            }
+            int low = Math.min(from, to);
+            int high = Math.max(from, to);
+            if (high - low > refs.length) {
+                for (int r = 0; r < refs.length; r++) {
+                    check(r, from, to);
+                }
+                return;
+            }
+            for (int d = low; d < high; d++) {
+                int r = index.getDeltaRef(d);
+                if (marks[r] != stamp) {
+                    marks[r] = stamp;
+                    check(r, from, to);
+                }
+            }
+        }
+
+        private void check(int r, int from, int to) {
+            int target = stateIdAt(r, to);
+            if (target == stateIdAt(r, from)) {
+                return;
+            }
+            if (count == changed.length) {
+                changed = Arrays.copyOf(changed, count * 2);
+                states = Arrays.copyOf(states, count * 2);
+            }
+            changed[count] = r;
+            states[count] = target;
+            count++;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public BlockRef getRef(int i) {
+            return refs[changed[i]];
+        }
+
+        /** Номер состояния блока в целевой позиции (в палитре); NONE, если оно неизвестно. */
+        public int getState(int i) {
+            return states[i];
         }
-        return state;
     }
 
     // ===================== Анимации и маркеры =====================
@@ -478,28 +594,113 @@ public final class ReplayTimeline {
         return breakSpans;
     }
 
-    public long getMaxSpanLength() {
-        return maxSpanLength;
+    /**
+     * Курсор по активным интервалам ломания. Свой у каждой сессии, после создания не выделяет память.
+     */
+    public SpanCursor newSpanCursor() {
+        return new SpanCursor();
     }
 
     /**
-     * Индекс первого интервала ломания, который может быть активен в момент time.
+     * Множество интервалов ломания, активных в текущий момент курсора ({@code start <= t < end}).
+     * <ul>
+     *   <li>при обычном воспроизведении вперёд обновляется инкрементально: добавляются начавшиеся
+     *       интервалы, убираются закончившиеся — работа пропорциональна изменениям, а не числу интервалов;</li>
+     *   <li>при перемотке назад или прыжке дальше корзины собирается заново из одной корзины индекса.</li>
+     * </ul>
+     * Используется только из основного потока.
      */
-    public int firstSpanIndexFor(long time) {
-        long from = time - maxSpanLength;
-        int low = 0;
-        int high = breakSpans.size() - 1;
-        int result = breakSpans.size();
-        while (low <= high) {
-            int mid = (low + high) >>> 1;
-            if (breakSpans.get(mid).start >= from) {
-                result = mid;
-                high = mid - 1;
+    public final class SpanCursor {
+        private int[] active = new int[16];
+        private int activeCount;
+        private boolean positioned;
+        private long time;
+        /** Первый интервал (в порядке начала), который ещё не начался к моменту time. */
+        private int nextSpan;
+
+        private SpanCursor() {
+        }
+
+        /**
+         * Перевести курсор в момент target.
+         */
+        public void moveTo(long target) {
+            if (positioned && target >= time && target - time <= SPAN_BUCKET_MS) {
+                advance(target);
             } else {
-                low = mid + 1;
+                rebuild(target);
             }
+            positioned = true;
+            time = target;
+        }
+
+        /**
+         * Забыть позицию: следующий {@link #moveTo} соберёт множество заново.
+         */
+        public void reset() {
+            positioned = false;
+            activeCount = 0;
+        }
+
+        public int size() {
+            return activeCount;
+        }
+
+        public BreakSpan get(int i) {
+            return breakSpans.get(active[i]);
+        }
+
+        private void advance(long target) {
+            int kept = 0;
+            for (int i = 0; i < activeCount; i++) {
+                int span = active[i];
+                if (index.getSpanEnd(span) > target) {
+                    active[kept++] = span;
+                }
+            }
+            activeCount = kept;
+            int spanCount = index.getSpanCount();
+            while (nextSpan < spanCount && index.getSpanStart(nextSpan) <= target) {
+                if (index.getSpanEnd(nextSpan) > target) {
+                    add(nextSpan);
+                }
+                nextSpan++;
+            }
+        }
+
+        private void rebuild(long target) {
+            activeCount = 0;
+            int bucket = spanBucket(target);
+            if (target >= 0L && bucket < spanBucketStart.length - 1) {
+                for (int i = spanBucketStart[bucket]; i < spanBucketStart[bucket + 1]; i++) {
+                    int span = spanBucketSpans[i];
+                    if (index.getSpanStart(span) <= target && index.getSpanEnd(span) > target) {
+                        add(span);
+                    }
+                }
+            }
+            // Интервалы отсортированы по началу: ищем первый, который начнётся позже target
+            int low = 0;
+            int high = index.getSpanCount() - 1;
+            int result = index.getSpanCount();
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (index.getSpanStart(mid) > target) {
+                    result = mid;
+                    high = mid - 1;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            nextSpan = result;
+        }
+
+        private void add(int span) {
+            if (activeCount == active.length) {
+                active = Arrays.copyOf(active, activeCount * 2);
+            }
+            active[activeCount++] = span;
         }
-        return result;
     }
 
     public List<Marker> getMarkers() {
@@ -507,7 +708,7 @@ public final class ReplayTimeline {
     }
 
     public int getOreBreakCount() {
-        return oreBreakCount;
+        return index.getOreBreakCount();
     }
 
     /**
@@ -0,0 +1,170 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.data.PlayerRecording;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Общие таймлинии записей для всех сессий просмотра.
+ *
+ * Раньше каждая сессия строила свою таймлинию, и если три модератора открывали одну
+ * и ту же запись, разбор дельт, интервалов и маркеров выполнялся трижды.
+ * Таймлиния после построения не меняется, поэтому одна копия безопасно делится между сессиями.
+ * <ul>
+ *   <li>ключ — id записи и версия её содержимого: перечитанная с диска запись находит ту же таймлинию;</li>
+ *   <li>пока таймлинию держит хоть одна сессия, она не вытесняется;</li>
+ *   <li>неиспользуемых таймлиний хранится не больше {@code maxIdle} — вытесняется давно не открытая;</li>
+ *   <li>при удалении записи таймлиния сбрасывается, открытые сессии досматривают свою копию.</li>
+ * </ul>
+ * Таймлиния строится в фоновом потоке: основной поток только получает future и ждёт
+ * его завершения без блокировки. Если записи нет в памяти, в том же фоновом future
+ * она сначала читается с диска. Сам кэш используется только из основного потока.
+ */
+public final class TimelineCache {
+
+    /** Версия таймлинии записи, прочитанной с диска: завершённая запись больше не меняется. */
+    private static final long STORED = Long.MIN_VALUE;
+
+    private static final class Entry {
+        final CompletableFuture<ReplayTimeline> timeline;
+        final long version;
+        int references;
+
+        Entry(CompletableFuture<ReplayTimeline> timeline, long version) {
+            this.timeline = timeline;
+            this.version = version;
+        }
+    }
+
+    private final Executor executor;
+    private final int maxIdle;
+    private final boolean cameraTrack;
+    /** accessOrder = true: итерация идёт от давно не использованных к свежим. */
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param executor где строить таймлинии (фоновый поток)
+     * @param cameraTrack строить ли трек камеры вместе с таймлинией
+     */
+    public TimelineCache(Executor executor, int maxIdle, boolean cameraTrack) {
+        this.executor = executor;
+        this.maxIdle = Math.max(0, maxIdle);
+        this.cameraTrack = cameraTrack;
+    }
+
+    /**
+     * Взять таймлинию записи. Если её нет — ставит построение в фоновый поток.
+     * Каждому вызову — ровно один {@link #release}.
+     */
+    public CompletableFuture<ReplayTimeline> acquire(PlayerRecording recording) {
+        long version = recording.getContentVersion();
+        Entry entry = entries.get(recording.getId());
+        // Неудачную сборку не кэшируем: следующее открытие попробует снова
+        if (entry != null && (entry.version == version || entry.version == STORED)
+                && !entry.timeline.isCompletedExceptionally()) {
+            hits++;
+        } else {
+            misses++;
+            entry = new Entry(CompletableFuture.supplyAsync(() -> new ReplayTimeline(recording, cameraTrack), executor), version);
+            entries.put(recording.getId(), entry);
+        }
+        entry.references++;
+        return entry.timeline;
+    }
+
+    /**
+     * Взять таймлинию записи, которой нет в памяти. При промахе и чтение записи через
+     * {@code loader}, и построение идут в фоновом потоке; если loader вернул null,
+     * future завершается ошибкой. Каждому вызову — ровно один {@link #release}.
+     */
+    public CompletableFuture<ReplayTimeline> acquire(int id, Supplier<PlayerRecording> loader) {
+        Entry entry = entries.get(id);
+        if (entry != null && !entry.timeline.isCompletedExceptionally()) {
+            hits++;
+        } else {
+            misses++;
+            entry = new Entry(CompletableFuture.supplyAsync(() -> {
+                PlayerRecording recording = loader.get();
+                if (recording == null) {
+                    throw new IllegalStateException("Запись #" + id + " не прочитана с диска");
+                }
+                return new ReplayTimeline(recording, cameraTrack);
+            }, executor), STORED);
+            entries.put(id, entry);
+        }
+        entry.references++;
+        return entry.timeline;
+    }
+
+    /**
+     * Сессия больше не использует таймлинию записи id.
+     */
+    public void release(int id, CompletableFuture<ReplayTimeline> timeline) {
+        Entry entry = entries.get(id);
+        // Таймлинию могли сбросить или заменить — тогда в кэше её уже нет
+        if (entry == null || entry.timeline != timeline) {
+            return;
+        }
+        if (entry.references > 0) {
+            entry.references--;
+        }
+        evict();
+    }
+
+    /**
+     * Сбросить таймлинию удалённой записи.
+     */
+    public void invalidate(int id) {
+        entries.remove(id);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private void evict() {
+        int idle = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.references == 0) {
+                idle++;
+            }
+        }
+        Iterator<Map.Entry<Integer, Entry>> iterator = entries.entrySet().iterator();
+        while (idle > maxIdle && iterator.hasNext()) {
+            if (iterator.next().getValue().references == 0) {
+                iterator.remove();
+                idle--;
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getInUseCount() {
+        int inUse = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.references > 0) {
+                inUse++;
+            }
+        }
+        return inUse;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+}
@@ -1,16 +1,18 @@
 package com.example.antixrayviewer.replay;
 
+import com.example.antixrayviewer.data.BlockKey;
+import com.example.antixrayviewer.data.BlockStatePalette;
+import io.papermc.paper.math.Position;
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.World;
-import org.bukkit.block.Block;
 import org.bukkit.block.data.BlockData;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 
-import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -24,127 +26,702 @@ import java.util.Set;
  * <ul>
  *   <li>раньше каждые 2 тика переотправлялись ВСЕ блоки в радиусе 96 — теперь только изменённые;</li>
  *   <li>повторная синхронизация происходит точково при загрузке чанка клиентом;</li>
- *   <li>есть бюджет пакетов на тик, чтобы большая перемотка не вызывала лаг-спайк;</li>
- *   <li>никаких синхронных chunk.load() — только асинхронная подгрузка.</li>
+ *   <li>изменения одной секции чанка (16×16×16) уходят одним multi-block пакетом,
+ *       а бюджет на тик считается в пакетах и байтах, а не в блоках —
+ *       большая перемотка не вызывает лаг-спайк и блоки не «проявляются» по одному;</li>
+ *   <li>никаких синхронных chunk.load() — только асинхронная подгрузка;</li>
+ *   <li>плотные чанки (от {@link #DENSE_CHUNK_BLOCKS} блоков) при переотправке не проходят
+ *       через очередь поблочно: чанк целиком переналагается по секциям за один проход;</li>
+ *   <li>блоки не отправляются в чанки, которых у клиента ещё нет, — клиент всё равно затёр бы их,
+ *       а сам чанк вернёт их в очередь через {@link #onChunkSent};</li>
+ *   <li>возврат реального мира после просмотра идёт через {@link BlockRestore}: снимки чанков,
+ *       сравнение в фоне и отправка за несколько тиков;</li>
+ *   <li>блоки хранятся по мирам в примитивных массивах: упакованные координаты → номер ячейки,
+ *       состояния — номера {@link BlockStatePalette}. Никаких узлов HashMap, BlockRef и упаковки
+ *       на каждый блок — около 50 байт на блок вместо нескольких сотен.</li>
  * </ul>
  */
 public final class VirtualBlockView {
 
+    /*
+     * Оценка размера пакетов для бюджета: позиция секции и по varlong
+     * (состояние + локальная позиция) на блок.
+     */
+    static final int SECTION_HEADER_BYTES = 12;
+    static final int SECTION_ENTRY_BYTES = 8;
+
+    private static final int NONE = BlockStatePalette.NONE;
+    private static final int END = -1;
+
+    /*
+     * Приоритет отправки: четверть радиуса отправки (0–3), в поле зрения или нет,
+     * разрушение (воздух) или установка блока. Корзина = четверть * 4 + сзади * 2 + установка:
+     * у каждого сочетания своя корзина, и ближняя четверть всегда срочнее дальней.
+     */
+    static final int PRIORITY_BUCKETS = 16;
+    /** Конус «перед камерой»: косинус угла между взглядом и направлением на блок. */
+    private static final double FRONT_COS = 0.5;
+    private static final double EYE_HEIGHT = 1.62;
+    /** Насколько должна сместиться камера, чтобы очередь пересортировалась по корзинам. */
+    private static final double REFOCUS_DISTANCE_SQ = 16.0 * 16.0;
+    private static final double REFOCUS_COS = 0.8;
+
+    /**
+     * С какого числа блоков чанк считается плотным. Переотправка такого чанка — один проход
+     * по его блокам с раскладкой по секциям, без корзин приоритета для каждого блока.
+     */
+    static final int DENSE_CHUNK_BLOCKS = 64;
+
+    /**
+     * Сколько ячеек ещё просматривается за тик, когда пакеты бюджета кончились: блоки уже
+     * открытых секций можно доложить, новые секции — нет. Без предела flush() при большой
+     * очереди перебирал бы её целиком каждый тик.
+     */
+    static final int TOP_UP_SCAN = 256;
+
+    /**
+     * Блоки одного мира. Каждый блок получает номер ячейки при первом {@link #set},
+     * дальше все сведения о нём лежат в массивах по этому номеру.
+     */
+    private static final class Layer {
+        final String world;
+        /** Упакованные координаты ({@link BlockKey}) → номер ячейки. */
+        final LongIntMap slots = new LongIntMap();
+        /** Ключ чанка → номер чанка в слое. */
+        final LongIntMap chunks = new LongIntMap();
+
+        int count;
+        long[] keys = new long[64];
+        /** Желаемое состояние блока в воспроизведении. */
+        int[] desired = new int[64];
+        /** Что реально было отправлено клиенту, NONE — ничего. */
+        int[] sent = new int[64];
+        /** Номер чанка ячейки и следующая ячейка того же чанка. */
+        int[] chunkOf = new int[64];
+        int[] nextInChunk = new int[64];
+        /** Следующая ячейка той же секции в текущем flush(). */
+        int[] nextInBatch = new int[64];
+        boolean[] queued = new boolean[64];
+
+        /*
+         * Очередь на отправку — корзины приоритета (0 — самая срочная), в каждой односвязный
+         * список ячеек через nextInQueue. Каждая ячейка стоит в очереди не больше одного раза.
+         */
+        int[] nextInQueue = new int[64];
+        /** Корзина, в которую ячейка поставлена последний раз. */
+        int[] bucketOf = new int[64];
+        final int[] bucketHead = new int[PRIORITY_BUCKETS];
+        final int[] bucketTail = new int[PRIORITY_BUCKETS];
+        int queueSize;
+
+        /*
+         * Чанки слоя для revalidate(): первая ячейка, отметка «в чанке есть блок, сброшенный
+         * из-за расстояния» и номер последнего прохода, в котором чанк был в радиусе.
+         */
+        int chunkCount;
+        long[] chunkKeys = new long[16];
+        int[] chunkFirst = new int[16];
+        int[] chunkSize = new int[16];
+        boolean[] chunkDirty = new boolean[16];
+        int[] chunkSeen = new int[16];
+        int pass;
+
+        /** Плотные чанки, ждущие переналожения целиком, в порядке отправки. */
+        int[] overlay = new int[16];
+        boolean[] overlayQueued = new boolean[16];
+        int overlayCount;
+
+        Layer(String world) {
+            this.world = world;
+            Arrays.fill(bucketHead, END);
+            Arrays.fill(bucketTail, END);
+        }
+
+        int slotOf(long key) {
+            int slot = slots.get(key);
+            if (slot >= 0) {
+                return slot;
+            }
+            if (count == keys.length) {
+                grow();
+            }
+            slot = count++;
+            keys[slot] = key;
+            desired[slot] = NONE;
+            sent[slot] = NONE;
+            slots.put(key, slot);
+
+            long chunkKey = chunkKey(BlockKey.x(key) >> 4, BlockKey.z(key) >> 4);
+            int chunk = chunks.get(chunkKey);
+            if (chunk < 0) {
+                chunk = addChunk(chunkKey);
+            }
+            chunkOf[slot] = chunk;
+            nextInChunk[slot] = chunkFirst[chunk];
+            chunkFirst[chunk] = slot;
+            chunkSize[chunk]++;
+            return slot;
+        }
+
+        private int addChunk(long chunkKey) {
+            if (chunkCount == chunkFirst.length) {
+                int capacity = chunkCount * 2;
+                chunkKeys = Arrays.copyOf(chunkKeys, capacity);
+                chunkFirst = Arrays.copyOf(chunkFirst, capacity);
+                chunkSize = Arrays.copyOf(chunkSize, capacity);
+                chunkDirty = Arrays.copyOf(chunkDirty, capacity);
+                chunkSeen = Arrays.copyOf(chunkSeen, capacity);
+                overlay = Arrays.copyOf(overlay, capacity);
+                overlayQueued = Arrays.copyOf(overlayQueued, capacity);
+            }
+            int chunk = chunkCount++;
+            chunkKeys[chunk] = chunkKey;
+            chunkFirst[chunk] = END;
+            // Новый чанк ещё ни разу не проверялся — ближайший проход считает его вошедшим в радиус
+            chunkSeen[chunk] = Integer.MIN_VALUE;
+            chunks.put(chunkKey, chunk);
+            return chunk;
+        }
+
+        private void grow() {
+            int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            desired = Arrays.copyOf(desired, capacity);
+            sent = Arrays.copyOf(sent, capacity);
+            chunkOf = Arrays.copyOf(chunkOf, capacity);
+            nextInChunk = Arrays.copyOf(nextInChunk, capacity);
+            nextInBatch = Arrays.copyOf(nextInBatch, capacity);
+            queued = Arrays.copyOf(queued, capacity);
+            nextInQueue = Arrays.copyOf(nextInQueue, capacity);
+            bucketOf = Arrays.copyOf(bucketOf, capacity);
+        }
+
+        void push(int slot, int bucket) {
+            queued[slot] = true;
+            bucketOf[slot] = bucket;
+            nextInQueue[slot] = END;
+            if (bucketTail[bucket] == END) {
+                bucketHead[bucket] = slot;
+            } else {
+                nextInQueue[bucketTail[bucket]] = slot;
+            }
+            bucketTail[bucket] = slot;
+            queueSize++;
+        }
+
+        /** Первая ячейка самой срочной непустой корзины; очередь не должна быть пустой. */
+        int poll() {
+            int bucket = 0;
+            while (bucketHead[bucket] == END) {
+                bucket++;
+            }
+            int slot = bucketHead[bucket];
+            bucketHead[bucket] = nextInQueue[slot];
+            if (bucketHead[bucket] == END) {
+                bucketTail[bucket] = END;
+            }
+            queueSize--;
+            queued[slot] = false;
+            return slot;
+        }
+
+        /**
+         * Вернуть вынутые {@link #poll()} ячейки в начало их прежних корзин, без пересчёта
+         * приоритета. Цепочка через nextInQueue — в порядке выдачи, поэтому ячейки одной
+         * корзины идут в ней подряд и встают перед остальными в том же порядке.
+         */
+        void unpoll(int first) {
+            int slot = first;
+            while (slot != END) {
+                int bucket = bucketOf[slot];
+                int last = slot;
+                queued[slot] = true;
+                queueSize++;
+                while (nextInQueue[last] != END && bucketOf[nextInQueue[last]] == bucket) {
+                    last = nextInQueue[last];
+                    queued[last] = true;
+                    queueSize++;
+                }
+                int next = nextInQueue[last];
+                nextInQueue[last] = bucketHead[bucket];
+                if (bucketHead[bucket] == END) {
+                    bucketTail[bucket] = last;
+                }
+                bucketHead[bucket] = slot;
+                slot = next;
+            }
+        }
+
+        void clearQueue() {
+            while (queueSize > 0) {
+                poll();
+            }
+        }
+
+        boolean isDense(int chunk) {
+            return chunkSize[chunk] >= DENSE_CHUNK_BLOCKS;
+        }
+
+        void pushOverlay(int chunk) {
+            if (!overlayQueued[chunk]) {
+                overlayQueued[chunk] = true;
+                overlay[overlayCount++] = chunk;
+            }
+        }
+
+        void clearOverlay() {
+            for (int i = 0; i < overlayCount; i++) {
+                overlayQueued[overlay[i]] = false;
+            }
+            overlayCount = 0;
+        }
+    }
+
     private final Plugin plugin;
     private final Player viewer;
-    private final int updatesPerTick;
+    /** Бюджет на тик; меняется каждый тик из {@link PacketBudget}. */
+    private int packetsPerTick;
+    private int bytesPerTick;
+    private final double renderDistance;
     private final double renderDistanceSq;
 
-    /** Желаемое состояние блока в воспроизведении. */
-    private final Map<BlockRef, BlockData> desired = new HashMap<>();
-    /** Что реально было отправлено клиенту. */
-    private final Map<BlockRef, BlockData> sent = new HashMap<>();
-    /** Индекс по чанкам для точечной ресинхронизации. */
-    private final Map<Long, Set<BlockRef>> byChunk = new HashMap<>();
+    private final Map<String, Layer> layers = new HashMap<>();
+    /** Последний использованный слой: подряд почти всегда идут блоки одного мира. */
+    private Layer lastLayer;
 
-    private final ArrayDeque<BlockRef> queue = new ArrayDeque<>();
-    private final Set<BlockRef> queued = new HashSet<>();
     private final Set<Long> chunkRequests = new HashSet<>();
 
+    /** Секции текущего flush(): ключ секции → номер, у номера — первая ячейка и число блоков. */
+    private final LongIntMap sectionIndex = new LongIntMap();
+    private int[] sectionFirst = new int[16];
+    private int[] sectionSize = new int[16];
+    private int sectionCount;
+    /** Потрачено из бюджета в текущем flush(). */
+    private int usedPackets;
+    private int usedBytes;
+
     private long chunkRequestCooldown = 0L;
 
-    public VirtualBlockView(Plugin plugin, Player viewer, int updatesPerTick, double renderDistance) {
+    /*
+     * Камера, по которой считались приоритеты очереди. Обновляется в flush(); пока камера
+     * не сдвинулась заметно, новые блоки встают в корзины по ней, а очередь не пересортировывается.
+     */
+    private boolean focused;
+    private double focusX;
+    private double focusY;
+    private double focusZ;
+    private double lookX;
+    private double lookY;
+    private double lookZ;
+
+    public VirtualBlockView(Plugin plugin, Player viewer, int packetsPerTick, int bytesPerTick, double renderDistance) {
         this.plugin = plugin;
         this.viewer = viewer;
-        this.updatesPerTick = Math.max(16, updatesPerTick);
+        setBudget(packetsPerTick, bytesPerTick);
+        this.renderDistance = renderDistance;
         this.renderDistanceSq = renderDistance * renderDistance;
     }
 
-    /**
-     * Задать желаемое состояние блока. Фактическая отправка произойдёт в flush().
-     */
-    public void set(BlockRef ref, BlockData data) {
-        if (data == null) {
-            return;
+    public void setBudget(int packetsPerTick, int bytesPerTick) {
+        this.packetsPerTick = Math.max(1, packetsPerTick);
+        this.bytesPerTick = Math.max(1024, bytesPerTick);
+    }
+
+    public int getPacketsPerTick() {
+        return packetsPerTick;
+    }
+
+    public int getBytesPerTick() {
+        return bytesPerTick;
+    }
+
+    private Layer layer(String world) {
+        Layer layer = lastLayer;
+        if (layer != null && (layer.world == world || layer.world.equals(world))) {
+            return layer;
         }
-        BlockData previous = desired.put(ref, data);
-        if (previous == null) {
-            byChunk.computeIfAbsent(ref.getChunkKey(), k -> new HashSet<>()).add(ref);
+        layer = layers.get(world);
+        if (layer == null) {
+            layer = new Layer(world);
+            layers.put(world, layer);
         }
-        enqueue(ref);
+        lastLayer = layer;
+        return layer;
+    }
+
+    private Layer existingLayer(String world) {
+        Layer layer = lastLayer;
+        if (layer != null && (layer.world == world || layer.world.equals(world))) {
+            return layer;
+        }
+        return layers.get(world);
+    }
+
+    private void enqueue(Layer layer, int slot) {
+        if (!layer.queued[slot]) {
+            layer.push(slot, priorityOf(layer, slot));
+        }
+    }
+
+    private int priorityOf(Layer layer, int slot) {
+        BlockData target = BlockStatePalette.getBlockData(layer.desired[slot]);
+        // Разрушение (воздух) важнее: по нему видно, куда копал игрок
+        boolean placed = target == null || !target.getMaterial().isAir();
+        if (!focused) {
+            return priority(0, false, placed);
+        }
+        long key = layer.keys[slot];
+        double dx = BlockKey.x(key) + 0.5 - focusX;
+        double dy = BlockKey.y(key) + 0.5 - focusY;
+        double dz = BlockKey.z(key) + 0.5 - focusZ;
+        double distanceSq = dx * dx + dy * dy + dz * dz;
+        int quarter = (int) Math.min(3.0, 4.0 * Math.sqrt(distanceSq / renderDistanceSq));
+        // Сравнение с косинусом без деления: dot >= cos * |d| (взгляд — единичный вектор)
+        double dot = dx * lookX + dy * lookY + dz * lookZ;
+        boolean behind = !(distanceSq < 4.0 || (dot > 0 && dot * dot >= FRONT_COS * FRONT_COS * distanceSq));
+        return priority(quarter, behind, placed);
+    }
+
+    /**
+     * Корзина приоритета (0 — самая срочная): сначала по четверти радиуса,
+     * затем в поле зрения или нет, затем разрушение или установка.
+     */
+    static int priority(int quarter, boolean behind, boolean placed) {
+        return quarter * 4 + (behind ? 2 : 0) + (placed ? 1 : 0);
     }
 
     /**
-     * Применить целиком новое состояние (используется при большом seek).
+     * Запомнить текущую камеру. Если она заметно сместилась или повернулась — разложить
+     * очередь по корзинам заново; обычный тик ничего не пересортировывает.
      */
-    public void setAll(Map<BlockRef, BlockData> state) {
-        for (Map.Entry<BlockRef, BlockData> entry : state.entrySet()) {
-            set(entry.getKey(), entry.getValue());
+    private void refocus(Layer layer, Location location) {
+        double x = location.getX();
+        double y = location.getY() + EYE_HEIGHT;
+        double z = location.getZ();
+        double yaw = Math.toRadians(location.getYaw());
+        double pitch = Math.toRadians(location.getPitch());
+        double lx = -Math.sin(yaw) * Math.cos(pitch);
+        double ly = -Math.sin(pitch);
+        double lz = Math.cos(yaw) * Math.cos(pitch);
+
+        if (focused) {
+            double dx = x - focusX;
+            double dy = y - focusY;
+            double dz = z - focusZ;
+            if (dx * dx + dy * dy + dz * dz < REFOCUS_DISTANCE_SQ
+                    && lx * lookX + ly * lookY + lz * lookZ > REFOCUS_COS) {
+                return;
+            }
+        }
+        focused = true;
+        focusX = x;
+        focusY = y;
+        focusZ = z;
+        lookX = lx;
+        lookY = ly;
+        lookZ = lz;
+
+        // Пересортировка: вынимаем все ячейки в порядке прежних приоритетов и ставим заново
+        int pending = layer.queueSize;
+        int first = END;
+        int last = END;
+        for (int i = 0; i < pending; i++) {
+            int slot = layer.poll();
+            layer.nextInQueue[slot] = END;
+            if (last == END) {
+                first = slot;
+            } else {
+                layer.nextInQueue[last] = slot;
+            }
+            last = slot;
         }
+        for (int slot = first; slot != END; ) {
+            int next = layer.nextInQueue[slot];
+            layer.push(slot, priorityOf(layer, slot));
+            slot = next;
+        }
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX & 0xFFFFFFFFL) | (((long) chunkZ & 0xFFFFFFFFL) << 32);
     }
 
-    private void enqueue(BlockRef ref) {
-        if (queued.add(ref)) {
-            queue.add(ref);
+    /**
+     * Задать желаемое состояние блока (номер в палитре). Фактическая отправка произойдёт в flush().
+     */
+    public void set(BlockRef ref, int state) {
+        if (state == NONE || BlockStatePalette.getBlockData(state) == null) {
+            return;
         }
+        Layer layer = layer(ref.getWorld());
+        int slot = layer.slotOf(BlockKey.pack(ref.getX(), ref.getY(), ref.getZ()));
+        int previous = layer.desired[slot];
+        layer.desired[slot] = state;
+        if (previous == state && layer.sent[slot] == state) {
+            // Клиент уже видит именно это состояние — очередь не трогаем
+            return;
+        }
+        enqueue(layer, slot);
     }
 
     /**
-     * Отправить накопившиеся изменения с учётом бюджета.
+     * Отправить накопившиеся изменения с учётом бюджета. Первыми уходят блоки рядом с камерой
+     * и в поле зрения, разрушения — раньше косметических замен.
      */
     public void flush() {
-        if (queue.isEmpty() || !viewer.isOnline()) {
+        if (!viewer.isOnline()) {
             return;
         }
 
         World viewerWorld = viewer.getWorld();
         String worldName = viewerWorld.getName();
-        double px = viewer.getLocation().getX();
-        double py = viewer.getLocation().getY();
-        double pz = viewer.getLocation().getZ();
 
-        int budget = updatesPerTick;
-        int deferred = 0;
-        int size = queue.size();
+        // Блоки других миров клиент не видит: отправлять нечего
+        for (Layer other : layers.values()) {
+            if (!other.world.equals(worldName)) {
+                while (other.queueSize > 0) {
+                    other.sent[other.poll()] = NONE;
+                }
+                other.clearOverlay();
+            }
+        }
 
-        while (budget > 0 && deferred < size && !queue.isEmpty()) {
-            BlockRef ref = queue.poll();
-            queued.remove(ref);
+        Layer layer = existingLayer(worldName);
+        if (layer == null || layer.queueSize == 0 && layer.overlayCount == 0) {
+            return;
+        }
 
-            if (!worldName.equals(ref.getWorld())) {
-                // Блок в другом мире: отправлять нечего, клиент его не видит
-                sent.remove(ref);
-                continue;
+        Location location = viewer.getLocation();
+        double px = location.getX();
+        double py = location.getY();
+        double pz = location.getZ();
+        refocus(layer, location);
+
+        usedPackets = 0;
+        usedBytes = 0;
+        // Плотные чанки первыми: это переотправка того, что клиент уже должен видеть
+        flushOverlay(viewerWorld, layer, px, py, pz);
+
+        int size = layer.queueSize;
+        sectionCount = 0;
+        // Отложенные ячейки возвращаются в очередь после прохода, иначе срочная корзина
+        // выдавала бы их снова и снова в этом же тике. Цепочка хранит порядок выдачи
+        int deferred = END;
+        int deferredLast = END;
+
+        // Сначала раскладываем очередь по секциям в пределах бюджета, потом отправляем.
+        // Каждый блок просматривается не больше одного раза за тик: отложенные возвращаются
+        // в начало своих корзин, и порядок внутри корзины от тика к тику не меняется
+        int topUp = TOP_UP_SCAN;
+        for (int processed = 0; processed < size && usedBytes < bytesPerTick && layer.queueSize > 0; processed++) {
+            if (usedPackets >= packetsPerTick && topUp-- <= 0) {
+                // Остаток очереди не просматривается и остаётся в своих корзинах как есть
+                break;
             }
+            int slot = layer.poll();
+            long key = layer.keys[slot];
+            int x = BlockKey.x(key);
+            int y = BlockKey.y(key);
+            int z = BlockKey.z(key);
 
-            if (ref.distanceSquared(px, py, pz) > renderDistanceSq) {
+            if (distanceSquared(x, y, z, px, py, pz) > renderDistanceSq) {
                 // Слишком далеко — клиент всё равно выгрузит чанк.
                 // Сбрасываем отметку об отправленном: блок вернётся в очередь через
                 // onChunkSent() или revalidate(), когда зритель окажется рядом.
-                sent.remove(ref);
+                layer.sent[slot] = NONE;
+                layer.chunkDirty[layer.chunkOf[slot]] = true;
                 continue;
             }
 
-            if (!viewerWorld.isChunkLoaded(ref.getChunkX(), ref.getChunkZ())) {
-                requestChunk(viewerWorld, ref);
-                enqueue(ref);
-                deferred++;
+            if (!viewerWorld.isChunkLoaded(x >> 4, z >> 4)) {
+                requestChunk(viewerWorld, x >> 4, z >> 4);
+                deferredLast = defer(layer, slot, deferredLast);
+                if (deferred == END) {
+                    deferred = slot;
+                }
                 continue;
             }
 
-            BlockData target = desired.get(ref);
-            if (target == null) {
+            if (!viewer.isChunkSent(chunkKey(x >> 4, z >> 4))) {
+                // Чанка у клиента ещё нет — пакет он затрёт. Блок вернётся через onChunkSent()
+                layer.sent[slot] = NONE;
                 continue;
             }
 
-            BlockData alreadySent = sent.get(ref);
-            if (alreadySent != null && alreadySent.matches(target)) {
+            int target = layer.desired[slot];
+            if (target == NONE || layer.sent[slot] == target) {
                 continue;
             }
 
-            viewer.sendBlockChange(ref.toLocation(viewerWorld), target);
-            sent.put(ref, target);
-            budget--;
+            long sectionKey = BlockKey.pack(x >> 4, y >> 4, z >> 4);
+            int section = sectionIndex.get(sectionKey);
+            if (section < 0) {
+                if (usedPackets >= packetsPerTick) {
+                    // Новых пакетов в этот тик уже не будет — блок ждёт следующего
+                    deferredLast = defer(layer, slot, deferredLast);
+                    if (deferred == END) {
+                        deferred = slot;
+                    }
+                    continue;
+                }
+                section = addSection(sectionKey);
+                usedPackets++;
+                usedBytes += SECTION_HEADER_BYTES;
+            }
+            addToSection(layer, section, slot);
+            usedBytes += SECTION_ENTRY_BYTES;
+        }
+
+        layer.unpoll(deferred);
+
+        sendSections(viewerWorld, layer);
+    }
+
+    /**
+     * Дописать ячейку в конец цепочки отложенных.
+     *
+     * @return новый конец цепочки
+     */
+    private static int defer(Layer layer, int slot, int last) {
+        layer.nextInQueue[slot] = END;
+        if (last != END) {
+            layer.nextInQueue[last] = slot;
+        }
+        return slot;
+    }
+
+    /**
+     * Переналожить плотные чанки из очереди: один проход по блокам чанка,
+     * раскладка по секциям и по пакету на секцию. Бюджет тика проверяется на каждую
+     * новую секцию: то, что в него не влезло, уходит в следующих тиках, а чанк
+     * остаётся в очереди на своём месте, пока не будет отправлен целиком.
+     */
+    private void flushOverlay(World world, Layer layer, double px, double py, double pz) {
+        int kept = 0;
+        int count = layer.overlayCount;
+        for (int i = 0; i < count; i++) {
+            int chunk = layer.overlay[i];
+            if (usedPackets >= packetsPerTick || usedBytes >= bytesPerTick) {
+                layer.overlay[kept++] = chunk;
+                continue;
+            }
+            long key = layer.chunkKeys[chunk];
+            int chunkX = (int) key;
+            int chunkZ = (int) (key >>> 32);
+            if (!world.isChunkLoaded(chunkX, chunkZ)) {
+                requestChunk(world, chunkX, chunkZ);
+                layer.overlay[kept++] = chunk;
+                continue;
+            }
+            layer.overlayQueued[chunk] = false;
+            if (!viewer.isChunkSent(key)) {
+                // Чанк ещё не у клиента — onChunkSent() поставит его в очередь сам
+                continue;
+            }
+
+            boolean partial = false;
+            for (int slot = layer.chunkFirst[chunk]; slot != END; slot = layer.nextInChunk[slot]) {
+                int target = layer.desired[slot];
+                if (target == NONE || layer.sent[slot] == target) {
+                    continue;
+                }
+                if (usedBytes >= bytesPerTick) {
+                    partial = true;
+                    break;
+                }
+                long blockKey = layer.keys[slot];
+                int x = BlockKey.x(blockKey);
+                int y = BlockKey.y(blockKey);
+                int z = BlockKey.z(blockKey);
+                if (distanceSquared(x, y, z, px, py, pz) > renderDistanceSq) {
+                    layer.sent[slot] = NONE;
+                    layer.chunkDirty[chunk] = true;
+                    continue;
+                }
+                long sectionKey = BlockKey.pack(chunkX, y >> 4, chunkZ);
+                int section = sectionIndex.get(sectionKey);
+                if (section < 0) {
+                    if (usedPackets >= packetsPerTick) {
+                        // Секция не влезает в тик; блоки уже открытых секций ещё можно добрать
+                        partial = true;
+                        continue;
+                    }
+                    section = addSection(sectionKey);
+                    usedPackets++;
+                    usedBytes += SECTION_HEADER_BYTES;
+                }
+                addToSection(layer, section, slot);
+                usedBytes += SECTION_ENTRY_BYTES;
+            }
+            // Сразу отправляем: иначе блок, который стоит ещё и в обычной очереди,
+            // попал бы в секцию второй раз
+            sendSections(world, layer);
+            if (partial) {
+                // Отправленное отмечено в sent — в следующий раз пройдёт только остаток
+                layer.overlayQueued[chunk] = true;
+                layer.overlay[kept++] = chunk;
+            }
+        }
+        layer.overlayCount = kept;
+    }
+
+    private void addToSection(Layer layer, int section, int slot) {
+        layer.nextInBatch[slot] = sectionFirst[section];
+        sectionFirst[section] = slot;
+        sectionSize[section]++;
+    }
+
+    private void sendSections(World world, Layer layer) {
+        for (int section = 0; section < sectionCount; section++) {
+            send(world, layer, section);
+        }
+        sectionIndex.clear();
+        sectionCount = 0;
+    }
+
+    private int addSection(long sectionKey) {
+        if (sectionCount == sectionFirst.length) {
+            sectionFirst = Arrays.copyOf(sectionFirst, sectionCount * 2);
+            sectionSize = Arrays.copyOf(sectionSize, sectionCount * 2);
+        }
+        int section = sectionCount++;
+        sectionFirst[section] = END;
+        sectionSize[section] = 0;
+        sectionIndex.put(sectionKey, section);
+        return section;
+    }
+
+    private void send(World world, Layer layer, int section) {
+        int first = sectionFirst[section];
+        if (sectionSize[section] == 1) {
+            long key = layer.keys[first];
+            int target = layer.desired[first];
+            viewer.sendBlockChange(new Location(world, BlockKey.x(key), BlockKey.y(key), BlockKey.z(key)),
+                    BlockStatePalette.getBlockData(target));
+            layer.sent[first] = target;
+            return;
         }
+        // Paper соберёт из этой карты один пакет изменения секции
+        Map<Position, BlockData> changes = new HashMap<>(sectionSize[section] * 2);
+        for (int slot = first; slot != END; slot = layer.nextInBatch[slot]) {
+            long key = layer.keys[slot];
+            int target = layer.desired[slot];
+            changes.put(Position.block(BlockKey.x(key), BlockKey.y(key), BlockKey.z(key)),
+                    BlockStatePalette.getBlockData(target));
+            layer.sent[slot] = target;
+        }
+        viewer.sendMultiBlockChange(changes);
     }
 
-    private void requestChunk(World world, BlockRef ref) {
-        long key = ref.getChunkKey();
+    private static double distanceSquared(int x, int y, int z, double px, double py, double pz) {
+        double dx = (x + 0.5) - px;
+        double dy = (y + 0.5) - py;
+        double dz = (z + 0.5) - pz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private void requestChunk(World world, int chunkX, int chunkZ) {
+        long key = chunkKey(chunkX, chunkZ);
         long now = System.currentTimeMillis();
         if (now < chunkRequestCooldown) {
             return;
@@ -154,7 +731,7 @@ public final class VirtualBlockView {
         }
         chunkRequestCooldown = now + 50L;
         // Асинхронная загрузка: не блокирует основной поток и не роняет TPS
-        world.getChunkAtAsync(ref.getChunkX(), ref.getChunkZ(), false)
+        world.getChunkAtAsync(chunkX, chunkZ, false)
                 .thenRun(() -> chunkRequests.remove(key));
     }
 
@@ -163,14 +740,36 @@ public final class VirtualBlockView {
      * Именно здесь раньше терялись фейковые блоки и запись "рассыпалась".
      */
     public void onChunkSent(int chunkX, int chunkZ) {
-        long key = ((long) chunkX & 0xFFFFFFFFL) | (((long) chunkZ & 0xFFFFFFFFL) << 32);
-        Set<BlockRef> refs = byChunk.get(key);
-        if (refs == null || refs.isEmpty()) {
+        if (!viewer.isOnline()) {
             return;
         }
-        for (BlockRef ref : refs) {
-            sent.remove(ref);
-            enqueue(ref);
+        Layer layer = existingLayer(viewer.getWorld().getName());
+        if (layer == null) {
+            return;
+        }
+        int chunk = layer.chunks.get(chunkKey(chunkX, chunkZ));
+        if (chunk < 0) {
+            return;
+        }
+        for (int slot = layer.chunkFirst[chunk]; slot != END; slot = layer.nextInChunk[slot]) {
+            layer.sent[slot] = NONE;
+        }
+        queueChunk(layer, chunk);
+    }
+
+    /**
+     * Поставить на отправку всё, что клиент в чанке видит не так: плотный чанк — целиком,
+     * разреженный — поблочно через очередь приоритетов.
+     */
+    private void queueChunk(Layer layer, int chunk) {
+        if (layer.isDense(chunk)) {
+            layer.pushOverlay(chunk);
+            return;
+        }
+        for (int slot = layer.chunkFirst[chunk]; slot != END; slot = layer.nextInChunk[slot]) {
+            if (layer.desired[slot] != NONE && layer.sent[slot] != layer.desired[slot]) {
+                enqueue(layer, slot);
+            }
         }
     }
 
@@ -178,32 +777,82 @@ public final class VirtualBlockView {
      * Периодическая проверка: вернуть в очередь всё, что должно быть видно рядом,
      * но фактически клиенту не отправлено: блок был далеко в момент flush(),
      * зритель к нему переместился, либо чанк пришёл позже пакета изменения.
+     *
+     * Раньше проверялись все блоки записи. Теперь обходятся только чанки в радиусе отправки,
+     * и из них просматриваются лишь вошедшие в радиус с прошлой проверки и те, где flush()
+     * отбросил блок из-за расстояния. Цена зависит от того, что рядом со зрителем,
+     * а не от размера записи.
      */
     public int revalidate() {
-        if (!viewer.isOnline() || desired.isEmpty()) {
+        if (!viewer.isOnline()) {
             return 0;
         }
-        String worldName = viewer.getWorld().getName();
-        double px = viewer.getLocation().getX();
-        double py = viewer.getLocation().getY();
-        double pz = viewer.getLocation().getZ();
+        Layer layer = existingLayer(viewer.getWorld().getName());
+        if (layer == null || layer.chunkCount == 0) {
+            return 0;
+        }
+        Location location = viewer.getLocation();
+        double px = location.getX();
+        double py = location.getY();
+        double pz = location.getZ();
+
+        int minChunkX = (int) Math.floor(px - renderDistance) >> 4;
+        int maxChunkX = (int) Math.floor(px + renderDistance) >> 4;
+        int minChunkZ = (int) Math.floor(pz - renderDistance) >> 4;
+        int maxChunkZ = (int) Math.floor(pz + renderDistance) >> 4;
 
+        int previousPass = layer.pass++;
         int restored = 0;
-        for (Map.Entry<BlockRef, BlockData> entry : desired.entrySet()) {
-            BlockRef ref = entry.getKey();
-            if (!worldName.equals(ref.getWorld())) {
-                continue;
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                int chunk = layer.chunks.get(chunkKey(chunkX, chunkZ));
+                if (chunk < 0) {
+                    continue;
+                }
+                boolean entered = layer.chunkSeen[chunk] != previousPass;
+                layer.chunkSeen[chunk] = layer.pass;
+                if (!entered && !layer.chunkDirty[chunk]) {
+                    continue;
+                }
+                restored += revalidateChunk(layer, chunk, px, py, pz);
+            }
+        }
+        return restored;
+    }
+
+    private int revalidateChunk(Layer layer, int chunk, double px, double py, double pz) {
+        if (layer.isDense(chunk)) {
+            // Расстояние до каждого блока проверит flushOverlay()
+            int missing = 0;
+            for (int slot = layer.chunkFirst[chunk]; slot != END; slot = layer.nextInChunk[slot]) {
+                int target = layer.desired[slot];
+                if (target != NONE && layer.sent[slot] != target) {
+                    missing++;
+                }
+            }
+            layer.chunkDirty[chunk] = false;
+            if (missing > 0) {
+                layer.pushOverlay(chunk);
             }
-            if (ref.distanceSquared(px, py, pz) > renderDistanceSq) {
+            return missing;
+        }
+        int restored = 0;
+        boolean dirty = false;
+        for (int slot = layer.chunkFirst[chunk]; slot != END; slot = layer.nextInChunk[slot]) {
+            int target = layer.desired[slot];
+            if (target == NONE || layer.sent[slot] == target || layer.queued[slot]) {
                 continue;
             }
-            BlockData alreadySent = sent.get(ref);
-            if (alreadySent != null && alreadySent.matches(entry.getValue())) {
+            long key = layer.keys[slot];
+            if (distanceSquared(BlockKey.x(key), BlockKey.y(key), BlockKey.z(key), px, py, pz) > renderDistanceSq) {
+                // Угол чанка ещё вне радиуса — проверим чанк снова в следующий раз
+                dirty = true;
                 continue;
             }
-            enqueue(ref);
+            enqueue(layer, slot);
             restored++;
         }
+        layer.chunkDirty[chunk] = dirty;
         return restored;
     }
 
@@ -213,57 +862,170 @@ public final class VirtualBlockView {
      * отправленные раньше самого чанка, затираются реальными данными мира.
      */
     public int resync() {
-        sent.clear();
-        queue.clear();
-        queued.clear();
-        for (BlockRef ref : desired.keySet()) {
-            enqueue(ref);
+        Location location = viewer.isOnline() ? viewer.getLocation() : null;
+        int queued = 0;
+        for (Layer layer : layers.values()) {
+            layer.clearQueue();
+            layer.clearOverlay();
+            Arrays.fill(layer.sent, 0, layer.count, NONE);
+            for (int chunk = 0; chunk < layer.chunkCount; chunk++) {
+                queueChunk(layer, chunk);
+            }
+            if (location != null && location.getWorld() != null
+                    && layer.world.equals(location.getWorld().getName())) {
+                sortOverlay(layer, location.getX(), location.getZ());
+            }
+            queued += pending(layer);
         }
-        return queue.size();
+        return queued;
+    }
+
+    /**
+     * Упорядочить очередь плотных чанков от ближнего к дальнему.
+     */
+    private static void sortOverlay(Layer layer, double px, double pz) {
+        long[] order = new long[layer.overlayCount];
+        for (int i = 0; i < order.length; i++) {
+            int chunk = layer.overlay[i];
+            long key = layer.chunkKeys[chunk];
+            double dx = ((int) key << 4) + 8 - px;
+            double dz = ((int) (key >>> 32) << 4) + 8 - pz;
+            long distance = (long) Math.min(Integer.MAX_VALUE, dx * dx + dz * dz);
+            order[i] = distance << 32 | chunk;
+        }
+        Arrays.sort(order);
+        for (int i = 0; i < order.length; i++) {
+            layer.overlay[i] = (int) order[i];
+        }
+    }
+
+    /**
+     * Клиент получил все чанки слоя рядом с камерой, и отправлять больше нечего.
+     * По этому признаку сессия заканчивает загрузку после телепорта раньше
+     * {@code start-delay-ticks}.
+     */
+    public boolean isClientReady() {
+        if (!viewer.isOnline()) {
+            return false;
+        }
+        Layer layer = existingLayer(viewer.getWorld().getName());
+        if (layer == null) {
+            return true;
+        }
+        if (layer.queueSize > 0 || layer.overlayCount > 0) {
+            return false;
+        }
+        Location location = viewer.getLocation();
+        double radius = Math.min(renderDistance, viewer.getSendViewDistance() * 16.0);
+        int minChunkX = (int) Math.floor(location.getX() - radius) >> 4;
+        int maxChunkX = (int) Math.floor(location.getX() + radius) >> 4;
+        int minChunkZ = (int) Math.floor(location.getZ() - radius) >> 4;
+        int maxChunkZ = (int) Math.floor(location.getZ() + radius) >> 4;
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                long key = chunkKey(chunkX, chunkZ);
+                if (layer.chunks.get(key) >= 0 && !viewer.isChunkSent(key)) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     /**
      * Вернуть зрителю реальное состояние мира.
      * Состояние берётся из мира СЕЙЧАС, а не из снимка на момент старта —
      * иначе изменения, сделанные в мире во время просмотра, оставались бы призраками.
+     *
+     * Здесь только собираются отправленные блоки по чанкам; чтение мира, сравнение
+     * и отправку возвращённый {@link BlockRestore} растягивает на следующие тики.
+     *
+     * @return возврат для {@link ReplayManager} или null, если зрителю ничего не отправлялось
      */
-    public void restore() {
-        if (viewer.isOnline()) {
-            World world = viewer.getWorld();
-            String worldName = world.getName();
-            Iterator<BlockRef> iterator = sent.keySet().iterator();
-            while (iterator.hasNext()) {
-                BlockRef ref = iterator.next();
-                if (!worldName.equals(ref.getWorld())) {
-                    continue;
+    BlockRestore restore() {
+        BlockRestore restore = null;
+        Layer layer = viewer.isOnline() ? existingLayer(viewer.getWorld().getName()) : null;
+        if (layer != null) {
+            int sentCount = 0;
+            int chunkCount = 0;
+            for (int chunk = 0; chunk < layer.chunkCount; chunk++) {
+                boolean any = false;
+                for (int slot = layer.chunkFirst[chunk]; slot != END; slot = layer.nextInChunk[slot]) {
+                    if (layer.sent[slot] != NONE) {
+                        sentCount++;
+                        any = true;
+                    }
                 }
-                if (!world.isChunkLoaded(ref.getChunkX(), ref.getChunkZ())) {
-                    // Незагруженный чанк клиент получит заново с реальными данными
-                    continue;
+                if (any) {
+                    chunkCount++;
+                }
+            }
+
+            int[] chunkX = new int[chunkCount];
+            int[] chunkZ = new int[chunkCount];
+            int[] chunkStart = new int[chunkCount + 1];
+            long[] keys = new long[sentCount];
+            BlockData[] sent = new BlockData[sentCount];
+            int c = 0;
+            int i = 0;
+            for (int chunk = 0; chunk < layer.chunkCount; chunk++) {
+                int start = i;
+                for (int slot = layer.chunkFirst[chunk]; slot != END; slot = layer.nextInChunk[slot]) {
+                    if (layer.sent[slot] != NONE) {
+                        keys[i] = layer.keys[slot];
+                        // Разбор строки состояния — только здесь, в основном потоке
+                        sent[i] = BlockStatePalette.getBlockData(layer.sent[slot]);
+                        i++;
+                    }
+                }
+                if (i > start) {
+                    chunkX[c] = BlockKey.x(keys[start]) >> 4;
+                    chunkZ[c] = BlockKey.z(keys[start]) >> 4;
+                    chunkStart[c] = start;
+                    c++;
                 }
-                Block block = world.getBlockAt(ref.getX(), ref.getY(), ref.getZ());
-                viewer.sendBlockChange(ref.toLocation(world), block.getBlockData());
+            }
+            chunkStart[chunkCount] = sentCount;
+            if (sentCount > 0) {
+                restore = new BlockRestore(plugin, viewer, layer.world, chunkX, chunkZ, chunkStart, keys, sent,
+                        packetsPerTick, bytesPerTick);
             }
         }
 
-        desired.clear();
-        sent.clear();
-        byChunk.clear();
-        queue.clear();
-        queued.clear();
+        layers.clear();
+        lastLayer = null;
         chunkRequests.clear();
+        return restore;
     }
 
     public int getTrackedBlocks() {
-        return desired.size();
+        int tracked = 0;
+        for (Layer layer : layers.values()) {
+            tracked += layer.count;
+        }
+        return tracked;
     }
 
     public int getPendingUpdates() {
-        return queue.size();
+        int pending = 0;
+        for (Layer layer : layers.values()) {
+            pending += pending(layer);
+        }
+        return pending;
+    }
+
+    private static int pending(Layer layer) {
+        int pending = layer.queueSize;
+        for (int i = 0; i < layer.overlayCount; i++) {
+            pending += layer.chunkSize[layer.overlay[i]];
+        }
+        return pending;
     }
 
     public boolean isAir(BlockRef ref) {
-        BlockData data = desired.get(ref);
+        Layer layer = existingLayer(ref.getWorld());
+        int slot = layer == null ? -1 : layer.slots.get(BlockKey.pack(ref.getX(), ref.getY(), ref.getZ()));
+        BlockData data = slot < 0 ? null : BlockStatePalette.getBlockData(layer.desired[slot]);
         return data == null || data.getMaterial() == Material.AIR;
     }
 }
@@ -0,0 +1,642 @@
+package com.example.antixrayviewer.storage;
+
+import com.example.antixrayviewer.data.BlockEvent;
+import com.example.antixrayviewer.data.BlockKey;
+import com.example.antixrayviewer.data.BlockStatePalette;
+import com.example.antixrayviewer.data.FrameStore;
+import com.example.antixrayviewer.data.PlayerRecording;
+import com.example.antixrayviewer.data.TimelineIndex;
+import org.bukkit.Material;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Компактный бинарный формат записи (*.axr).
+ *
+ * Раньше каждый кадр писался красивым JSON: имя мира, имена полей и полные строки
+ * состояний блоков повторялись тысячи раз. Здесь:
+ * <ul>
+ *   <li>все строки (миры, материалы, состояния блоков) лежат один раз в таблице строк файла;</li>
+ *   <li>время кадров — дельты в varint;</li>
+ *   <li>координаты — фиксированная точка 1/4096 блока (как в протоколе), тоже дельтами;</li>
+ *   <li>флаги кадра упакованы в один байт;</li>
+ *   <li>с версии 2 после кадров лежит {@link TimelineIndex} — готовые дельты, интервалы
+ *       и маркеры, чтобы открытие записи не проходило заново по всем событиям.</li>
+ * </ul>
+ *
+ * Формат версионирован: при изменении раскладки увеличивается {@link #VERSION},
+ * а чтение старых версий остаётся в {@link #decode(InputStream)}.
+ */
+final class BinaryRecordingCodec {
+
+    /** "AXR" + 0x00. */
+    static final int MAGIC = 0x41585200;
+    static final int VERSION = 2;
+    /** Версия без индекса таймлинии — читается, индекс строится при открытии. */
+    static final int VERSION_WITHOUT_INDEX = 1;
+
+    private static final double POSITION_SCALE = 4096.0;
+    private static final double ANGLE_SCALE = 100.0;
+    private static final double HEALTH_SCALE = 100.0;
+
+    private static final int FLAG_SNEAKING = 1;
+    private static final int FLAG_SPRINTING = 1 << 1;
+    private static final int FLAG_FLYING = 1 << 2;
+    private static final int FLAG_WORLD_CHANGED = 1 << 3;
+    private static final int FLAG_HAS_EVENTS = 1 << 4;
+
+    private static final BlockEvent.EventType[] EVENT_TYPES = BlockEvent.EventType.values();
+
+    private BinaryRecordingCodec() {
+    }
+
+    // ===================== Запись =====================
+
+    static void encode(PlayerRecording recording, OutputStream target) throws IOException {
+        DataOutputStream out = new DataOutputStream(target);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        writeVarInt(out, recording.getId());
+        out.writeLong(recording.getPlayerId().getMostSignificantBits());
+        out.writeLong(recording.getPlayerId().getLeastSignificantBits());
+        writeString(out, recording.getPlayerName());
+        writeString(out, recording.getReason());
+        writeString(out, recording.getEndReason());
+        out.writeLong(recording.getStartTime());
+        out.writeLong(recording.getEndTime());
+
+        FrameStore frames = recording.getFrameStore();
+        writeFrames(out, frames, 0, frames.size(), recording.getStartTime());
+        // Запись завершена: индекс строится здесь, в потоке хранилища, а не при открытии
+        writeIndex(out, recording.getTimelineIndex());
+        out.flush();
+    }
+
+    /**
+     * Таблица строк и кадры [from, to). Дельты считаются от {@code baseTime} и нулевой позиции,
+     * поэтому блок самодостаточен — так же пишутся сегменты журнала активной записи.
+     */
+    static void writeFrames(DataOutputStream out, FrameStore frames, int from, int to, long baseTime)
+            throws IOException {
+        StringTable strings = new StringTable();
+        for (int i = from; i < to; i++) {
+            strings.add(frames.getWorld(i));
+        }
+        int firstEvent = from < to ? frames.getEventStart(from) : 0;
+        int lastEvent = from < to ? frames.getEventEnd(to - 1) : 0;
+        for (int e = firstEvent; e < lastEvent; e++) {
+            strings.add(frames.getEventWorld(e));
+            strings.add(frames.getEventMaterial(e).name());
+            strings.add(BlockStatePalette.getString(frames.getEventState(e)));
+            strings.add(BlockStatePalette.getString(frames.getEventPreviousState(e)));
+        }
+
+        writeVarInt(out, strings.size());
+        for (String value : strings.values()) {
+            out.writeUTF(value);
+        }
+
+        writeVarInt(out, to - from);
+        long previousTime = baseTime;
+        long px = 0L;
+        long py = 0L;
+        long pz = 0L;
+        int pyaw = 0;
+        int ppitch = 0;
+        int phealth = 0;
+        int worldId = -1;
+
+        for (int i = from; i < to; i++) {
+            int frameWorld = frames.getWorldId(i);
+            int eventStart = frames.getEventStart(i);
+            int eventEnd = frames.getEventEnd(i);
+
+            int flags = 0;
+            if (frames.isSneaking(i)) {
+                flags |= FLAG_SNEAKING;
+            }
+            if (frames.isSprinting(i)) {
+                flags |= FLAG_SPRINTING;
+            }
+            if (frames.isFlying(i)) {
+                flags |= FLAG_FLYING;
+            }
+            if (frameWorld != worldId) {
+                flags |= FLAG_WORLD_CHANGED;
+            }
+            if (eventEnd > eventStart) {
+                flags |= FLAG_HAS_EVENTS;
+            }
+            out.writeByte(flags);
+
+            long timestamp = frames.getTime(i);
+            writeVarLong(out, zigZag(timestamp - previousTime));
+            previousTime = timestamp;
+
+            if (frameWorld != worldId) {
+                writeVarInt(out, strings.indexOf(frames.getWorldName(frameWorld)));
+                worldId = frameWorld;
+            }
+
+            long x = Math.round(frames.getX(i) * POSITION_SCALE);
+            long y = Math.round(frames.getY(i) * POSITION_SCALE);
+            long z = Math.round(frames.getZ(i) * POSITION_SCALE);
+            writeVarLong(out, zigZag(x - px));
+            writeVarLong(out, zigZag(y - py));
+            writeVarLong(out, zigZag(z - pz));
+            px = x;
+            py = y;
+            pz = z;
+
+            int yaw = (int) Math.round(frames.getYaw(i) * ANGLE_SCALE);
+            int pitch = (int) Math.round(frames.getPitch(i) * ANGLE_SCALE);
+            writeVarInt(out, zigZag(yaw - pyaw));
+            writeVarInt(out, zigZag(pitch - ppitch));
+            pyaw = yaw;
+            ppitch = pitch;
+
+            int health = (int) Math.round(frames.getHealth(i) * HEALTH_SCALE);
+            writeVarInt(out, zigZag(health - phealth));
+            phealth = health;
+            writeVarInt(out, frames.getFoodLevel(i));
+
+            if (eventEnd > eventStart) {
+                writeVarInt(out, eventEnd - eventStart);
+                // Опорный блок — от УЖЕ округлённой позиции: читатель видит только её.
+                // floor() исходной позиции у границы блока (x = 10.99995 → 11.0) дал бы
+                // другой блок, и все события кадра сместились бы при чтении на единицу
+                int bx = blockOf(x);
+                int by = blockOf(y);
+                int bz = blockOf(z);
+                for (int e = eventStart; e < eventEnd; e++) {
+                    writeEvent(out, frames, e, timestamp, bx, by, bz, strings);
+                }
+            }
+        }
+    }
+
+    /**
+     * Блок, в котором лежит позиция в фиксированной точке 1/4096.
+     */
+    private static int blockOf(long position) {
+        return (int) Math.floorDiv(position, (long) POSITION_SCALE);
+    }
+
+    private static void writeEvent(DataOutputStream out, FrameStore frames, int e, long frameTime,
+                                   int frameX, int frameY, int frameZ, StringTable strings) throws IOException {
+        out.writeByte(frames.getEventType(e).ordinal());
+        writeVarLong(out, zigZag(frames.getEventTime(e) - frameTime));
+        // Координаты блока — относительно игрока: почти всегда укладываются в один байт
+        writeVarInt(out, zigZag(frames.getEventX(e) - frameX));
+        writeVarInt(out, zigZag(frames.getEventY(e) - frameY));
+        writeVarInt(out, zigZag(frames.getEventZ(e) - frameZ));
+        writeVarInt(out, strings.indexOf(frames.getEventWorld(e)));
+        writeVarInt(out, strings.indexOf(frames.getEventMaterial(e).name()));
+        out.writeByte(Math.round(Math.max(0f, Math.min(1f, frames.getEventProgress(e))) * 255f));
+        writeVarInt(out, zigZag(frames.getEventEntityId(e)));
+        writeVarInt(out, strings.indexOf(BlockStatePalette.getString(frames.getEventState(e))) + 1);
+        writeVarInt(out, strings.indexOf(BlockStatePalette.getString(frames.getEventPreviousState(e))) + 1);
+    }
+
+    // ===================== Чтение =====================
+
+    static PlayerRecording decode(InputStream source) throws IOException {
+        DataInputStream in = new DataInputStream(source);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an AXR recording");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION && version != VERSION_WITHOUT_INDEX) {
+            throw new IOException("Unsupported AXR version: " + version);
+        }
+
+        int id = readVarInt(in);
+        UUID playerId = new UUID(in.readLong(), in.readLong());
+        String playerName = readString(in);
+        String reason = readString(in);
+        String endReason = readString(in);
+        long startTime = in.readLong();
+        long endTime = in.readLong();
+
+        PlayerRecording recording = new PlayerRecording(id, playerId, playerName, reason, startTime);
+        recording.setEndTime(endTime);
+        recording.setEndReason(endReason);
+
+        readFrames(in, recording, startTime);
+        recording.trimToSize();
+        if (version >= VERSION) {
+            recording.setTimelineIndex(readIndex(in));
+        }
+        return recording;
+    }
+
+    /**
+     * Прочитать блок, записанный {@link #writeFrames}, и добавить кадры в запись.
+     */
+    static void readFrames(DataInputStream in, PlayerRecording recording, long baseTime) throws IOException {
+        String[] strings = new String[readVarInt(in)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+
+        int frameCount = readVarInt(in);
+        long time = baseTime;
+        long px = 0L;
+        long py = 0L;
+        long pz = 0L;
+        int pyaw = 0;
+        int ppitch = 0;
+        int phealth = 0;
+        String world = null;
+
+        for (int i = 0; i < frameCount; i++) {
+            int flags = in.readUnsignedByte();
+            time += unZigZag(readVarLong(in));
+            if ((flags & FLAG_WORLD_CHANGED) != 0) {
+                world = string(strings, readVarInt(in));
+            }
+            px += unZigZag(readVarLong(in));
+            py += unZigZag(readVarLong(in));
+            pz += unZigZag(readVarLong(in));
+            pyaw += unZigZag(readVarInt(in));
+            ppitch += unZigZag(readVarInt(in));
+            phealth += unZigZag(readVarInt(in));
+            int food = readVarInt(in);
+
+            double x = px / POSITION_SCALE;
+            double y = py / POSITION_SCALE;
+            double z = pz / POSITION_SCALE;
+            recording.addFrame(time, x, y, z,
+                    (float) (pyaw / ANGLE_SCALE), (float) (ppitch / ANGLE_SCALE), world,
+                    (flags & FLAG_SNEAKING) != 0, (flags & FLAG_SPRINTING) != 0, (flags & FLAG_FLYING) != 0,
+                    phealth / HEALTH_SCALE, food);
+
+            if ((flags & FLAG_HAS_EVENTS) != 0) {
+                int eventCount = readVarInt(in);
+                int bx = blockOf(px);
+                int by = blockOf(py);
+                int bz = blockOf(pz);
+                for (int e = 0; e < eventCount; e++) {
+                    recording.addBlockEvent(readEvent(in, time, bx, by, bz, strings));
+                }
+            }
+        }
+    }
+
+    private static BlockEvent readEvent(DataInputStream in, long frameTime, int frameX, int frameY, int frameZ,
+                                        String[] strings) throws IOException {
+        int typeOrdinal = in.readUnsignedByte();
+        if (typeOrdinal >= EVENT_TYPES.length) {
+            throw new IOException("Unknown block event type: " + typeOrdinal);
+        }
+        long timestamp = frameTime + unZigZag(readVarLong(in));
+        int x = frameX + unZigZag(readVarInt(in));
+        int y = frameY + unZigZag(readVarInt(in));
+        int z = frameZ + unZigZag(readVarInt(in));
+        String world = string(strings, readVarInt(in));
+        Material material = Material.matchMaterial(string(strings, readVarInt(in)));
+        float progress = in.readUnsignedByte() / 255f;
+        int entityId = unZigZag(readVarInt(in));
+        String blockData = string(strings, readVarInt(in) - 1);
+        String previousBlockData = string(strings, readVarInt(in) - 1);
+
+        return new BlockEvent(timestamp, EVENT_TYPES[typeOrdinal], x, y, z, world,
+                material != null ? material : Material.AIR, progress, entityId, blockData, previousBlockData);
+    }
+
+    // ===================== Индекс таймлинии =====================
+
+    /**
+     * Индекс таймлинии: своя таблица строк (миры, материалы, состояния), блоки с
+     * координатами дельтами от предыдущего блока, дельты, интервалы и маркеры со временем дельтами.
+     */
+    static void writeIndex(DataOutputStream out, TimelineIndex index) throws IOException {
+        StringTable strings = new StringTable();
+        for (int w = 0; w < index.getWorldCount(); w++) {
+            strings.add(index.getWorld(w));
+        }
+        for (int r = 0; r < index.getRefCount(); r++) {
+            strings.add(BlockStatePalette.getString(index.getRefInitialState(r)));
+        }
+        for (int d = 0; d < index.getDeltaCount(); d++) {
+            strings.add(index.getDeltaMaterial(d).name());
+            strings.add(BlockStatePalette.getString(index.getDeltaFromState(d)));
+            strings.add(BlockStatePalette.getString(index.getDeltaToState(d)));
+        }
+        for (int m = 0; m < index.getMarkerCount(); m++) {
+            strings.add(index.getMarkerMaterial(m).name());
+        }
+        writeVarInt(out, strings.size());
+        for (String value : strings.values()) {
+            out.writeUTF(value);
+        }
+
+        writeVarInt(out, index.getWorldCount());
+        for (int w = 0; w < index.getWorldCount(); w++) {
+            writeVarInt(out, strings.indexOf(index.getWorld(w)));
+        }
+
+        writeVarInt(out, index.getRefCount());
+        int px = 0;
+        int py = 0;
+        int pz = 0;
+        for (int r = 0; r < index.getRefCount(); r++) {
+            long key = index.getRefKey(r);
+            int x = BlockKey.x(key);
+            int y = BlockKey.y(key);
+            int z = BlockKey.z(key);
+            writeVarInt(out, index.getRefWorld(r));
+            writeVarInt(out, zigZag(x - px));
+            writeVarInt(out, zigZag(y - py));
+            writeVarInt(out, zigZag(z - pz));
+            writeVarInt(out, stateIndex(strings, index.getRefInitialState(r)));
+            px = x;
+            py = y;
+            pz = z;
+        }
+
+        writeVarInt(out, index.getDeltaCount());
+        long time = 0L;
+        for (int d = 0; d < index.getDeltaCount(); d++) {
+            writeVarLong(out, zigZag(index.getDeltaTime(d) - time));
+            time = index.getDeltaTime(d);
+            writeVarInt(out, index.getDeltaRef(d));
+            writeVarInt(out, stateIndex(strings, index.getDeltaFromState(d)));
+            writeVarInt(out, stateIndex(strings, index.getDeltaToState(d)));
+            writeVarInt(out, strings.indexOf(index.getDeltaMaterial(d).name()));
+            out.writeBoolean(index.isDeltaDestructive(d));
+        }
+
+        writeVarInt(out, index.getSpanCount());
+        time = 0L;
+        for (int s = 0; s < index.getSpanCount(); s++) {
+            writeVarLong(out, zigZag(index.getSpanStart(s) - time));
+            time = index.getSpanStart(s);
+            writeVarLong(out, zigZag(index.getSpanEnd(s) - index.getSpanStart(s)));
+            writeVarInt(out, index.getSpanRef(s));
+            out.writeBoolean(index.isSpanCompleted(s));
+        }
+
+        writeVarInt(out, index.getMarkerCount());
+        time = 0L;
+        for (int m = 0; m < index.getMarkerCount(); m++) {
+            writeVarLong(out, zigZag(index.getMarkerTime(m) - time));
+            time = index.getMarkerTime(m);
+            writeVarInt(out, index.getMarkerRef(m));
+            writeVarInt(out, strings.indexOf(index.getMarkerMaterial(m).name()));
+        }
+
+        writeVarLong(out, index.getMaxSpanLength());
+        writeVarInt(out, index.getOreBreakCount());
+    }
+
+    private static int stateIndex(StringTable strings, int state) {
+        return strings.indexOf(BlockStatePalette.getString(state)) + 1;
+    }
+
+    static TimelineIndex readIndex(DataInputStream in) throws IOException {
+        String[] strings = new String[readVarInt(in)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        // Номера палитры и материалы — один раз на строку таблицы, а не на каждую дельту
+        int[] states = new int[strings.length];
+        Arrays.fill(states, -1);
+        Material[] materials = new Material[strings.length];
+
+        String[] worlds = new String[readVarInt(in)];
+        for (int w = 0; w < worlds.length; w++) {
+            worlds[w] = string(strings, readVarInt(in));
+        }
+
+        int refCount = readVarInt(in);
+        int[] refWorlds = new int[refCount];
+        long[] refKeys = new long[refCount];
+        int[] refInitialStates = new int[refCount];
+        int px = 0;
+        int py = 0;
+        int pz = 0;
+        for (int r = 0; r < refCount; r++) {
+            refWorlds[r] = readVarInt(in);
+            if (refWorlds[r] < 0 || refWorlds[r] >= worlds.length) {
+                throw new IOException("World index out of range: " + refWorlds[r]);
+            }
+            px += unZigZag(readVarInt(in));
+            py += unZigZag(readVarInt(in));
+            pz += unZigZag(readVarInt(in));
+            refKeys[r] = BlockKey.pack(px, py, pz);
+            refInitialStates[r] = state(strings, states, readVarInt(in));
+        }
+
+        int deltaCount = readVarInt(in);
+        long[] deltaTimes = new long[deltaCount];
+        int[] deltaRefs = new int[deltaCount];
+        int[] deltaFromStates = new int[deltaCount];
+        int[] deltaToStates = new int[deltaCount];
+        Material[] deltaMaterials = new Material[deltaCount];
+        boolean[] deltaDestructive = new boolean[deltaCount];
+        long time = 0L;
+        for (int d = 0; d < deltaCount; d++) {
+            time += unZigZag(readVarLong(in));
+            deltaTimes[d] = time;
+            deltaRefs[d] = ref(readVarInt(in), refCount);
+            deltaFromStates[d] = state(strings, states, readVarInt(in));
+            deltaToStates[d] = state(strings, states, readVarInt(in));
+            deltaMaterials[d] = material(strings, materials, readVarInt(in));
+            deltaDestructive[d] = in.readBoolean();
+        }
+
+        int spanCount = readVarInt(in);
+        long[] spanStarts = new long[spanCount];
+        long[] spanEnds = new long[spanCount];
+        int[] spanRefs = new int[spanCount];
+        boolean[] spanCompleted = new boolean[spanCount];
+        time = 0L;
+        for (int s = 0; s < spanCount; s++) {
+            time += unZigZag(readVarLong(in));
+            spanStarts[s] = time;
+            spanEnds[s] = time + unZigZag(readVarLong(in));
+            spanRefs[s] = ref(readVarInt(in), refCount);
+            spanCompleted[s] = in.readBoolean();
+        }
+
+        int markerCount = readVarInt(in);
+        long[] markerTimes = new long[markerCount];
+        int[] markerRefs = new int[markerCount];
+        Material[] markerMaterials = new Material[markerCount];
+        time = 0L;
+        for (int m = 0; m < markerCount; m++) {
+            time += unZigZag(readVarLong(in));
+            markerTimes[m] = time;
+            markerRefs[m] = ref(readVarInt(in), refCount);
+            markerMaterials[m] = material(strings, materials, readVarInt(in));
+        }
+
+        long maxSpanLength = readVarLong(in);
+        int oreBreakCount = readVarInt(in);
+        return new TimelineIndex(worlds, refWorlds, refKeys, refInitialStates,
+                deltaTimes, deltaRefs, deltaFromStates, deltaToStates, deltaMaterials, deltaDestructive,
+                spanStarts, spanEnds, spanRefs, spanCompleted,
+                markerTimes, markerRefs, markerMaterials, maxSpanLength, oreBreakCount);
+    }
+
+    private static int state(String[] strings, int[] states, int index) throws IOException {
+        if (index == 0) {
+            return BlockStatePalette.NONE;
+        }
+        int slot = checkIndex(strings, index - 1);
+        if (states[slot] < 0) {
+            states[slot] = BlockStatePalette.idOf(strings[slot]);
+        }
+        return states[slot];
+    }
+
+    private static Material material(String[] strings, Material[] materials, int index) throws IOException {
+        if (materials[checkIndex(strings, index)] == null) {
+            Material material = Material.matchMaterial(strings[index]);
+            materials[index] = material != null ? material : Material.AIR;
+        }
+        return materials[index];
+    }
+
+    private static int ref(int ref, int refCount) throws IOException {
+        if (ref < 0 || ref >= refCount) {
+            throw new IOException("Block index out of range: " + ref);
+        }
+        return ref;
+    }
+
+    private static int checkIndex(String[] strings, int index) throws IOException {
+        if (index < 0 || index >= strings.length) {
+            throw new IOException("String index out of range: " + index);
+        }
+        return index;
+    }
+
+    private static String string(String[] strings, int index) throws IOException {
+        if (index < 0) {
+            return null;
+        }
+        if (index >= strings.length) {
+            throw new IOException("String index out of range: " + index);
+        }
+        return strings[index];
+    }
+
+    // ===================== Примитивы =====================
+
+    /** Таблица строк файла: каждая строка хранится один раз, дальше — по индексу. */
+    static final class StringTable {
+        private final Map<String, Integer> index = new LinkedHashMap<>();
+
+        void add(String value) {
+            if (value != null) {
+                index.putIfAbsent(value, index.size());
+            }
+        }
+
+        int indexOf(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer found = index.get(value);
+            if (found == null) {
+                throw new IllegalStateException("String not in table: " + value);
+            }
+            return found;
+        }
+
+        int size() {
+            return index.size();
+        }
+
+        List<String> values() {
+            return new ArrayList<>(index.keySet());
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1L);
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0L) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("VarInt is too long");
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0L;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("VarLong is too long");
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.antixrayviewer.storage;
+
+import com.example.antixrayviewer.data.PlayerRecording;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Кэш раскодированных записей с ограничением по памяти.
+ *
+ * Раньше каждая запись вместе со всеми кадрами жила в куче до выключения сервера.
+ * Теперь в памяти держатся только недавно просмотренные: когда оценка их объёма
+ * превышает бюджет, вытесняется та, которую дольше всех не открывали.
+ * Вытесненная запись прозрачно перечитывается с диска при следующем обращении.
+ */
+public final class RecordingCache {
+
+    private static final class Entry {
+        final PlayerRecording recording;
+        final long bytes;
+
+        Entry(PlayerRecording recording, long bytes) {
+            this.recording = recording;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long budgetBytes;
+    /** accessOrder = true: итерация идёт от давно не использованных к свежим. */
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long usedBytes;
+    private long hits;
+    private long misses;
+
+    public RecordingCache(long budgetBytes) {
+        this.budgetBytes = Math.max(0L, budgetBytes);
+    }
+
+    public synchronized PlayerRecording get(int id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.recording;
+    }
+
+    public synchronized void put(PlayerRecording recording) {
+        long bytes = recording.estimateHeapBytes();
+        Entry previous = entries.put(recording.getId(), new Entry(recording, bytes));
+        if (previous != null) {
+            usedBytes -= previous.bytes;
+        }
+        usedBytes += bytes;
+        evict();
+    }
+
+    public synchronized void invalidate(int id) {
+        Entry removed = entries.remove(id);
+        if (removed != null) {
+            usedBytes -= removed.bytes;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0L;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Integer, Entry>> iterator = entries.entrySet().iterator();
+        // Последнюю добавленную запись не вытесняем, даже если она одна больше бюджета
+        while (usedBytes > budgetBytes && entries.size() > 1 && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            usedBytes -= eldest.bytes;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
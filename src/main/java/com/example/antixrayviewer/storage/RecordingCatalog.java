@@ -0,0 +1,109 @@
+package com.example.antixrayviewer.storage;
+
+import com.example.antixrayviewer.data.RecordingInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Каталог записей (recordings/catalog.dat): по строке метаданных на запись.
+ *
+ * Благодаря ему при старте не нужно разбирать каждый кадр каждой записи —
+ * достаточно прочитать один маленький файл. Обновляется при сохранении и удалении.
+ * Все методы синхронизированы: сохранение идёт из асинхронных задач.
+ */
+final class RecordingCatalog {
+
+    /** "AXC" + 0x00. */
+    private static final int MAGIC = 0x41584300;
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final Map<Integer, RecordingInfo> entries = new HashMap<>();
+
+    RecordingCatalog(File file) {
+        this.file = file;
+    }
+
+    synchronized boolean load() throws IOException {
+        entries.clear();
+        if (!file.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an AXR catalog");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported catalog version: " + version);
+            }
+            int count = BinaryRecordingCodec.readVarInt(in);
+            for (int i = 0; i < count; i++) {
+                RecordingInfo info = new RecordingInfo(
+                        BinaryRecordingCodec.readVarInt(in),
+                        new UUID(in.readLong(), in.readLong()),
+                        BinaryRecordingCodec.readString(in),
+                        BinaryRecordingCodec.readString(in),
+                        in.readLong(),
+                        in.readLong(),
+                        BinaryRecordingCodec.readString(in),
+                        BinaryRecordingCodec.readVarInt(in),
+                        BinaryRecordingCodec.readVarInt(in),
+                        BinaryRecordingCodec.readVarLong(in));
+                entries.put(info.getId(), info);
+            }
+        }
+        return true;
+    }
+
+    synchronized void save() throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            BinaryRecordingCodec.writeVarInt(out, entries.size());
+            for (RecordingInfo info : entries.values()) {
+                BinaryRecordingCodec.writeVarInt(out, info.getId());
+                out.writeLong(info.getPlayerId().getMostSignificantBits());
+                out.writeLong(info.getPlayerId().getLeastSignificantBits());
+                BinaryRecordingCodec.writeString(out, info.getPlayerName());
+                BinaryRecordingCodec.writeString(out, info.getReason());
+                out.writeLong(info.getStartTime());
+                out.writeLong(info.getEndTime());
+                BinaryRecordingCodec.writeString(out, info.getEndReason());
+                BinaryRecordingCodec.writeVarInt(out, info.getFrameCount());
+                BinaryRecordingCodec.writeVarInt(out, info.getOreCount());
+                BinaryRecordingCodec.writeVarLong(out, info.getByteSize());
+            }
+        }
+        RecordingStorage.moveReplacing(temp, file);
+    }
+
+    synchronized void put(RecordingInfo info) {
+        entries.put(info.getId(), info);
+    }
+
+    synchronized RecordingInfo remove(int id) {
+        return entries.remove(id);
+    }
+
+    synchronized RecordingInfo get(int id) {
+        return entries.get(id);
+    }
+
+    synchronized List<RecordingInfo> all() {
+        return new ArrayList<>(entries.values());
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.antixrayviewer.storage;
+
+import com.example.antixrayviewer.data.FrameStore;
+import com.example.antixrayviewer.data.PlayerRecording;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал активной записи (recording-&lt;id&gt;.axj).
+ *
+ * Пока запись идёт, каждые несколько секунд в конец файла дописывается сегмент
+ * с новыми кадрами. Файл только растёт, каждый сегмент защищён CRC32. Если сервер
+ * упал посреди записи, при следующем старте журнал читается до первого битого
+ * сегмента и превращается в обычную запись — теряются только последние секунды.
+ * После нормального сохранения журнал удаляется.
+ *
+ * Раскладка: MAGIC, версия, id, UUID, имя, причина, начало; далее сегменты
+ * [int длина][int CRC32][блок кадров {@link BinaryRecordingCodec#writeFrames}].
+ */
+final class RecordingJournal {
+
+    /** "AXJ" + 0x00. */
+    static final int MAGIC = 0x41584A00;
+    static final int VERSION = 1;
+
+    /** Защита от мусора вместо длины сегмента. */
+    private static final int MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private RecordingJournal() {
+    }
+
+    /**
+     * Заголовок журнала — пишется перед первым сегментом.
+     */
+    static byte[] encodeHeader(PlayerRecording recording) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        BinaryRecordingCodec.writeVarInt(out, recording.getId());
+        out.writeLong(recording.getPlayerId().getMostSignificantBits());
+        out.writeLong(recording.getPlayerId().getLeastSignificantBits());
+        BinaryRecordingCodec.writeString(out, recording.getPlayerName());
+        BinaryRecordingCodec.writeString(out, recording.getReason());
+        out.writeLong(recording.getStartTime());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Сегмент с кадрами [from, to). Кодируется в потоке, владеющем записью:
+     * хранилище кадров не потокобезопасно, а готовые байты уже можно отдавать писателю.
+     */
+    static byte[] encodeSegment(FrameStore frames, int from, int to, long baseTime) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(payload);
+        BinaryRecordingCodec.writeFrames(out, frames, from, to, baseTime);
+        out.flush();
+        byte[] body = payload.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 8);
+        DataOutputStream framed = new DataOutputStream(bytes);
+        framed.writeInt(body.length);
+        framed.writeInt((int) crc.getValue());
+        framed.write(body);
+        framed.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Восстановить запись из журнала. Читает сегменты до конца файла или до первого
+     * оборванного/повреждённого сегмента.
+     *
+     * @return запись или null, если в журнале нет ни одного целого сегмента
+     */
+    static PlayerRecording recover(File file, String endReason) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an AXR journal");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported journal version: " + version);
+            }
+            int id = BinaryRecordingCodec.readVarInt(in);
+            UUID playerId = new UUID(in.readLong(), in.readLong());
+            String playerName = BinaryRecordingCodec.readString(in);
+            String reason = BinaryRecordingCodec.readString(in);
+            long startTime = in.readLong();
+
+            PlayerRecording recording = new PlayerRecording(id, playerId, playerName, reason, startTime);
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] body;
+                int expected;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_SEGMENT_BYTES) {
+                        break;
+                    }
+                    expected = in.readInt();
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    // Сегмент оборван на середине — сервер упал во время записи
+                    break;
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != expected) {
+                    break;
+                }
+                BinaryRecordingCodec.readFrames(new DataInputStream(new ByteArrayInputStream(body)), recording,
+                        startTime);
+            }
+
+            FrameStore frames = recording.getFrameStore();
+            if (frames.isEmpty()) {
+                return null;
+            }
+            recording.setEndTime(frames.getTime(frames.size() - 1));
+            recording.setEndReason(endReason);
+            recording.trimToSize();
+            return recording;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.example.antixrayviewer.storage;
 import com.example.antixrayviewer.AntiXrayViewer;
 import com.example.antixrayviewer.data.PlayerRecording;
 import com.example.antixrayviewer.data.RecordFrame;
+import com.example.antixrayviewer.data.RecordingInfo;
 import com.example.antixrayviewer.data.BlockEvent;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -11,17 +12,34 @@ import org.bukkit.Material;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 
 /**
- * Класс для сохранения и загрузки записей в файлы
+ * Класс для сохранения и загрузки записей в файлы.
+ *
+ * Новые записи сохраняются в компактном бинарном формате (recording-&lt;id&gt;.axr,
+ * см. {@link BinaryRecordingCodec}). Старые recording-&lt;id&gt;.json по-прежнему читаются,
+ * поэтому существующие архивы продолжают работать.
+ *
+ * Метаданные всех записей лежат в каталоге ({@link RecordingCatalog}): при старте
+ * читается только он, а кадры загружаются по требованию через {@link #loadRecording(int)}.
  */
 public class RecordingStorage {
     
+    private static final String FILE_PREFIX = "recording-";
+    private static final String BINARY_EXTENSION = ".axr";
+    private static final String LEGACY_EXTENSION = ".json";
+    private static final String JOURNAL_EXTENSION = ".axj";
+    
     private final AntiXrayViewer plugin;
     private final File recordingsFolder;
+    private final RecordingCatalog catalog;
     private final Gson gson;
     
     public RecordingStorage(AntiXrayViewer plugin) {
@@ -35,67 +53,266 @@ public class RecordingStorage {
             }
         }
         
-        // Настраиваем Gson с красивым форматированием
+        this.catalog = new RecordingCatalog(new File(recordingsFolder, "catalog.dat"));
+        
+        // Gson нужен только для чтения старых JSON-записей
         this.gson = new GsonBuilder()
-            .setPrettyPrinting()
             .registerTypeAdapter(Material.class, new MaterialAdapter())
             .create();
     }
     
     /**
-     * Сохранить запись в файл
+     * Сохранить запись в файл.
+     * Пишем во временный файл и атомарно переименовываем: оборванная запись не портит архив.
      */
     public boolean saveRecording(PlayerRecording recording) {
-        File file = new File(recordingsFolder, "recording-" + recording.getId() + ".json");
+        byte[] encoded;
+        try {
+            encoded = encode(recording);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, 
+                "Ошибка при кодировании записи #" + recording.getId(), e);
+            return false;
+        }
+        return writeRecording(recording, encoded);
+    }
+    
+    /**
+     * Закодировать запись в бинарный формат (без обращения к диску).
+     */
+    public byte[] encode(PlayerRecording recording) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        BinaryRecordingCodec.encode(recording, out);
+        return out.toByteArray();
+    }
+    
+    /**
+     * Записать уже закодированную запись на диск и обновить каталог.
+     */
+    public boolean writeRecording(PlayerRecording recording, byte[] encoded) {
+        File file = binaryFile(recording.getId());
+        File temp = new File(recordingsFolder, file.getName() + ".tmp");
         
-        try (Writer writer = new OutputStreamWriter(
-                new FileOutputStream(file), StandardCharsets.UTF_8)) {
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                out.write(encoded);
+            }
+            moveReplacing(temp, file);
+            
+            // Старая JSON-копия и журнал той же записи больше не нужны
+            for (File obsolete : new File[] {legacyFile(recording.getId()), journalFile(recording.getId())}) {
+                if (obsolete.exists() && !obsolete.delete()) {
+                    plugin.getLogger().warning("Не удалось удалить устаревший файл: " + obsolete.getName());
+                }
+            }
+            
+            catalog.put(RecordingInfo.of(recording, file.length()));
+            saveCatalog();
             
-            // Конвертируем запись в JSON
-            RecordingData data = RecordingData.fromRecording(recording);
-            gson.toJson(data, writer);
             plugin.getLogger().info("Запись #" + recording.getId() + " сохранена в файл: " + file.getAbsolutePath());
             return true;
             
         } catch (IOException e) {
             plugin.getLogger().log(Level.SEVERE, 
                 "Ошибка при сохранении записи #" + recording.getId(), e);
+            if (temp.exists() && !temp.delete()) {
+                plugin.getLogger().warning("Не удалось удалить временный файл: " + temp.getName());
+            }
             return false;
         }
     }
     
     /**
-     * Загрузить все записи из файлов
+     * Закодировать кадры [from, to) активной записи как сегмент журнала.
+     * Первый сегмент несёт заголовок журнала.
+     */
+    public byte[] encodeJournalSegment(PlayerRecording recording, int from, int to) throws IOException {
+        byte[] segment = RecordingJournal.encodeSegment(recording.getFrameStore(), from, to, recording.getStartTime());
+        if (from > 0) {
+            return segment;
+        }
+        byte[] header = RecordingJournal.encodeHeader(recording);
+        byte[] result = new byte[header.length + segment.length];
+        System.arraycopy(header, 0, result, 0, header.length);
+        System.arraycopy(segment, 0, result, header.length, segment.length);
+        return result;
+    }
+    
+    /**
+     * Дописать сегмент в журнал активной записи и сбросить его на диск.
      */
-    public List<PlayerRecording> loadAllRecordings() {
-        List<PlayerRecording> recordings = new ArrayList<>();
+    public boolean appendJournal(int recordingId, byte[] bytes) {
+        File file = journalFile(recordingId);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(bytes);
+            // Сегмент должен пережить не только падение процесса, но и сбой машины
+            out.getChannel().force(false);
+            return true;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Не удалось дописать журнал записи #" + recordingId, e);
+            return false;
+        }
+    }
+    
+    /**
+     * Превратить журналы незавершённых записей (сервер упал во время записи) в обычные записи.
+     */
+    private void recoverJournals() {
+        File[] journals = recordingsFolder.listFiles((dir, name) ->
+            name.startsWith(FILE_PREFIX) && name.endsWith(JOURNAL_EXTENSION));
+        if (journals == null) {
+            return;
+        }
+        for (File journal : journals) {
+            int id = parseId(journal.getName());
+            if (id < 0) {
+                continue;
+            }
+            // Запись успела сохраниться, не успели только удалить журнал
+            if (!binaryFile(id).exists()) {
+                try {
+                    PlayerRecording recording = RecordingJournal.recover(journal, "Восстановлена после сбоя сервера");
+                    if (recording != null && writeRecording(recording, encode(recording))) {
+                        plugin.getLogger().warning("Запись #" + id + " восстановлена из журнала ("
+                            + recording.getFrameCount() + " кадров)");
+                        continue;
+                    }
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.WARNING, "Журнал записи #" + id + " не читается", e);
+                }
+            }
+            if (journal.exists() && !journal.delete()) {
+                plugin.getLogger().warning("Не удалось удалить журнал: " + journal.getName());
+            }
+        }
+    }
+    
+    static void moveReplacing(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * Загрузить каталог записей и сверить его с файлами.
+     * Записи без каталога (старые JSON или каталог потерян) разбираются один раз и добавляются в него.
+     */
+    public List<RecordingInfo> loadCatalog() {
+        recoverJournals();
         
-        if (!recordingsFolder.exists()) {
-            return recordings;
+        boolean dirty;
+        try {
+            dirty = !catalog.load();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Каталог записей повреждён, он будет построен заново", e);
+            dirty = true;
         }
         
-        File[] files = recordingsFolder.listFiles((dir, name) -> 
-            name.startsWith("recording-") && name.endsWith(".json"));
+        Map<Integer, File> files = listFilesById();
         
-        if (files == null) {
-            return recordings;
+        // Файл удалили вручную — убираем и из каталога
+        for (RecordingInfo info : catalog.all()) {
+            if (!files.containsKey(info.getId())) {
+                catalog.remove(info.getId());
+                dirty = true;
+            }
         }
         
-        for (File file : files) {
-            PlayerRecording recording = loadRecording(file);
+        int indexed = 0;
+        for (Map.Entry<Integer, File> entry : files.entrySet()) {
+            if (catalog.get(entry.getKey()) != null) {
+                continue;
+            }
+            PlayerRecording recording = loadRecording(entry.getValue());
             if (recording != null) {
-                recordings.add(recording);
+                catalog.put(RecordingInfo.of(recording, entry.getValue().length()));
+                indexed++;
+                dirty = true;
             }
         }
         
-        plugin.getLogger().info("Загружено записей из файлов: " + recordings.size());
-        return recordings;
+        if (dirty) {
+            saveCatalog();
+        }
+        if (indexed > 0) {
+            plugin.getLogger().info("Добавлено в каталог записей: " + indexed);
+        }
+        
+        List<RecordingInfo> result = catalog.all();
+        // Новые записи не должны получить id уже сохранённых
+        for (RecordingInfo info : result) {
+            PlayerRecording.reserveId(info.getId());
+        }
+        plugin.getLogger().info("Записей в каталоге: " + result.size());
+        return result;
+    }
+    
+    /**
+     * Загрузить запись целиком (со всеми кадрами) по ID.
+     */
+    public PlayerRecording loadRecording(int recordingId) {
+        File file = binaryFile(recordingId);
+        if (!file.exists()) {
+            file = legacyFile(recordingId);
+        }
+        if (!file.exists()) {
+            return null;
+        }
+        return loadRecording(file);
+    }
+    
+    /**
+     * Метаданные записи из каталога, или null.
+     */
+    public RecordingInfo getRecordingInfo(int recordingId) {
+        return catalog.get(recordingId);
+    }
+    
+    private Map<Integer, File> listFilesById() {
+        Map<Integer, File> byId = new HashMap<>();
+        File[] files = listRecordingFiles();
+        if (files == null) {
+            return byId;
+        }
+        
+        // Если для одного ID есть и .axr, и старый .json — берём бинарный
+        for (File file : files) {
+            int id = parseId(file.getName());
+            if (id < 0) {
+                continue;
+            }
+            File existing = byId.get(id);
+            if (existing == null || file.getName().endsWith(BINARY_EXTENSION)) {
+                byId.put(id, file);
+            }
+        }
+        return byId;
+    }
+    
+    private void saveCatalog() {
+        try {
+            catalog.save();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Не удалось сохранить каталог записей", e);
+        }
     }
     
     /**
      * Загрузить одну запись из файла
      */
     private PlayerRecording loadRecording(File file) {
+        if (file.getName().endsWith(BINARY_EXTENSION)) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+                return BinaryRecordingCodec.decode(in);
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, 
+                    "Ошибка при загрузке записи из файла: " + file.getName(), e);
+                return null;
+            }
+        }
+        
         try (Reader reader = new InputStreamReader(
                 new FileInputStream(file), StandardCharsets.UTF_8)) {
             
@@ -116,21 +333,23 @@ public class RecordingStorage {
      * Удалить файл записи
      */
     public boolean deleteRecording(int recordingId) {
-        File file = new File(recordingsFolder, "recording-" + recordingId + ".json");
-        
-        if (file.exists()) {
-            return file.delete();
+        boolean deleted = false;
+        for (File file : new File[] {binaryFile(recordingId), legacyFile(recordingId), journalFile(recordingId)}) {
+            if (file.exists()) {
+                deleted |= file.delete();
+            }
         }
-        
-        return false;
+        if (catalog.remove(recordingId) != null) {
+            saveCatalog();
+        }
+        return deleted;
     }
     
     /**
      * Проверить, существует ли файл записи
      */
     public boolean recordingFileExists(int recordingId) {
-        File file = new File(recordingsFolder, "recording-" + recordingId + ".json");
-        return file.exists();
+        return binaryFile(recordingId).exists() || legacyFile(recordingId).exists();
     }
     
     /**
@@ -141,8 +360,7 @@ public class RecordingStorage {
             return 0;
         }
         
-        File[] files = recordingsFolder.listFiles((dir, name) -> 
-            name.startsWith("recording-") && name.endsWith(".json"));
+        File[] files = listRecordingFiles();
         
         if (files == null) {
             return 0;
@@ -156,8 +374,37 @@ public class RecordingStorage {
         return totalBytes / (1024.0 * 1024.0);
     }
     
+    private File binaryFile(int recordingId) {
+        return new File(recordingsFolder, FILE_PREFIX + recordingId + BINARY_EXTENSION);
+    }
+    
+    private File legacyFile(int recordingId) {
+        return new File(recordingsFolder, FILE_PREFIX + recordingId + LEGACY_EXTENSION);
+    }
+    
+    private File journalFile(int recordingId) {
+        return new File(recordingsFolder, FILE_PREFIX + recordingId + JOURNAL_EXTENSION);
+    }
+    
+    private File[] listRecordingFiles() {
+        return recordingsFolder.listFiles((dir, name) -> 
+            name.startsWith(FILE_PREFIX) && (name.endsWith(BINARY_EXTENSION) || name.endsWith(LEGACY_EXTENSION)));
+    }
+    
+    private static int parseId(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot <= FILE_PREFIX.length()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(FILE_PREFIX.length(), dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
     /**
-     * Внутренний класс для сериализации записи
+     * Внутренний класс для чтения старых JSON-записей
      */
     private static class RecordingData {
         private int id;
@@ -169,24 +416,6 @@ public class RecordingStorage {
         private String endReason;
         private List<FrameData> frames;
         
-        static RecordingData fromRecording(PlayerRecording recording) {
-            RecordingData data = new RecordingData();
-            data.id = recording.getId();
-            data.playerId = recording.getPlayerId().toString();
-            data.playerName = recording.getPlayerName();
-            data.reason = recording.getReason();
-            data.startTime = recording.getStartTime();
-            data.endTime = recording.getEndTime();
-            data.endReason = recording.getEndReason();
-            
-            data.frames = new ArrayList<>();
-            for (RecordFrame frame : recording.getFrames()) {
-                data.frames.add(FrameData.fromFrame(frame));
-            }
-            
-            return data;
-        }
-        
         PlayerRecording toRecording() {
             PlayerRecording recording = new PlayerRecording(
                 id,
@@ -222,29 +451,6 @@ public class RecordingStorage {
         private int foodLevel;
         private List<BlockEventData> blockEvents;
         
-        static FrameData fromFrame(RecordFrame frame) {
-            FrameData data = new FrameData();
-            data.timestamp = frame.getTimestamp();
-            data.x = frame.getX();
-            data.y = frame.getY();
-            data.z = frame.getZ();
-            data.yaw = frame.getYaw();
-            data.pitch = frame.getPitch();
-            data.world = frame.getWorld();
-            data.sneaking = frame.isSneaking();
-            data.sprinting = frame.isSprinting();
-            data.flying = frame.isFlying();
-            data.health = frame.getHealth();
-            data.foodLevel = frame.getFoodLevel();
-            
-            data.blockEvents = new ArrayList<>();
-            for (BlockEvent event : frame.getBlockEvents()) {
-                data.blockEvents.add(BlockEventData.fromEvent(event));
-            }
-            
-            return data;
-        }
-        
         RecordFrame toFrame() {
             RecordFrame frame = new RecordFrame(
                 timestamp, x, y, z, yaw, pitch, world,
@@ -276,22 +482,6 @@ public class RecordingStorage {
         private String blockData;
         private String previousBlockData;
         
-        static BlockEventData fromEvent(BlockEvent event) {
-            BlockEventData data = new BlockEventData();
-            data.timestamp = event.getTimestamp();
-            data.type = event.getType().name();
-            data.x = event.getX();
-            data.y = event.getY();
-            data.z = event.getZ();
-            data.world = event.getWorld();
-            data.blockType = event.getBlockType().name();
-            data.breakProgress = event.getBreakProgress();
-            data.entityId = event.getEntityId();
-            data.blockData = event.getBlockDataString();
-            data.previousBlockData = event.getPreviousBlockDataString();
-            return data;
-        }
-        
         BlockEvent toEvent() {
             return new BlockEvent(
                 timestamp,
@@ -0,0 +1,351 @@
+package com.example.antixrayviewer.storage;
+
+import com.example.antixrayviewer.data.PlayerRecording;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Очередь дисковых операций с одним потоком-писателем.
+ *
+ * Раньше каждое сохранение и удаление было отдельной задачей в общем async-пуле Bukkit:
+ * при волне детектов несколько тяжёлых записей кодировались параллельно и забивали пул,
+ * а при выключении сервера задачи просто отменялись вместе с данными.
+ * <ul>
+ *   <li>операции выполняются строго по очереди одним потоком;</li>
+ *   <li>операции над одним id схлопываются: удаление отменяет ожидающее сохранение,
+ *       повторное сохранение заменяет предыдущее;</li>
+ *   <li>сохранений в очереди не больше {@code capacity} — при переполнении
+ *       {@link #offerSave} отказывает, и вызывающий повторяет позже (backpressure);
+ *       удаления лёгкие и принимаются всегда;</li>
+ *   <li>сегменты журнала активных записей ({@link #offerAppend}) не схлопываются и
+ *       выполняются строго в порядке постановки, до итогового сохранения той же записи;</li>
+ *   <li>{@link #shutdown(long)} дописывает всё, что успели поставить, и только потом возвращает управление.</li>
+ * </ul>
+ */
+public final class StoragePipeline {
+
+    private static final class Operation {
+        final int id;
+        /** Сохранение, если не null. */
+        final PlayerRecording recording;
+        /** Сегмент журнала, если не null. Если оба поля null — удаление. */
+        final byte[] segment;
+        final Consumer<Boolean> callback;
+
+        Operation(int id, PlayerRecording recording, byte[] segment, Consumer<Boolean> callback) {
+            this.id = id;
+            this.recording = recording;
+            this.segment = segment;
+            this.callback = callback;
+        }
+    }
+
+    private final RecordingStorage storage;
+    private final Logger logger;
+    private final int capacity;
+    /** Сохранения и удаления — под ключом id, сегменты журнала — под уникальными отрицательными ключами. */
+    private final LinkedHashMap<Long, Operation> queue = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Thread writer;
+
+    private int queuedSaves;
+    private long segmentSequence;
+    private boolean busy;
+    private boolean closed;
+
+    private volatile long savesCompleted;
+    private volatile long deletesCompleted;
+    private volatile long segmentsWritten;
+    private volatile long rejected;
+    private volatile long bytesWritten;
+    private volatile long writeNanos;
+    private volatile long lastEncodeNanos;
+    private volatile double averageEncodeNanos;
+
+    public StoragePipeline(RecordingStorage storage, Logger logger, int capacity) {
+        this.storage = storage;
+        this.logger = logger;
+        this.capacity = Math.max(1, capacity);
+        this.writer = new Thread(this::run, "AntiXrayViewer-Storage");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Поставить запись на сохранение. Колбэк вызывается в потоке-писателе.
+     *
+     * @return false, если очередь сохранений заполнена или конвейер закрыт
+     */
+    public boolean offerSave(PlayerRecording recording, Consumer<Boolean> callback) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            Operation previous = queue.get((long) recording.getId());
+            boolean replacesSave = previous != null && previous.recording != null;
+            if (!replacesSave && queuedSaves >= capacity) {
+                rejected++;
+                return false;
+            }
+            enqueue(recording.getId(), new Operation(recording.getId(), recording, null, chain(previous, callback)));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Поставить запись на сохранение, дожидаясь места в очереди. Только для выключения сервера.
+     */
+    public boolean putSave(PlayerRecording recording, Consumer<Boolean> callback) throws InterruptedException {
+        lock.lock();
+        try {
+            long key = recording.getId();
+            while (!closed && queuedSaves >= capacity && !queue.containsKey(key)) {
+                changed.await();
+            }
+            if (closed) {
+                return false;
+            }
+            enqueue(key, new Operation(recording.getId(), recording, null, chain(queue.get(key), callback)));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Поставить запись на удаление. Ожидающее сохранение той же записи отменяется
+     * вместе с колбэком: это не сбой диска, а вызывающий сам убрал запись из своих списков.
+     */
+    public void offerDelete(int id) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            enqueue(id, new Operation(id, null, null, null));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Дописать сегмент в журнал активной записи. Сегменты маленькие и принимаются всегда.
+     */
+    public void offerAppend(int id, byte[] segment) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            enqueue(-(++segmentSequence), new Operation(id, null, segment, null));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Consumer<Boolean> chain(Operation previous, Consumer<Boolean> callback) {
+        if (previous == null || previous.callback == null) {
+            return callback;
+        }
+        if (callback == null) {
+            return previous.callback;
+        }
+        Consumer<Boolean> first = previous.callback;
+        return result -> {
+            first.accept(result);
+            callback.accept(result);
+        };
+    }
+
+    private void enqueue(long key, Operation operation) {
+        Operation previous = queue.remove(key);
+        if (previous != null && previous.recording != null) {
+            queuedSaves--;
+        }
+        // Схлопнутая операция встаёт в конец очереди: порядок относительно других id сохраняется
+        queue.put(key, operation);
+        if (operation.recording != null) {
+            queuedSaves++;
+        }
+        changed.signalAll();
+    }
+
+    private void run() {
+        while (true) {
+            Operation operation;
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !closed) {
+                    changed.awaitUninterruptibly();
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                Iterator<Map.Entry<Long, Operation>> iterator = queue.entrySet().iterator();
+                operation = iterator.next().getValue();
+                iterator.remove();
+                if (operation.recording != null) {
+                    queuedSaves--;
+                }
+                busy = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            int id = operation.id;
+            boolean result;
+            try {
+                if (operation.recording != null) {
+                    result = save(operation.recording);
+                } else if (operation.segment != null) {
+                    result = append(id, operation.segment);
+                } else {
+                    result = delete(id);
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Ошибка в очереди хранилища (запись #" + id + ")", e);
+                result = false;
+            }
+            if (operation.callback != null) {
+                try {
+                    operation.callback.accept(operation.recording != null && result);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Ошибка в обработчике завершения записи #" + id, e);
+                }
+            }
+
+            lock.lock();
+            try {
+                busy = false;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean save(PlayerRecording recording) {
+        long started = System.nanoTime();
+        byte[] encoded;
+        try {
+            encoded = storage.encode(recording);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Ошибка при кодировании записи #" + recording.getId(), e);
+            return false;
+        }
+        long encodedAt = System.nanoTime();
+        long encodeNanos = encodedAt - started;
+        lastEncodeNanos = encodeNanos;
+        averageEncodeNanos = averageEncodeNanos == 0.0 ? encodeNanos : averageEncodeNanos * 0.8 + encodeNanos * 0.2;
+
+        boolean saved = storage.writeRecording(recording, encoded);
+        if (saved) {
+            bytesWritten += encoded.length;
+            writeNanos += System.nanoTime() - encodedAt;
+            savesCompleted++;
+        }
+        return saved;
+    }
+
+    private boolean append(int id, byte[] segment) {
+        long started = System.nanoTime();
+        boolean written = storage.appendJournal(id, segment);
+        if (written) {
+            bytesWritten += segment.length;
+            writeNanos += System.nanoTime() - started;
+            segmentsWritten++;
+        }
+        return written;
+    }
+
+    private boolean delete(int id) {
+        boolean deleted = storage.deleteRecording(id);
+        deletesCompleted++;
+        return deleted;
+    }
+
+    /**
+     * Закрыть конвейер и дождаться выполнения всего, что уже стоит в очереди.
+     *
+     * @return true, если очередь опустела до истечения таймаута
+     */
+    public boolean shutdown(long timeoutMillis) {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join(Math.max(1L, timeoutMillis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !writer.isAlive();
+    }
+
+    // ===================== Метрики =====================
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size() + (busy ? 1 : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getSavesCompleted() {
+        return savesCompleted;
+    }
+
+    public long getDeletesCompleted() {
+        return deletesCompleted;
+    }
+
+    public long getSegmentsWritten() {
+        return segmentsWritten;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Скорость записи на диск (байт/с) за время, когда поток-писатель был занят записью.
+     */
+    public double getBytesPerSecond() {
+        long nanos = writeNanos;
+        return nanos == 0L ? 0.0 : bytesWritten * 1_000_000_000.0 / nanos;
+    }
+
+    public double getLastEncodeMillis() {
+        return lastEncodeNanos / 1_000_000.0;
+    }
+
+    public double getAverageEncodeMillis() {
+        return averageEncodeNanos / 1_000_000.0;
+    }
+}
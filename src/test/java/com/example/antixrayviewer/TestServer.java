@@ -0,0 +1,138 @@
+package com.example.antixrayviewer;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.block.data.BlockData;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Минимальное окружение Bukkit для тестов без сервера.
+ *
+ * Палитра состояний разбирает строки через {@link Bukkit#createBlockData(String)}, поэтому
+ * тестам нужен {@link Server}: здесь он — прокси, который умеет только создавать BlockData
+ * (тоже прокси, сравниваются по строке состояния) по строке или по материалу. Для остальных интерфейсов Bukkit есть
+ * {@link #proxy}: неописанные методы возвращают нули, а не null, чтобы не ловить NPE на распаковке.
+ */
+public final class TestServer {
+
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final Map<Material, String> DEFAULT_PROPERTIES = Map.of(
+            Material.DEEPSLATE, "[axis=y]");
+
+    private static boolean installed;
+
+    private TestServer() {
+    }
+
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        installed = true;
+        if (Bukkit.getServer() != null) {
+            return;
+        }
+        Logger logger = Logger.getLogger("AntiXrayViewerTest");
+        Bukkit.setServer(proxy(Server.class, Map.of(
+                "getLogger", args -> logger,
+                "getName", args -> "test",
+                "getVersion", args -> "test",
+                "getBukkitVersion", args -> "test",
+                "createBlockData", args -> args[0] instanceof Material material
+                        ? blockData(defaultState(material))
+                        : blockData((String) args[0]))));
+    }
+
+    /**
+     * Состояние материала по умолчанию, как его строит сервер. Свойства знает только сервер,
+     * поэтому здесь они перечислены для материалов, которые тесты используют как блоки со свойствами.
+     */
+    public static String defaultState(Material material) {
+        String state = DEFAULT_PROPERTIES.get(material);
+        return "minecraft:" + material.name().toLowerCase(Locale.ROOT) + (state != null ? state : "");
+    }
+
+    /**
+     * BlockData по строке состояния вида {@code minecraft:stone[...]}.
+     */
+    public static BlockData blockData(String state) {
+        String name = state.startsWith("minecraft:") ? state.substring("minecraft:".length()) : state;
+        int bracket = name.indexOf('[');
+        if (bracket >= 0) {
+            name = name.substring(0, bracket);
+        }
+        Material material = Material.matchMaterial(name.toUpperCase(Locale.ROOT));
+        BlockData[] self = new BlockData[1];
+        Integer hash = state.hashCode();
+        self[0] = proxy(BlockData.class, Map.of(
+                "getAsString", args -> state,
+                "getMaterial", args -> material,
+                "clone", args -> self[0],
+                "matches", args -> args[0] instanceof BlockData other && state.equals(other.getAsString()),
+                "equals", args -> args[0] instanceof BlockData other && state.equals(other.getAsString()),
+                "hashCode", args -> hash,
+                "toString", args -> state));
+        return self[0];
+    }
+
+    /** Обработчик одного метода прокси. */
+    public interface Handler {
+        Object invoke(Object[] args) throws Throwable;
+    }
+
+    /**
+     * Прокси интерфейса: методы из {@code handlers} — по имени, остальные возвращают
+     * значение по умолчанию для своего типа.
+     */
+    public static <T> T proxy(Class<T> type, Map<String, Handler> handlers) {
+        InvocationHandler invocation = (proxy, method, args) -> {
+            Handler handler = handlers.get(method.getName());
+            if (handler != null) {
+                return handler.invoke(args == null ? NO_ARGS : args);
+            }
+            return switch (method.getName()) {
+                case "equals" -> proxy == args[0];
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "toString" -> type.getSimpleName() + "@proxy";
+                default -> defaultValue(method);
+            };
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, invocation));
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0.0;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.antixrayviewer.data;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class BlockKeyTest {
+
+    @Test
+    void packRoundTripsWorldBorderAndHeightLimits() {
+        int[] xs = {0, 1, -1, 15, -16, 29_999_999, -30_000_000, 33_554_431, -33_554_432};
+        int[] ys = {0, -64, 319, -2048, 2047, 255, -1};
+        for (int x : xs) {
+            for (int y : ys) {
+                for (int z : xs) {
+                    long key = BlockKey.pack(x, y, z);
+                    Assertions.assertEquals(x, BlockKey.x(key), "x");
+                    Assertions.assertEquals(y, BlockKey.y(key), "y");
+                    Assertions.assertEquals(z, BlockKey.z(key), "z");
+                }
+            }
+        }
+    }
+
+    @Test
+    void neighbouringBlocksGetDistinctKeys() {
+        long key = BlockKey.pack(100, 64, -100);
+        Assertions.assertNotEquals(key, BlockKey.pack(101, 64, -100));
+        Assertions.assertNotEquals(key, BlockKey.pack(100, 65, -100));
+        Assertions.assertNotEquals(key, BlockKey.pack(100, 64, -99));
+    }
+}
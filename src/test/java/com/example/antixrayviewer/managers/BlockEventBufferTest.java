@@ -0,0 +1,211 @@
+package com.example.antixrayviewer.managers;
+
+import com.example.antixrayviewer.TestServer;
+import com.example.antixrayviewer.data.BlockEvent;
+import com.example.antixrayviewer.data.BlockKey;
+import com.example.antixrayviewer.data.BlockStatePalette;
+import com.example.antixrayviewer.data.FrameStore;
+import com.example.antixrayviewer.data.PlayerRecording;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.data.BlockData;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BlockEventBufferTest {
+
+    private static final int EVENTS_PER_FRAME = 64;
+
+    @BeforeAll
+    static void server() {
+        TestServer.install();
+    }
+
+    /**
+     * Установившийся режим: события копания и установки через тот же {@link BlockEventBuffer#capture},
+     * что вызывают обработчики RecordingManager, вместе с кадром записи и переносом событий
+     * в запись не выделяют памяти на событие.
+     *
+     * Единственное, что в замере выделяется законно, — рост колонок самой записи: он идёт
+     * в полтора раза и случается за весь замер считанные разы. Поэтому проверяется, что
+     * выделяющих кадров единицы, а не что их нет: объект на событие выделял бы в каждом кадре.
+     */
+    @Test
+    void steadyStateCaptureAndDrainAllocateNothing() {
+        Assumptions.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        World world = TestServer.proxy(World.class, Map.of("getName", args -> "world"));
+        BlockState air = TestServer.proxy(BlockState.class, Map.of("getType", args -> Material.AIR));
+        Block[] blocks = new Block[EVENTS_PER_FRAME / 2];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = block(world, 1000 + i, -30, -1000 - i, i % 4 == 0 ? Material.DIAMOND_ORE : Material.STONE);
+        }
+        BlockEventBuffer buffer = new BlockEventBuffer();
+        PlayerRecording recording = new PlayerRecording(1, UUID.randomUUID(), "Bob", "test", 0L);
+
+        // Прогрев: JIT, палитра и рост массивов буфера до размера кадра
+        for (int frame = 0; frame < 2000; frame++) {
+            captureFrame(buffer, recording, blocks, air, frame);
+        }
+
+        int allocatingFrames = 0;
+        long allocated = 0L;
+        for (int frame = 2000; frame < 4000; frame++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            captureFrame(buffer, recording, blocks, air, frame);
+            long bytes = threads.getCurrentThreadAllocatedBytes() - before;
+            if (bytes > 0) {
+                allocatingFrames++;
+                allocated += bytes;
+            }
+        }
+
+        Assertions.assertEquals(4000L * EVENTS_PER_FRAME, recording.getFrameStore().getEventCount());
+        // Рост колонок событий и кадров плюс изредка выделения самой JVM (деоптимизация, OSR)
+        Assertions.assertTrue(allocatingFrames <= 8,
+                allocatingFrames + " из 2000 кадров выделяли память, всего " + allocated + " байт");
+    }
+
+    /**
+     * Материал без свойств не читает BlockData вовсе, материал со свойствами — один раз
+     * за ломание: отмена и завершение берут состояние начала.
+     */
+    @Test
+    void blockDataIsReadOnlyForStatefulBlocksOncePerBreak() {
+        World world = TestServer.proxy(World.class, Map.of("getName", args -> "world"));
+        AtomicInteger reads = new AtomicInteger();
+        BlockData deepslate = TestServer.blockData("minecraft:deepslate[axis=x]");
+        Block stateful = TestServer.proxy(Block.class, Map.of(
+                "getX", args -> 1,
+                "getY", args -> -40,
+                "getZ", args -> 2,
+                "getWorld", args -> world,
+                "getType", args -> Material.DEEPSLATE,
+                "getBlockData", args -> {
+                    reads.incrementAndGet();
+                    return deepslate;
+                }));
+        Block stone = block(world, 5, -40, 5, Material.STONE);
+        BlockEventBuffer buffer = new BlockEventBuffer();
+
+        buffer.capture(1L, BlockEvent.EventType.BREAK_START, stateful, 0.1f, null, 7);
+        buffer.capture(2L, BlockEvent.EventType.BREAK_COMPLETE, stateful, 1f, null, 7);
+        buffer.capture(3L, BlockEvent.EventType.BREAK_START, stone, 0.1f, null, 7);
+        buffer.capture(4L, BlockEvent.EventType.BREAK_COMPLETE, stone, 1f, null, 7);
+        Assertions.assertEquals(1, reads.get());
+
+        PlayerRecording recording = new PlayerRecording(1, UUID.randomUUID(), "Bob", "test", 0L);
+        recording.addFrame(0L, 0.0, 64.0, 0.0, 0f, 0f, "world", false, false, false, 20.0, 20);
+        buffer.drainTo(recording);
+        FrameStore frames = recording.getFrameStore();
+        Assertions.assertEquals("minecraft:deepslate[axis=x]", BlockStatePalette.getString(frames.getEventState(1)));
+        Assertions.assertEquals("minecraft:stone", BlockStatePalette.getString(frames.getEventState(3)));
+    }
+
+    @Test
+    void breakingStateIsReusedOnlyForSameMaterial() {
+        BlockEventBuffer buffer = new BlockEventBuffer();
+        int ore = BlockStatePalette.idOf("minecraft:diamond_ore");
+        long key = BlockKey.pack(10, -20, 30);
+
+        Assertions.assertEquals(BlockStatePalette.NONE, buffer.breakingState(key, Material.DIAMOND_ORE));
+        buffer.startBreaking(key, 100L, ore);
+        Assertions.assertEquals(ore, buffer.breakingState(key, Material.DIAMOND_ORE));
+        // Блок подменили во время ломания — состояние надо прочитать заново
+        Assertions.assertEquals(BlockStatePalette.NONE, buffer.breakingState(key, Material.STONE));
+        Assertions.assertEquals(BlockStatePalette.NONE, buffer.breakingState(BlockKey.pack(10, -20, 31),
+                Material.DIAMOND_ORE));
+
+        buffer.stopBreaking(key);
+        Assertions.assertEquals(BlockStatePalette.NONE, buffer.breakingState(key, Material.DIAMOND_ORE));
+    }
+
+    @Test
+    void worldNameIsReadOncePerWorld() {
+        AtomicInteger reads = new AtomicInteger();
+        World world = TestServer.proxy(World.class, Map.of("getName", args -> {
+            reads.incrementAndGet();
+            return "world";
+        }));
+        World nether = TestServer.proxy(World.class, Map.of("getName", args -> "world_nether"));
+        BlockEventBuffer buffer = new BlockEventBuffer();
+
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals("world", buffer.worldName(world));
+        }
+        Assertions.assertEquals(1, reads.get());
+        Assertions.assertEquals("world_nether", buffer.worldName(nether));
+        Assertions.assertEquals("world", buffer.worldName(world));
+        Assertions.assertEquals(2, reads.get());
+    }
+
+    @Test
+    void drainKeepsEventOrderAndFields() {
+        BlockEventBuffer buffer = new BlockEventBuffer();
+        int ore = BlockStatePalette.idOf("minecraft:diamond_ore");
+        for (int i = 0; i < 20; i++) {
+            buffer.add(i, BlockEvent.EventType.BREAK_COMPLETE, "world", i, -i, 1000 + i, Material.DIAMOND_ORE,
+                    1f, 5, ore, BlockStatePalette.NONE);
+        }
+        PlayerRecording recording = new PlayerRecording(1, UUID.randomUUID(), "Bob", "test", 0L);
+        recording.addFrame(0L, 0.0, 64.0, 0.0, 0f, 0f, "world", false, false, false, 20.0, 20);
+        buffer.drainTo(recording);
+
+        Assertions.assertTrue(buffer.isEmpty());
+        Assertions.assertEquals(20, recording.getFrame(0).getBlockEvents().size());
+        for (int i = 0; i < 20; i++) {
+            BlockEvent event = recording.getFrame(0).getBlockEvents().get(i);
+            Assertions.assertEquals(i, event.getTimestamp());
+            Assertions.assertEquals(i, event.getX());
+            Assertions.assertEquals(-i, event.getY());
+            Assertions.assertEquals(1000 + i, event.getZ());
+            Assertions.assertEquals("minecraft:diamond_ore", event.getBlockDataString());
+        }
+    }
+
+    /**
+     * Кадр записи: половина событий — ломание (начало и завершение), у каждого четвёртого
+     * блока ещё и установка поверх воздуха; затем кадр и перенос событий в запись.
+     */
+    private static void captureFrame(BlockEventBuffer buffer, PlayerRecording recording, Block[] blocks,
+                                     BlockState air, int frame) {
+        for (int i = 0; i < blocks.length; i++) {
+            if (i % 4 == 3) {
+                buffer.capture(frame, BlockEvent.EventType.PLACE, blocks[i], 1f, air, 7);
+                buffer.capture(frame, BlockEvent.EventType.BREAK_COMPLETE, blocks[i], 1f, null, 7);
+            } else {
+                buffer.capture(frame, BlockEvent.EventType.BREAK_START, blocks[i], 0.1f, null, 7);
+                buffer.capture(frame, BlockEvent.EventType.BREAK_COMPLETE, blocks[i], 1f, null, 7);
+            }
+        }
+        recording.addFrame(frame, 0.0, 64.0, 0.0, 0f, 0f, "world", false, false, false, 20.0, 20);
+        buffer.drainTo(recording);
+    }
+
+    /**
+     * Блок, который отвечает без выделений: координаты упакованы один раз, методы без аргументов.
+     */
+    private static Block block(World world, int x, int y, int z, Material material) {
+        Integer boxedX = x;
+        Integer boxedY = y;
+        Integer boxedZ = z;
+        return TestServer.proxy(Block.class, Map.of(
+                "getX", args -> boxedX,
+                "getY", args -> boxedY,
+                "getZ", args -> boxedZ,
+                "getWorld", args -> world,
+                "getType", args -> material));
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.TestServer;
+import com.example.antixrayviewer.data.BlockStatePalette;
+import org.bukkit.Server;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class BlockRestoreTest {
+
+    private static int stone;
+    private static BlockData stoneData;
+    private static BlockData dirtData;
+
+    /** Фоновые задачи планировщика: выполняются, когда тест решит. */
+    private final List<Runnable> async = new ArrayList<>();
+    /** Блоки, где реальный мир отличается от отправленного клиенту. */
+    private final Set<String> changed = new HashSet<>();
+    private Plugin plugin;
+
+    @BeforeAll
+    static void server() {
+        TestServer.install();
+        stone = BlockStatePalette.idOf("minecraft:stone");
+        stoneData = TestServer.blockData("minecraft:stone");
+        dirtData = TestServer.blockData("minecraft:dirt");
+    }
+
+    /**
+     * Зрителю отправлен камень в нескольких чанках; в реальном мире часть этих блоков — тот же
+     * камень, часть — земля, остальное — воздух. Возврат шлёт ровно различия, не выходит
+     * за бюджет тика и заканчивается, а клиент в итоге видит реальный мир.
+     */
+    @Test
+    void restoreSendsOnlyChangedBlocksWithinBudget() {
+        FakeClient client = new FakeClient("world");
+        BlockRestore restore = sendAndSetupWorld(client).restore();
+        Assertions.assertNotNull(restore);
+        restore.setBudget(2, 32768);
+
+        int ticks = 0;
+        while (!restore.isFinished()) {
+            Assertions.assertTrue(++ticks < 1000, "возврат не заканчивается");
+            restore.tick();
+            runAsync();
+            int before = client.packets;
+            restore.flush();
+            Assertions.assertTrue(client.packets - before <= 2,
+                    "за тик ушло " + (client.packets - before) + " пакетов при бюджете 2");
+        }
+
+        Assertions.assertEquals(changed, new HashSet<>(client.arrivals), "отправлены не ровно различия");
+        assertClientSeesRealWorld(client);
+    }
+
+    /**
+     * Пока фоновое сравнение не досчитано, возврат не считается законченным.
+     */
+    @Test
+    void restoreWaitsForBackgroundDiff() {
+        FakeClient client = new FakeClient("world");
+        BlockRestore restore = sendAndSetupWorld(client).restore();
+        restore.tick();
+        restore.flush();
+        Assertions.assertFalse(restore.isFinished(), "закончен без результата сравнения");
+        Assertions.assertEquals(0, client.packets);
+        Assertions.assertEquals(0, restore.getBudgetWeight(), "доля бюджета без готовых пакетов");
+
+        runAsync();
+        Assertions.assertTrue(restore.getBudgetWeight() > 0);
+    }
+
+    /**
+     * Зритель сменил мир — блоки старого мира ему больше не нужны.
+     */
+    @Test
+    void worldChangeFinishesWithoutSending() {
+        FakeClient client = new FakeClient("world");
+        BlockRestore restore = sendAndSetupWorld(client).restore();
+        client.changeWorld("world_nether");
+        restore.tick();
+        runAsync();
+        restore.flush();
+
+        Assertions.assertTrue(restore.isFinished());
+        Assertions.assertEquals(0, client.packets);
+        Assertions.assertTrue(async.isEmpty());
+    }
+
+    /**
+     * При выключении сервера всё оставшееся досчитывается и отправляется сразу.
+     */
+    @Test
+    void finishNowSendsEverything() {
+        FakeClient client = new FakeClient("world");
+        BlockRestore restore = sendAndSetupWorld(client).restore();
+        restore.setBudget(1, 1024);
+        restore.finishNow();
+
+        Assertions.assertTrue(restore.isFinished());
+        Assertions.assertTrue(async.isEmpty(), "выключение не должно уходить в фон");
+        Assertions.assertEquals(changed, new HashSet<>(client.arrivals));
+        assertClientSeesRealWorld(client);
+    }
+
+    @Test
+    void nothingSentNothingToRestore() {
+        FakeClient client = new FakeClient("world");
+        Assertions.assertNull(newView(client).restore());
+    }
+
+    private VirtualBlockView newView(FakeClient client) {
+        if (plugin == null) {
+            BukkitScheduler scheduler = TestServer.proxy(BukkitScheduler.class, Map.of(
+                    "runTaskAsynchronously", args -> {
+                        async.add((Runnable) args[1]);
+                        return null;
+                    }));
+            Server server = TestServer.proxy(Server.class, Map.of("getScheduler", args -> scheduler));
+            plugin = TestServer.proxy(Plugin.class, Map.of(
+                    "isEnabled", args -> true,
+                    "getServer", args -> server));
+        }
+        return new VirtualBlockView(plugin, client.player, 64, 32768, 96.0);
+    }
+
+    /**
+     * Отправить клиенту камень в трёх чанках и разных секциях и расставить реальный мир:
+     * каждый третий блок совпадает, каждый третий — земля, остальные — воздух.
+     * Отличающиеся блоки — в {@link #changed}.
+     *
+     * @return вид, через который блоки ушли клиенту
+     */
+    private VirtualBlockView sendAndSetupWorld(FakeClient client) {
+        VirtualBlockView view = newView(client);
+        int[][] origins = {{0, 0}, {16, 0}, {0, -16}};
+        int n = 0;
+        for (int[] origin : origins) {
+            for (int i = 0; i < 24; i++) {
+                int x = origin[0] + i % 8;
+                int y = 60 + (i / 8) * 8;
+                int z = origin[1] + i / 4;
+                view.set(new BlockRef("world", x, y, z), stone);
+                String key = x + "," + y + "," + z;
+                switch (n++ % 3) {
+                    case 0 -> client.real.put(key, stoneData);
+                    case 1 -> {
+                        client.real.put(key, dirtData);
+                        changed.add(key);
+                    }
+                    default -> changed.add(key);
+                }
+            }
+        }
+        view.flush();
+        Assertions.assertEquals(0, view.getPendingUpdates(), "блоки не отправились целиком");
+        client.arrivals.clear();
+        client.packets = 0;
+        return view;
+    }
+
+    private void runAsync() {
+        List<Runnable> tasks = new ArrayList<>(async);
+        async.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    private static void assertClientSeesRealWorld(FakeClient client) {
+        for (Map.Entry<String, BlockData> seen : client.blocks.entrySet()) {
+            BlockData real = client.real.getOrDefault(seen.getKey(), TestServer.blockData("minecraft:air"));
+            Assertions.assertEquals(real.getAsString(), seen.getValue().getAsString(),
+                    "клиент видит не реальный блок в " + seen.getKey());
+        }
+    }
+}
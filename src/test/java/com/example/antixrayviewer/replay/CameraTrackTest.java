@@ -0,0 +1,118 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.TestServer;
+import com.example.antixrayviewer.data.PlayerRecording;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.UUID;
+
+class CameraTrackTest {
+
+    @BeforeAll
+    static void server() {
+        TestServer.install();
+    }
+
+    /**
+     * В моменты, кратные шагу, трек отдаёт ровно то же, что интерполяция по кадрам.
+     */
+    @Test
+    void gridPointsMatchInterpolation() {
+        PlayerRecording recording = walk(new Random(3), 5000);
+        ReplayTimeline plain = new ReplayTimeline(recording, false);
+        ReplayTimeline tracked = new ReplayTimeline(recording, true);
+        Assertions.assertTrue(tracked.hasCameraTrack());
+        ReplayTimeline.Sample expected = new ReplayTimeline.Sample();
+        ReplayTimeline.Sample actual = new ReplayTimeline.Sample();
+
+        for (long time = 0L; time <= plain.getDuration(); time += CameraTrack.STEP_MS) {
+            plain.sample(time, expected);
+            tracked.sample(time, actual);
+            Assertions.assertEquals(expected.world, actual.world, "мир на " + time);
+            Assertions.assertEquals(expected.x, actual.x, 1e-9, "x на " + time);
+            Assertions.assertEquals(expected.y, actual.y, 1e-9, "y на " + time);
+            Assertions.assertEquals(expected.z, actual.z, 1e-9, "z на " + time);
+            Assertions.assertEquals(expected.yaw, actual.yaw, 1e-4f, "yaw на " + time);
+            Assertions.assertEquals(expected.sneaking, actual.sneaking, "присед на " + time);
+            Assertions.assertEquals(expected.discontinuity, actual.discontinuity, "разрыв на " + time);
+            Assertions.assertEquals(expected.frameIndex, actual.frameIndex, "кадр на " + time);
+        }
+    }
+
+    /**
+     * Между точками трека: мир и разрывы те же, а позиция отличается от сплайна меньше,
+     * чем на шаг игрока за кадр (до 1,2 блока), — и уж точно не на телепорт в 100 блоков.
+     */
+    @Test
+    void offGridFollowsInterpolation() {
+        PlayerRecording recording = walk(new Random(4), 5000);
+        ReplayTimeline plain = new ReplayTimeline(recording, false);
+        ReplayTimeline tracked = new ReplayTimeline(recording, true);
+        ReplayTimeline.Sample expected = new ReplayTimeline.Sample();
+        ReplayTimeline.Sample actual = new ReplayTimeline.Sample();
+
+        for (long time = 1L; time <= plain.getDuration() + 200L; time += 13L) {
+            plain.sample(time, expected);
+            tracked.sample(time, actual);
+            Assertions.assertEquals(expected.world, actual.world, "мир на " + time);
+            Assertions.assertEquals(expected.discontinuity, actual.discontinuity, "разрыв на " + time);
+            double offset = Math.abs(expected.x - actual.x) + Math.abs(expected.z - actual.z);
+            Assertions.assertTrue(offset < 1.0, "расхождение " + offset + " на " + time);
+        }
+    }
+
+    /**
+     * Рядом с телепортом и сменой мира трек не усредняет точки по разные стороны разрыва,
+     * а отдаёт интерполяцию по кадрам как есть.
+     */
+    @Test
+    void discontinuityFallsBackToFrames() {
+        PlayerRecording recording = new PlayerRecording(UUID.randomUUID(), "Bob", "why", 0L);
+        for (int frame = 0; frame < 40; frame++) {
+            double x = frame < 20 ? frame * 0.2 : 500 + frame * 0.2;
+            String world = frame < 30 ? "world" : "world_nether";
+            recording.addFrame(frame * 60L, x, 64, 0, 0f, 0f, world, false, false, false, 20.0, 20);
+        }
+        ReplayTimeline plain = new ReplayTimeline(recording, false);
+        ReplayTimeline tracked = new ReplayTimeline(recording, true);
+        ReplayTimeline.Sample expected = new ReplayTimeline.Sample();
+        ReplayTimeline.Sample actual = new ReplayTimeline.Sample();
+
+        long[][] around = {{19 * 60L - 100L, 20 * 60L + 100L}, {29 * 60L - 100L, 30 * 60L + 100L}};
+        for (long[] range : around) {
+            for (long time = range[0]; time <= range[1]; time++) {
+                plain.sample(time, expected);
+                tracked.sample(time, actual);
+                Assertions.assertEquals(expected.world, actual.world, "мир на " + time);
+                Assertions.assertEquals(expected.x, actual.x, 1e-9, "x на " + time);
+                Assertions.assertEquals(expected.discontinuity, actual.discontinuity, "разрыв на " + time);
+            }
+        }
+    }
+
+    /**
+     * Кадры через 40–70 мс, случайное блуждание; редкие телепорты на 100 блоков
+     * и смена мира каждые 1000 кадров.
+     */
+    private static PlayerRecording walk(Random random, int frames) {
+        PlayerRecording recording = new PlayerRecording(UUID.randomUUID(), "Bob", "why", 1000L);
+        long time = 1000L;
+        double x = 0.0;
+        double z = 0.0;
+        for (int frame = 0; frame < frames; frame++) {
+            time += 40 + random.nextInt(30);
+            x += random.nextDouble() - 0.3;
+            z += random.nextDouble() - 0.5;
+            if (random.nextInt(500) == 0) {
+                x += 100.0;
+            }
+            String world = (frame / 1000) % 2 == 0 ? "world" : "world_nether";
+            recording.addFrame(time, x, 64, z, random.nextFloat() * 360f, 0f, world, random.nextBoolean(),
+                    false, false, 20.0, 20);
+        }
+        return recording;
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.TestServer;
+import com.example.antixrayviewer.data.BlockKey;
+import io.papermc.paper.math.Position;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Зритель и его клиент для тестов {@link VirtualBlockView}: запоминает, какие блоки
+ * видит клиент, и считает пакеты. Каждый пакет изменения секции обязан касаться одной секции.
+ * Реальный мир — {@link #real}: его читают снимки чанков, отсутствующий блок — воздух.
+ */
+final class FakeClient {
+
+    final World world;
+    final Player player;
+    /** Что видит клиент: ключ "x,y,z". */
+    final Map<String, BlockData> blocks = new HashMap<>();
+    /** Порядок, в котором блоки приходили клиенту. */
+    final List<String> arrivals = new ArrayList<>();
+    /** Чанки, которые клиент ещё не получил (ключ как в {@code Player#isChunkSent}). */
+    final Set<Long> missingChunks = new HashSet<>();
+    /** Реальный мир сервера: ключ "x,y,z". */
+    final Map<String, BlockData> real = new HashMap<>();
+    int packets;
+    /** Сколько раз сервер спрашивал, загружен ли чанк: по одному разу на просмотренный блок. */
+    int chunkChecks;
+
+    private final BlockData air = TestServer.blockData("minecraft:air");
+    private World current;
+    private Location location;
+
+    FakeClient(String worldName) {
+        this.world = TestServer.proxy(World.class, Map.of(
+                "getName", args -> worldName,
+                "isChunkLoaded", args -> {
+                    chunkChecks++;
+                    return true;
+                },
+                "getChunkAt", args -> chunk((Integer) args[0], (Integer) args[1]),
+                "getChunkAtAsync", args -> CompletableFuture.completedFuture(null)));
+        this.current = world;
+        this.location = new Location(world, 0.5, 64.0, 0.5);
+        UUID id = UUID.randomUUID();
+        this.player = TestServer.proxy(Player.class, Map.of(
+                "getUniqueId", args -> id,
+                "getName", args -> "viewer",
+                "isOnline", args -> true,
+                "getWorld", args -> current,
+                "getLocation", args -> location,
+                "getSendViewDistance", args -> 10,
+                "isChunkSent", args -> !missingChunks.contains((Long) args[0]),
+                "sendBlockChange", args -> {
+                    Location at = (Location) args[0];
+                    receive(at.getBlockX(), at.getBlockY(), at.getBlockZ(), (BlockData) args[1]);
+                    packets++;
+                    return null;
+                },
+                "sendMultiBlockChange", args -> {
+                    Set<Long> sections = new HashSet<>();
+                    for (Map.Entry<?, ?> change : ((Map<?, ?>) args[0]).entrySet()) {
+                        Position position = (Position) change.getKey();
+                        receive(position.blockX(), position.blockY(), position.blockZ(), (BlockData) change.getValue());
+                        sections.add(BlockKey.pack(position.blockX() >> 4,
+                                position.blockY() >> 4, position.blockZ() >> 4));
+                    }
+                    if (sections.size() != 1) {
+                        throw new AssertionError("пакет затрагивает " + sections.size() + " секций");
+                    }
+                    packets++;
+                    return null;
+                }));
+    }
+
+    /**
+     * Поставить камеру: yaw 0 — взгляд на +Z, pitch 0 — горизонтально.
+     */
+    void moveTo(double x, double y, double z, float yaw, float pitch) {
+        location = new Location(world, x, y, z, yaw, pitch);
+    }
+
+    /**
+     * Зритель перешёл в другой мир.
+     */
+    void changeWorld(String worldName) {
+        current = TestServer.proxy(World.class, Map.of("getName", args -> worldName));
+    }
+
+    BlockData blockAt(int x, int y, int z) {
+        return blocks.get(x + "," + y + "," + z);
+    }
+
+    static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX & 0xFFFFFFFFL) | (((long) chunkZ & 0xFFFFFFFFL) << 32);
+    }
+
+    private Chunk chunk(int chunkX, int chunkZ) {
+        ChunkSnapshot snapshot = TestServer.proxy(ChunkSnapshot.class, Map.of(
+                "getBlockData", args -> {
+                    int x = (chunkX << 4) + (Integer) args[0];
+                    int z = (chunkZ << 4) + (Integer) args[2];
+                    return real.getOrDefault(x + "," + args[1] + "," + z, air);
+                }));
+        return TestServer.proxy(Chunk.class, Map.of("getChunkSnapshot", args -> snapshot));
+    }
+
+    private void receive(int x, int y, int z, BlockData data) {
+        String key = x + "," + y + "," + z;
+        blocks.put(key, data);
+        arrivals.add(key);
+    }
+}
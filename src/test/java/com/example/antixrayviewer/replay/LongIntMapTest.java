@@ -0,0 +1,101 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.data.BlockKey;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+class LongIntMapTest {
+
+    /**
+     * Случайные ключи, перезаписи и рост таблицы: содержимое совпадает с {@link HashMap}.
+     */
+    @Test
+    void matchesHashMap() {
+        Random random = new Random(5);
+        LongIntMap map = new LongIntMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            // Половина ключей — из небольшого набора, чтобы были перезаписи
+            long key = random.nextBoolean() ? random.nextLong() : random.nextInt(5000) - 2500;
+            int value = random.nextInt(Integer.MAX_VALUE);
+            map.put(key, value);
+            expected.put(key, value);
+        }
+
+        Assertions.assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            Assertions.assertEquals(entry.getValue().intValue(), map.get(entry.getKey()), "ключ " + entry.getKey());
+        }
+        for (int i = 0; i < 10_000; i++) {
+            long key = random.nextLong();
+            if (!expected.containsKey(key)) {
+                Assertions.assertEquals(-1, map.get(key), "чужой ключ " + key);
+            }
+        }
+    }
+
+    /**
+     * Плотный куб соседних блоков — типичный слой зрителя — и крайние значения ключа.
+     */
+    @Test
+    void packedNeighboursAndEdgeKeys() {
+        LongIntMap map = new LongIntMap();
+        int value = 0;
+        for (int x = -20; x < 20; x++) {
+            for (int y = -64; y < -24; y++) {
+                for (int z = -20; z < 20; z++) {
+                    map.put(BlockKey.pack(x, y, z), value++);
+                }
+            }
+        }
+        long[] edges = {0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE};
+        for (long edge : edges) {
+            map.put(edge, value++);
+        }
+
+        Assertions.assertEquals(value, map.size());
+        int check = 0;
+        for (int x = -20; x < 20; x++) {
+            for (int y = -64; y < -24; y++) {
+                for (int z = -20; z < 20; z++) {
+                    Assertions.assertEquals(check++, map.get(BlockKey.pack(x, y, z)));
+                }
+            }
+        }
+        for (long edge : edges) {
+            Assertions.assertEquals(check++, map.get(edge), "ключ " + edge);
+        }
+    }
+
+    @Test
+    void overwriteKeepsSize() {
+        LongIntMap map = new LongIntMap();
+        map.put(42L, 1);
+        map.put(42L, 0);
+
+        Assertions.assertEquals(1, map.size());
+        Assertions.assertEquals(0, map.get(42L), "ноль — обычное значение, а не пустая ячейка");
+    }
+
+    @Test
+    void clearEmptiesAndMapIsReusable() {
+        LongIntMap map = new LongIntMap();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+
+        map.clear();
+
+        Assertions.assertEquals(0, map.size());
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertEquals(-1, map.get(i));
+        }
+        map.put(7L, 70);
+        Assertions.assertEquals(70, map.get(7L));
+        Assertions.assertEquals(1, map.size());
+    }
+}
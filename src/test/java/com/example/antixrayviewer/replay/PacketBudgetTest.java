@@ -0,0 +1,184 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.TestServer;
+import org.bukkit.Server;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+class PacketBudgetTest {
+
+    private static final int MIN_PACKETS = 8;
+    private static final int MAX_PACKETS = 64;
+    private static final int MIN_BYTES = 4096;
+    private static final int MAX_BYTES = 32768;
+    private static final int GLOBAL_PACKETS = 256;
+    private static final int GLOBAL_BYTES = 131072;
+
+    /** Текущий тик сервера и его MSPT. */
+    private int tick;
+    private double mspt = 20.0;
+    private int msptReads;
+
+    private PacketBudget budget() {
+        Server server = TestServer.proxy(Server.class, Map.of(
+                "getCurrentTick", args -> tick,
+                "getAverageTickTime", args -> {
+                    msptReads++;
+                    return mspt;
+                }));
+        return new PacketBudget(server, MIN_PACKETS, MAX_PACKETS, MIN_BYTES, MAX_BYTES, GLOBAL_PACKETS, GLOBAL_BYTES);
+    }
+
+    @Test
+    void idleServerGivesFullBudget() {
+        PacketBudget budget = budget();
+        budget.allocate(1, new int[]{2}, new int[]{50});
+
+        Assertions.assertEquals(MAX_PACKETS, budget.getPackets(0));
+        Assertions.assertEquals(MAX_BYTES, budget.getBytes(0));
+    }
+
+    /**
+     * MSPT 30 → полный бюджет, 40 → середина между min и max, 50 и выше → минимум.
+     */
+    @Test
+    void serverLoadScalesBudget() {
+        PacketBudget budget = budget();
+        double[] load = {30.0, 40.0, 50.0, 80.0};
+        int[] expected = {MAX_PACKETS, (MIN_PACKETS + MAX_PACKETS) / 2, MIN_PACKETS, MIN_PACKETS};
+        for (int i = 0; i < load.length; i++) {
+            mspt = load[i];
+            tick++;
+            budget.allocate(1, new int[]{2}, new int[]{0});
+            Assertions.assertEquals(expected[i], budget.getPackets(0), "пакетов при MSPT " + load[i]);
+        }
+    }
+
+    @Test
+    void slowClientGetsLess() {
+        PacketBudget budget = budget();
+        budget.allocate(3, new int[]{2, 2, 2}, new int[]{100, 250, 1000});
+
+        Assertions.assertEquals(MAX_PACKETS, budget.getPackets(0));
+        Assertions.assertTrue(budget.getPackets(1) < MAX_PACKETS && budget.getPackets(1) > budget.getPackets(2));
+        // При ping 400 мс и выше — четверть адаптивной части бюджета
+        Assertions.assertEquals(MIN_PACKETS + (MAX_PACKETS - MIN_PACKETS) / 4, budget.getPackets(2));
+    }
+
+    /**
+     * Общий лимит делится по весам; недобранное одной сессией достаётся остальным,
+     * а сессия без очереди (вес 0) не получает ничего.
+     */
+    @Test
+    void globalLimitIsSharedByWeight() {
+        PacketBudget budget = budget();
+        budget.allocate(6, new int[]{2, 2, 1, 1, 0, 2}, new int[]{0, 0, 0, 0, 0, 1000});
+
+        int[] packets = new int[6];
+        int total = 0;
+        for (int i = 0; i < 6; i++) {
+            packets[i] = budget.getPackets(i);
+            total += i == 4 ? 0 : packets[i];
+        }
+        Assertions.assertEquals(0, packets[4], "сессии без очереди бюджет не нужен");
+        Assertions.assertTrue(total <= GLOBAL_PACKETS, "выдано " + total + " при лимите " + GLOBAL_PACKETS);
+        Assertions.assertEquals(packets[0], packets[1]);
+        Assertions.assertTrue(packets[0] >= packets[2], "вес 2 получает не меньше веса 1");
+        // Медленный клиент берёт меньше своей доли — остаток уходит голодным сессиям
+        Assertions.assertEquals(MIN_PACKETS + (MAX_PACKETS - MIN_PACKETS) / 4, packets[5]);
+        Assertions.assertTrue(packets[2] > GLOBAL_PACKETS / 8, "лишнее перераспределено: " + packets[2]);
+    }
+
+    /**
+     * Случайные наборы сессий: никто не получает больше желаемого (max), сумма по всем
+     * сессиям не выходит за общий лимит, а сессия с бюджетом получает не меньше минимума.
+     */
+    @Test
+    void randomSharesStayWithinLimits() {
+        PacketBudget budget = budget();
+        Random random = new Random(6);
+        for (int round = 0; round < 2000; round++) {
+            tick++;
+            mspt = 10.0 + random.nextDouble() * 50.0;
+            int count = 1 + random.nextInt(40);
+            int[] weights = new int[count];
+            int[] pings = new int[count];
+            for (int i = 0; i < count; i++) {
+                weights[i] = random.nextInt(3);
+                pings[i] = random.nextInt(600);
+            }
+            budget.allocate(count, weights, pings);
+
+            long packets = 0L;
+            long bytes = 0L;
+            for (int i = 0; i < count; i++) {
+                int p = budget.getPackets(i);
+                int b = budget.getBytes(i);
+                if (weights[i] == 0) {
+                    Assertions.assertEquals(0, p, "пакетов без очереди");
+                    Assertions.assertEquals(0, b, "байт без очереди");
+                    continue;
+                }
+                // Сессия либо ждёт своей очереди целиком, либо получает не меньше минимума
+                Assertions.assertTrue(p == 0 && b == 0 || p >= MIN_PACKETS && b >= MIN_BYTES,
+                        "пакетов " + p + ", байт " + b);
+                Assertions.assertTrue(p <= MAX_PACKETS, "пакетов " + p);
+                Assertions.assertTrue(b <= MAX_BYTES, "байт " + b);
+                packets += p;
+                bytes += b;
+            }
+            Assertions.assertTrue(packets <= GLOBAL_PACKETS, "пакетов всего " + packets);
+            Assertions.assertTrue(bytes <= GLOBAL_BYTES, "байт всего " + bytes);
+        }
+    }
+
+    /**
+     * 40 зрителей при лимите 256 и минимуме 8: минимум влезает только 32 сессиям.
+     * Сумма не выходит за лимит, а за два тика бюджет получают все.
+     */
+    @Test
+    void minimumsRotateWhenTheyDoNotFit() {
+        PacketBudget budget = budget();
+        int count = 40;
+        int[] weights = new int[count];
+        int[] pings = new int[count];
+        Arrays.fill(weights, 2);
+        boolean[] served = new boolean[count];
+        for (int round = 0; round < 2; round++) {
+            tick++;
+            budget.allocate(count, weights, pings);
+            int total = 0;
+            int funded = 0;
+            for (int i = 0; i < count; i++) {
+                int p = budget.getPackets(i);
+                total += p;
+                if (p > 0) {
+                    Assertions.assertTrue(p >= MIN_PACKETS, "пакетов " + p);
+                    served[i] = true;
+                    funded++;
+                }
+            }
+            Assertions.assertTrue(total <= GLOBAL_PACKETS, "выдано " + total + " при лимите " + GLOBAL_PACKETS);
+            Assertions.assertEquals(GLOBAL_PACKETS / MIN_PACKETS, funded);
+        }
+        for (int i = 0; i < count; i++) {
+            Assertions.assertTrue(served[i], "сессия " + i + " за два тика не получила бюджета");
+        }
+    }
+
+    @Test
+    void loadIsReadOncePerServerTick() {
+        PacketBudget budget = budget();
+        budget.allocate(2, new int[]{2, 2}, new int[]{0, 0});
+        budget.allocate(2, new int[]{2, 1}, new int[]{0, 0});
+        Assertions.assertEquals(1, msptReads);
+
+        tick++;
+        budget.allocate(2, new int[]{2, 2}, new int[]{0, 0});
+        Assertions.assertEquals(2, msptReads);
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.TestServer;
+import com.example.antixrayviewer.data.BlockEvent;
+import com.example.antixrayviewer.data.PlayerRecording;
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Замер истории блоков {@link ReplayTimeline} на синтетической записи из 50 000 дельт.
+ *
+ * Меряется сборка таймлинии и её память, одиночный {@link ReplayTimeline#stateIdAt}
+ * (O(log изменений блока)) и полная пересборка состояния {@link ReplayTimeline#stateAt}
+ * (O(блоков · log n) — по бинарному поиску на каждый блок). Результат полной пересборки
+ * сверяется с наивным проигрыванием дельт с начала. Запуск: {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+class ReplayTimelineBenchmark {
+
+    private static final int DELTAS = 50_000;
+    /** Блоков меньше, чем дельт: у части блоков история из нескольких изменений. */
+    private static final int BLOCKS = 20_000;
+    private static final int WARMUP = 5;
+    private static final int ROUNDS = 20;
+
+    @BeforeAll
+    static void server() {
+        TestServer.install();
+    }
+
+    @Test
+    void historyOnFiftyThousandDeltas() {
+        PlayerRecording recording = syntheticRecording(new Random(1));
+
+        ReplayTimeline timeline = null;
+        long buildNanos = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP; i++) {
+            long started = System.nanoTime();
+            timeline = new ReplayTimeline(recording);
+            buildNanos = Math.min(buildNanos, System.nanoTime() - started);
+        }
+        timeline = null;
+        long before = usedHeap();
+        timeline = new ReplayTimeline(recording);
+        long heap = usedHeap() - before;
+        Assertions.assertEquals(DELTAS, timeline.getDeltas().size(), "все события должны стать дельтами");
+
+        Random random = new Random(2);
+        int refs = timeline.getRefCount();
+        int deltas = timeline.getDeltas().size();
+        int lookups = 1_000_000;
+        long checksum = 0L;
+        for (int warm = 0; warm < 2; warm++) {
+            checksum += lookups(timeline, random, refs, deltas, lookups);
+        }
+        long started = System.nanoTime();
+        checksum += lookups(timeline, random, refs, deltas, lookups);
+        double lookupNanos = (System.nanoTime() - started) / (double) lookups;
+
+        long rebuildNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long time = random.nextLong(timeline.getDuration());
+            long rebuildStarted = System.nanoTime();
+            Map<BlockRef, BlockData> state = timeline.stateAt(time);
+            rebuildNanos = Math.min(rebuildNanos, System.nanoTime() - rebuildStarted);
+            if (round < 3) {
+                Assertions.assertEquals(naiveState(timeline, time), state, "состояние на " + time + " мс");
+            }
+        }
+
+        System.out.printf("ReplayTimeline: %d дельт, %d блоков; сборка %.1f мс, память ~%d КБ%n",
+                deltas, refs, buildNanos / 1e6, heap / 1024);
+        System.out.printf("  stateIdAt: %.0f нс на вызов (контроль %d)%n", lookupNanos, checksum);
+        System.out.printf("  stateAt (полное состояние, %d блоков): %.2f мс%n", refs, rebuildNanos / 1e6);
+    }
+
+    /**
+     * Запись, где каждые 50 мс игрок ломает или ставит три случайных блока из {@link #BLOCKS}.
+     */
+    private static PlayerRecording syntheticRecording(Random random) {
+        PlayerRecording recording = new PlayerRecording(UUID.randomUUID(), "bench", "synthetic", 1000L);
+        long time = 1000L;
+        int events = 0;
+        while (events < DELTAS) {
+            time += 50L;
+            recording.addFrame(time, 0, 64, 0, 0f, 0f, "world", false, false, false, 20.0, 20);
+            for (int k = 0; k < 3 && events < DELTAS; k++, events++) {
+                int x = random.nextInt(BLOCKS);
+                if (random.nextInt(4) == 0) {
+                    recording.addBlockEvent(new BlockEvent(time, BlockEvent.EventType.PLACE, x, 10, 0, "world",
+                            Material.STONE, 1f, -1, "minecraft:stone", "minecraft:air"));
+                } else {
+                    recording.addBlockEvent(new BlockEvent(time, BlockEvent.EventType.BREAK_COMPLETE, x, 10, 0,
+                            "world", Material.DIAMOND_ORE, 1f, -1, "minecraft:diamond_ore", null));
+                }
+            }
+        }
+        return recording;
+    }
+
+    private static long lookups(ReplayTimeline timeline, Random random, int refs, int deltas, int count) {
+        long sum = 0L;
+        for (int i = 0; i < count; i++) {
+            sum += timeline.stateIdAt(random.nextInt(refs), random.nextInt(deltas + 1));
+        }
+        return sum;
+    }
+
+    private static Map<BlockRef, BlockData> naiveState(ReplayTimeline timeline, long time) {
+        Map<BlockRef, BlockData> state = new HashMap<>(timeline.getInitialState());
+        int target = timeline.deltaIndexFor(time);
+        for (int i = 0; i < target; i++) {
+            ReplayTimeline.BlockDelta delta = timeline.getDeltas().get(i);
+            if (delta.to != null) {
+                state.put(delta.ref, delta.to);
+            } else {
+                state.remove(delta.ref);
+            }
+        }
+        return state;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.TestServer;
+import com.example.antixrayviewer.data.BlockEvent;
+import com.example.antixrayviewer.data.PlayerRecording;
+import org.bukkit.Material;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+class ReplayTimelineTest {
+
+    private static final long START = 1000L;
+
+    @BeforeAll
+    static void server() {
+        TestServer.install();
+    }
+
+    /**
+     * Курсор на случайной прогулке (обычный ход, прыжки вперёд и назад, выход за конец)
+     * всегда совпадает с полным перебором интервалов, в том числе с интервалом на всю запись.
+     */
+    @Test
+    void spanCursorMatchesFullScan() {
+        Random random = new Random(2);
+        ReplayTimeline timeline = new ReplayTimeline(breakingRecording(random));
+        List<ReplayTimeline.BreakSpan> spans = timeline.getBreakSpans();
+        ReplayTimeline.SpanCursor cursor = timeline.newSpanCursor();
+
+        long clock = 0L;
+        for (int step = 0; step < 20_000; step++) {
+            int mode = random.nextInt(20);
+            if (mode == 0) {
+                clock = random.nextLong(timeline.getDuration() + 2000L);
+            } else if (mode == 1) {
+                clock = Math.max(0L, clock - random.nextInt(5000));
+            } else {
+                clock += random.nextInt(mode == 2 ? 4000 : 120);
+            }
+            cursor.moveTo(clock);
+
+            Set<ReplayTimeline.BreakSpan> expected = new HashSet<>();
+            for (ReplayTimeline.BreakSpan span : spans) {
+                if (span.start <= clock && span.end > clock) {
+                    expected.add(span);
+                }
+            }
+            Set<ReplayTimeline.BreakSpan> actual = new HashSet<>();
+            for (int i = 0; i < cursor.size(); i++) {
+                actual.add(cursor.get(i));
+            }
+            Assertions.assertEquals(expected.size(), cursor.size(), "интервалов на " + clock + " мс (без повторов)");
+            Assertions.assertEquals(expected, actual, "активные интервалы на " + clock + " мс");
+        }
+    }
+
+    @Test
+    void spanCursorResetForgetsPosition() {
+        ReplayTimeline timeline = new ReplayTimeline(breakingRecording(new Random(3)));
+        ReplayTimeline.SpanCursor cursor = timeline.newSpanCursor();
+        cursor.moveTo(timeline.getDuration() / 2);
+
+        cursor.reset();
+
+        Assertions.assertEquals(0, cursor.size());
+        cursor.moveTo(0L);
+        // В начале записи активен только интервал на всю запись
+        Assertions.assertEquals(1, cursor.size());
+        Assertions.assertEquals(99_999, cursor.get(0).ref.getX());
+    }
+
+    /**
+     * Разница между позициями — ровно те блоки, чьё состояние различается, по одному разу
+     * и с состоянием целевой позиции. Проверяются и короткие шаги (кандидаты — дельты
+     * между позициями), и дальние прыжки (перебор всех блоков), в обе стороны.
+     */
+    @Test
+    void stateDiffIsExactlyTheChangedBlocks() {
+        Random random = new Random(4);
+        ReplayTimeline timeline = new ReplayTimeline(churnRecording(random));
+        ReplayTimeline.StateDiff diff = timeline.newStateDiff();
+        int deltas = timeline.getDeltas().size();
+        int refs = timeline.getRefCount();
+        int[] diffState = new int[refs];
+        Map<BlockRef, Integer> refIndex = new IdentityHashMap<>();
+        for (int r = 0; r < refs; r++) {
+            refIndex.put(timeline.getRef(r), r);
+        }
+
+        for (int round = 0; round < 300; round++) {
+            int from = random.nextInt(deltas + 1);
+            int to = round % 3 == 0 ? Math.min(deltas, from + random.nextInt(20)) : random.nextInt(deltas + 1);
+            diff.compute(from, to);
+
+            Arrays.fill(diffState, -1);
+            for (int i = 0; i < diff.size(); i++) {
+                int r = refIndex.get(diff.getRef(i));
+                Assertions.assertEquals(-1, diffState[r], "блок попал в разницу дважды");
+                diffState[r] = diff.getState(i);
+            }
+            for (int r = 0; r < refs; r++) {
+                int target = timeline.stateIdAt(r, to);
+                if (target == timeline.stateIdAt(r, from)) {
+                    Assertions.assertEquals(-1, diffState[r], "неизменный блок в разнице " + from + " → " + to);
+                } else {
+                    Assertions.assertEquals(target, diffState[r], "состояние блока в разнице " + from + " → " + to);
+                }
+            }
+        }
+    }
+
+    /**
+     * Блок сломали и поставили обратно — между позициями до и после он не меняется.
+     */
+    @Test
+    void stateDiffSkipsBlockChangedBack() {
+        PlayerRecording recording = new PlayerRecording(UUID.randomUUID(), "Bob", "why", START);
+        recording.addFrame(START, 0, 64, 0, 0f, 0f, "world", false, false, false, 20.0, 20);
+        recording.addBlockEvent(new BlockEvent(START, BlockEvent.EventType.BREAK_COMPLETE, 1, 10, 0, "world",
+                Material.STONE, 1f, -1, "minecraft:stone", null));
+        recording.addFrame(START + 50L, 0, 64, 0, 0f, 0f, "world", false, false, false, 20.0, 20);
+        recording.addBlockEvent(new BlockEvent(START + 50L, BlockEvent.EventType.PLACE, 1, 10, 0, "world",
+                Material.STONE, 1f, -1, "minecraft:stone", "minecraft:air"));
+        recording.addBlockEvent(new BlockEvent(START + 50L, BlockEvent.EventType.BREAK_COMPLETE, 2, 10, 0, "world",
+                Material.DIAMOND_ORE, 1f, -1, "minecraft:diamond_ore", null));
+        ReplayTimeline timeline = new ReplayTimeline(recording);
+        ReplayTimeline.StateDiff diff = timeline.newStateDiff();
+
+        diff.compute(0, 3);
+        Assertions.assertEquals(1, diff.size());
+        Assertions.assertEquals(2, diff.getRef(0).getX());
+
+        diff.compute(3, 3);
+        Assertions.assertEquals(0, diff.size());
+    }
+
+    /**
+     * 8000 кадров, в каждом ломают или ставят один из 3000 блоков: у блоков длинные истории.
+     */
+    private static PlayerRecording churnRecording(Random random) {
+        PlayerRecording recording = new PlayerRecording(UUID.randomUUID(), "Bob", "why", START);
+        long time = START;
+        for (int frame = 0; frame < 8000; frame++) {
+            time += 50L;
+            recording.addFrame(time, 0, 64, 0, 0f, 0f, "world", false, false, false, 20.0, 20);
+            int x = random.nextInt(3000);
+            if (random.nextBoolean()) {
+                recording.addBlockEvent(new BlockEvent(time, BlockEvent.EventType.PLACE, x, 10, 0, "world",
+                        Material.STONE, 1f, -1, "minecraft:stone", "minecraft:air"));
+            } else {
+                recording.addBlockEvent(new BlockEvent(time, BlockEvent.EventType.BREAK_COMPLETE, x, 10, 0, "world",
+                        Material.DIAMOND_ORE, 1f, -1, "minecraft:diamond_ore", null));
+            }
+        }
+        return recording;
+    }
+
+    /**
+     * 6000 кадров по 50 мс: треть кадров начинает ломание, которое через 0,1–3 с
+     * завершается или отменяется. Один блок ломают всю запись — он занимает все корзины индекса.
+     */
+    static PlayerRecording breakingRecording(Random random) {
+        PlayerRecording recording = new PlayerRecording(UUID.randomUUID(), "Bob", "why", START);
+        recording.addFrame(START, 0, 64, 0, 0f, 0f, "world", false, false, false, 20.0, 20);
+        recording.addBlockEvent(new BlockEvent(START, BlockEvent.EventType.BREAK_START, 99_999, 10, 0, "world",
+                Material.STONE));
+        TreeMap<Long, List<BlockEvent>> pending = new TreeMap<>();
+        long time = START;
+        for (int frame = 0; frame < 6000; frame++) {
+            time += 50L;
+            recording.addFrame(time, 0, 64, 0, 0f, 0f, "world", false, false, false, 20.0, 20);
+            List<BlockEvent> due = pending.remove(time);
+            if (due != null) {
+                for (BlockEvent event : due) {
+                    recording.addBlockEvent(event);
+                }
+            }
+            if (frame == 5999) {
+                recording.addBlockEvent(new BlockEvent(time, BlockEvent.EventType.BREAK_CANCEL, 99_999, 10, 0,
+                        "world", Material.STONE, 1f, -1, "minecraft:stone", null));
+            }
+            if (random.nextInt(3) == 0) {
+                int x = random.nextInt(5000);
+                recording.addBlockEvent(new BlockEvent(time, BlockEvent.EventType.BREAK_START, x, 10, 0, "world",
+                        Material.STONE));
+                long end = (time + 100L + random.nextInt(3000)) / 50L * 50L + 50L;
+                BlockEvent.EventType type = random.nextBoolean()
+                        ? BlockEvent.EventType.BREAK_COMPLETE : BlockEvent.EventType.BREAK_CANCEL;
+                pending.computeIfAbsent(end, key -> new ArrayList<>()).add(new BlockEvent(end, type, x, 10, 0,
+                        "world", Material.STONE, 1f, -1, "minecraft:stone", null));
+            }
+        }
+        return recording;
+    }
+}
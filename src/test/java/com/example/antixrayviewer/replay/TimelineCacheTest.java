@@ -0,0 +1,181 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.TestServer;
+import com.example.antixrayviewer.data.PlayerRecording;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TimelineCacheTest {
+
+    /** Построение сразу в вызывающем потоке. */
+    private static final Executor DIRECT = Runnable::run;
+
+    @BeforeAll
+    static void server() {
+        TestServer.install();
+    }
+
+    @Test
+    void sessionsShareOneTimeline() {
+        TimelineCache cache = new TimelineCache(DIRECT, 4, false);
+        PlayerRecording recording = recording(1, 10);
+
+        CompletableFuture<ReplayTimeline> first = cache.acquire(recording);
+        CompletableFuture<ReplayTimeline> second = cache.acquire(recording);
+
+        Assertions.assertSame(first, second);
+        Assertions.assertEquals(1, cache.getMisses());
+        Assertions.assertEquals(1, cache.getHits());
+        Assertions.assertEquals(1, cache.getInUseCount());
+    }
+
+    @Test
+    void changedRecordingGetsNewTimeline() {
+        TimelineCache cache = new TimelineCache(DIRECT, 4, false);
+        PlayerRecording recording = recording(1, 10);
+        CompletableFuture<ReplayTimeline> before = cache.acquire(recording);
+
+        recording.addFrame(100_000L, 0, 64, 0, 0f, 0f, "world", false, false, false, 20.0, 20);
+        CompletableFuture<ReplayTimeline> after = cache.acquire(recording);
+
+        Assertions.assertNotSame(before, after, "запись дописалась — старая таймлиния устарела");
+        Assertions.assertEquals(2, cache.getMisses());
+        // Освобождение заменённой таймлинии не трогает счётчик новой
+        cache.release(1, before);
+        Assertions.assertEquals(1, cache.getInUseCount());
+    }
+
+    @Test
+    void timelineInUseIsNeverEvicted() {
+        TimelineCache cache = new TimelineCache(DIRECT, 0, false);
+        PlayerRecording held = recording(1, 10);
+        PlayerRecording other = recording(2, 10);
+        CompletableFuture<ReplayTimeline> timeline = cache.acquire(held);
+        cache.release(2, cache.acquire(other));
+
+        Assertions.assertEquals(1, cache.size(), "без ссылок и при maxIdle = 0 остаётся только занятая");
+        Assertions.assertSame(timeline, cache.acquire(held));
+
+        cache.release(1, timeline);
+        Assertions.assertEquals(1, cache.size(), "у таймлинии ещё одна ссылка");
+        cache.release(1, timeline);
+        Assertions.assertEquals(0, cache.size());
+    }
+
+    @Test
+    void leastRecentlyUsedIdleTimelineIsEvicted() {
+        TimelineCache cache = new TimelineCache(DIRECT, 2, false);
+        PlayerRecording a = recording(1, 10);
+        PlayerRecording b = recording(2, 10);
+        PlayerRecording c = recording(3, 10);
+        CompletableFuture<ReplayTimeline> timelineA = cache.acquire(a);
+        cache.release(1, timelineA);
+        cache.release(2, cache.acquire(b));
+        // Повторное открытие делает A самой свежей
+        cache.release(1, cache.acquire(a));
+        cache.release(3, cache.acquire(c));
+
+        Assertions.assertEquals(2, cache.size());
+        long misses = cache.getMisses();
+        Assertions.assertSame(timelineA, cache.acquire(a), "A открывали недавно — она осталась");
+        cache.acquire(b);
+        Assertions.assertEquals(misses + 1, cache.getMisses(), "B вытеснена как давно не открытая");
+    }
+
+    @Test
+    void repeatedReleaseDoesNotGoNegative() {
+        TimelineCache cache = new TimelineCache(DIRECT, 1, false);
+        PlayerRecording recording = recording(1, 10);
+        CompletableFuture<ReplayTimeline> timeline = cache.acquire(recording);
+        cache.release(1, timeline);
+        cache.release(1, timeline);
+
+        Assertions.assertSame(timeline, cache.acquire(recording));
+        Assertions.assertEquals(1, cache.getInUseCount());
+    }
+
+    @Test
+    void failedBuildIsRetried() {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        TimelineCache cache = new TimelineCache(tasks::add, 4, false);
+        PlayerRecording recording = recording(1, 10);
+        CompletableFuture<ReplayTimeline> failed = cache.acquire(recording);
+        failed.completeExceptionally(new IllegalStateException("сбой сборки"));
+
+        CompletableFuture<ReplayTimeline> retry = cache.acquire(recording);
+
+        Assertions.assertNotSame(failed, retry);
+        Assertions.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void invalidateDropsTimelineButOpenSessionKeepsIt() {
+        TimelineCache cache = new TimelineCache(DIRECT, 4, false);
+        PlayerRecording recording = recording(1, 10);
+        CompletableFuture<ReplayTimeline> timeline = cache.acquire(recording);
+
+        cache.invalidate(1);
+        Assertions.assertEquals(0, cache.size());
+        Assertions.assertNotNull(timeline.join(), "открытая сессия досматривает свою копию");
+        cache.release(1, timeline);
+        Assertions.assertNotSame(timeline, cache.acquire(recording));
+    }
+
+    /**
+     * Записи нет в памяти: чтение с диска идёт в фоновой задаче вместе с построением,
+     * а вызывающий (основной поток) получает future сразу.
+     */
+    @Test
+    void storedRecordingIsLoadedInBackground() {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        TimelineCache cache = new TimelineCache(tasks::add, 4, false);
+        PlayerRecording stored = recording(5, 10);
+        AtomicInteger loads = new AtomicInteger();
+
+        CompletableFuture<ReplayTimeline> timeline = cache.acquire(5, () -> {
+            loads.incrementAndGet();
+            return stored;
+        });
+
+        Assertions.assertEquals(0, loads.get(), "в вызывающем потоке диск не читается");
+        Assertions.assertFalse(timeline.isDone());
+        tasks.poll().run();
+        Assertions.assertEquals(1, loads.get());
+        Assertions.assertSame(stored, timeline.join().getRecording());
+
+        // Прочитанная запись попадает в кэш записей: следующее открытие идёт с неё и не строит заново
+        Assertions.assertSame(timeline, cache.acquire(stored));
+        Assertions.assertSame(timeline, cache.acquire(5, () -> {
+            throw new AssertionError("повторное чтение с диска");
+        }));
+        Assertions.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void missingStoredRecordingFailsAndIsRetried() {
+        TimelineCache cache = new TimelineCache(DIRECT, 4, false);
+
+        CompletableFuture<ReplayTimeline> missing = cache.acquire(6, () -> null);
+
+        Assertions.assertTrue(missing.isCompletedExceptionally());
+        CompletableFuture<ReplayTimeline> retry = cache.acquire(6, () -> recording(6, 10));
+        Assertions.assertNotSame(missing, retry);
+        Assertions.assertNotNull(retry.join());
+    }
+
+    private static PlayerRecording recording(int id, int frames) {
+        PlayerRecording recording = new PlayerRecording(id, UUID.randomUUID(), "Bob", "why", 1000L);
+        for (int i = 0; i < frames; i++) {
+            recording.addFrame(1000L + i * 50L, i, 64, 0, 0f, 0f, "world", false, false, false, 20.0, 20);
+        }
+        return recording;
+    }
+}
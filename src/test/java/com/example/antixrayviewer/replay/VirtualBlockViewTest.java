@@ -0,0 +1,172 @@
+package com.example.antixrayviewer.replay;
+
+import com.example.antixrayviewer.TestServer;
+import com.example.antixrayviewer.data.BlockStatePalette;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+class VirtualBlockViewTest {
+
+    private static int stone;
+    private static int air;
+
+    @BeforeAll
+    static void server() {
+        TestServer.install();
+        stone = BlockStatePalette.idOf("minecraft:stone");
+        air = BlockStatePalette.idOf("minecraft:air");
+    }
+
+    /**
+     * У каждого сочетания (четверть, сзади, установка) своя корзина, и порядок корзин —
+     * сначала по четверти, затем по полю зрения, затем по типу изменения.
+     */
+    @Test
+    void priorityBucketsAreDistinctAndOrdered() {
+        Set<Integer> seen = new HashSet<>();
+        int previous = -1;
+        for (int quarter = 0; quarter < 4; quarter++) {
+            for (int behind = 0; behind < 2; behind++) {
+                for (int placed = 0; placed < 2; placed++) {
+                    int bucket = VirtualBlockView.priority(quarter, behind == 1, placed == 1);
+                    Assertions.assertTrue(bucket >= 0 && bucket < VirtualBlockView.PRIORITY_BUCKETS,
+                            "корзина " + bucket + " вне очереди");
+                    Assertions.assertTrue(seen.add(bucket), "корзина " + bucket + " занята дважды");
+                    Assertions.assertTrue(bucket > previous, "порядок корзин нарушен на " + bucket);
+                    previous = bucket;
+                }
+            }
+        }
+    }
+
+    /**
+     * Блоки поставлены в очередь от наименее срочного к самому срочному, а клиенту
+     * уходят в порядке приоритета. Разрушение сзади не обгоняет установку перед камерой.
+     */
+    @Test
+    void queueIsSentInPriorityOrder() {
+        FakeClient client = new FakeClient("world");
+        client.moveTo(0.5, 64.0, 0.5, 0f, 0f);
+        VirtualBlockView view = new VirtualBlockView(null, client.player, 8, 32768, 96.0);
+
+        // Каждый блок в своей секции: пакеты уходят в порядке, в котором секции набирались
+        String[] expectedOrder = {
+                "0,64,20",    // рядом, перед камерой, разрушение
+                "-10,64,20",  // рядом, перед камерой, установка
+                "0,64,-20",   // рядом, сзади, разрушение
+                "-10,64,-20", // рядом, сзади, установка
+                "0,64,50"     // дальше, перед камерой, разрушение
+        };
+        int[] states = {air, stone, air, stone, air};
+        for (int i = expectedOrder.length - 1; i >= 0; i--) {
+            String[] p = expectedOrder[i].split(",");
+            view.set(new BlockRef("world", Integer.parseInt(p[0]), Integer.parseInt(p[1]), Integer.parseInt(p[2])),
+                    states[i]);
+        }
+
+        view.flush();
+
+        Assertions.assertEquals(List.of(expectedOrder), client.arrivals);
+        Assertions.assertEquals(0, view.getPendingUpdates());
+    }
+
+    /**
+     * Плотные чанки после resync() уходят через переналожение от ближнего к дальнему.
+     * В ближнем чанке секций больше, чем пакетов в бюджете тика: он досылается по секциям
+     * за несколько тиков, и ни один flush() не выходит за бюджет.
+     */
+    @Test
+    void denseChunksAreSentNearestFirstWithinBudget() {
+        FakeClient client = new FakeClient("world");
+        client.moveTo(0.5, 100.0, 0.5, 0f, 0f);
+        VirtualBlockView view = new VirtualBlockView(null, client.player, 8, 32768, 256.0);
+
+        // Ближний чанк: 12 секций по 8 блоков; дальний — 4 секции по 16 блоков
+        Set<String> near = new HashSet<>();
+        for (int section = 0; section < 12; section++) {
+            for (int i = 0; i < 8; i++) {
+                int x = i % 4;
+                int y = section * 16 + 4;
+                int z = i / 4;
+                view.set(new BlockRef("world", x, y, z), stone);
+                near.add(x + "," + y + "," + z);
+            }
+        }
+        for (int section = 0; section < 4; section++) {
+            for (int i = 0; i < 16; i++) {
+                view.set(new BlockRef("world", 48 + i % 4, section * 16 + 4, i / 4), stone);
+            }
+        }
+        Assertions.assertTrue(near.size() >= VirtualBlockView.DENSE_CHUNK_BLOCKS);
+
+        Assertions.assertEquals(near.size() + 64, view.resync());
+        int flushes = 0;
+        while (view.getPendingUpdates() > 0) {
+            Assertions.assertTrue(++flushes < 100, "очередь не опустевает");
+            int before = client.packets;
+            view.flush();
+            Assertions.assertTrue(client.packets - before <= 8,
+                    "за flush() ушло " + (client.packets - before) + " пакетов при бюджете 8");
+        }
+
+        Assertions.assertEquals(near.size() + 64, client.arrivals.size());
+        Assertions.assertEquals(near, new HashSet<>(client.arrivals.subList(0, near.size())),
+                "дальний чанк обогнал ближний");
+        Assertions.assertTrue(flushes >= 2, "12 секций не могли уйти за один тик");
+    }
+
+    /**
+     * Большая разреженная очередь — каждый блок в своей секции. Когда пакеты тика кончились,
+     * flush() просматривает не больше {@link VirtualBlockView#TOP_UP_SCAN} ячеек сверх бюджета,
+     * а не всю очередь, и всё равно отправляет ровно бюджет.
+     */
+    @Test
+    void flushDoesNotScanWholeQueueOnceBudgetIsUsed() {
+        FakeClient client = new FakeClient("world");
+        client.moveTo(0.5, 64.0, 0.5, 0f, 0f);
+        VirtualBlockView view = new VirtualBlockView(null, client.player, 8, 32768, 1000.0);
+
+        int blocks = 1000;
+        for (int i = 0; i < blocks; i++) {
+            view.set(new BlockRef("world", (i % 25) * 16, 64, (i / 25) * 16), stone);
+        }
+
+        for (int tick = 1; tick <= 5; tick++) {
+            client.chunkChecks = 0;
+            view.flush();
+            Assertions.assertTrue(client.chunkChecks <= 8 + VirtualBlockView.TOP_UP_SCAN,
+                    "за тик просмотрено " + client.chunkChecks + " блоков из " + blocks);
+            Assertions.assertEquals(8 * tick, client.packets);
+            Assertions.assertEquals(blocks - 8 * tick, view.getPendingUpdates());
+        }
+    }
+
+    /**
+     * Блоки одной корзины приоритета, каждый в своей секции, при бюджете в один пакет
+     * уходят по одному за тик строго в порядке постановки: отложенные не переворачиваются
+     * и не уходят в конец корзины.
+     */
+    @Test
+    void deferredBlocksKeepTheirOrderWithinBucket() {
+        FakeClient client = new FakeClient("world");
+        client.moveTo(0.5, 64.0, 0.5, 0f, 0f);
+        VirtualBlockView view = new VirtualBlockView(null, client.player, 1, 32768, 1000.0);
+
+        // Все перед камерой и в ближней четверти радиуса — одна корзина
+        List<String> order = List.of("0,64,52", "0,64,20", "0,64,84", "0,64,36", "0,64,68");
+        for (String block : order) {
+            view.set(new BlockRef("world", 0, 64, Integer.parseInt(block.substring(5))), stone);
+        }
+
+        for (int tick = 1; tick <= order.size(); tick++) {
+            view.flush();
+            Assertions.assertEquals(order.subList(0, tick), client.arrivals, "порядок нарушен на тике " + tick);
+        }
+        Assertions.assertEquals(0, view.getPendingUpdates());
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.antixrayviewer.storage;
+
+import com.example.antixrayviewer.TestServer;
+import com.example.antixrayviewer.data.BlockEvent;
+import com.example.antixrayviewer.data.PlayerRecording;
+import com.example.antixrayviewer.data.RecordFrame;
+import org.bukkit.Material;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+class BinaryRecordingCodecTest {
+
+    private static final long START = 1_000_000L;
+
+    @BeforeAll
+    static void server() {
+        TestServer.install();
+    }
+
+    @Test
+    void roundTripKeepsFramesAndEvents() throws IOException {
+        PlayerRecording recording = new PlayerRecording(7, UUID.randomUUID(), "Bob", "why", START);
+        recording.setEndTime(START + 180_000L);
+        recording.setEndReason("end");
+        Random random = new Random(1);
+        for (int i = 0; i < 1800; i++) {
+            RecordFrame frame = new RecordFrame(START + i * 100L, 100.5 + i * 0.1, -30.25, -2000.75 + i * 0.01,
+                    random.nextFloat() * 360f - 180f, 12.5f, i < 900 ? "world" : "world_nether",
+                    i % 2 == 0, false, true, 19.5, 17);
+            if (i % 10 == 0) {
+                frame.addBlockEvent(event(START + i * 100L + 5, 100 + i / 10, -31, -2001));
+            }
+            recording.addFrame(frame);
+        }
+
+        PlayerRecording decoded = roundTrip(recording);
+
+        Assertions.assertEquals("end", decoded.getEndReason());
+        Assertions.assertEquals("Bob", decoded.getPlayerName());
+        assertSameFrames(recording, decoded);
+    }
+
+    /**
+     * Позиция у границы блока округляется до 1/4096 в соседний блок: события кадра
+     * должны читаться в тех же координатах, что и записывались.
+     */
+    @Test
+    void eventsNearBlockBoundaryKeepCoordinates() throws IOException {
+        PlayerRecording recording = new PlayerRecording(8, UUID.randomUUID(), "Bob", "why", START);
+        double[][] positions = {
+                {10.99995, 64.0, 5.5},
+                {10.5, 63.99999, 5.5},
+                {-0.00001, 64.0, -16.00001},
+                {-1e-9, -64.99999, 1e-9},
+                {29_999_999.99999, 319.99999, -29_999_999.99999}
+        };
+        for (int i = 0; i < positions.length; i++) {
+            double[] p = positions[i];
+            RecordFrame frame = new RecordFrame(START + i * 50L, p[0], p[1], p[2], 0f, 0f, "world",
+                    false, false, false, 20.0, 20);
+            int bx = (int) Math.floor(p[0]);
+            int by = (int) Math.floor(p[1]);
+            int bz = (int) Math.floor(p[2]);
+            frame.addBlockEvent(event(START + i * 50L, bx, by - 1, bz));
+            frame.addBlockEvent(event(START + i * 50L + 1, bx + 3, by + 2, bz - 4));
+            recording.addFrame(frame);
+        }
+
+        assertSameFrames(recording, roundTrip(recording));
+    }
+
+    /**
+     * Тот же блок кадров пишут и сегменты журнала: проверяем его отдельно, с середины записи.
+     */
+    @Test
+    void journalSegmentKeepsBoundaryEvents() throws IOException {
+        PlayerRecording recording = new PlayerRecording(9, UUID.randomUUID(), "Bob", "why", START);
+        for (int i = 0; i < 20; i++) {
+            RecordFrame frame = new RecordFrame(START + i * 50L, 10.99995 + i, 63.99999, -0.00001, 0f, 0f,
+                    "world", false, false, false, 20.0, 20);
+            frame.addBlockEvent(event(START + i * 50L, 10 + i, 62, -1));
+            recording.addFrame(frame);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long base = recording.getFrameStore().getTime(10);
+        BinaryRecordingCodec.writeFrames(out, recording.getFrameStore(), 10, 20, base);
+        out.flush();
+
+        PlayerRecording segment = new PlayerRecording(9, recording.getPlayerId(), "Bob", "why", START);
+        BinaryRecordingCodec.readFrames(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                segment, base);
+
+        Assertions.assertEquals(10, segment.getFrameCount());
+        for (int i = 0; i < 10; i++) {
+            BlockEvent expected = recording.getFrame(10 + i).getBlockEvents().get(0);
+            BlockEvent actual = segment.getFrame(i).getBlockEvents().get(0);
+            Assertions.assertEquals(expected.getX(), actual.getX());
+            Assertions.assertEquals(expected.getY(), actual.getY());
+            Assertions.assertEquals(expected.getZ(), actual.getZ());
+        }
+    }
+
+    private static BlockEvent event(long time, int x, int y, int z) {
+        return new BlockEvent(time, BlockEvent.EventType.BREAK_COMPLETE, x, y, z, "world", Material.DIAMOND_ORE,
+                1f, 42, "minecraft:diamond_ore", null);
+    }
+
+    private static PlayerRecording roundTrip(PlayerRecording recording) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryRecordingCodec.encode(recording, bytes);
+        return BinaryRecordingCodec.decode(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static void assertSameFrames(PlayerRecording expected, PlayerRecording actual) {
+        Assertions.assertEquals(expected.getFrameCount(), actual.getFrameCount());
+        for (int i = 0; i < expected.getFrameCount(); i++) {
+            RecordFrame a = expected.getFrame(i);
+            RecordFrame b = actual.getFrame(i);
+            Assertions.assertEquals(a.getTimestamp(), b.getTimestamp(), "время кадра " + i);
+            Assertions.assertEquals(a.getX(), b.getX(), 1.0 / 4096, "x кадра " + i);
+            Assertions.assertEquals(a.getY(), b.getY(), 1.0 / 4096, "y кадра " + i);
+            Assertions.assertEquals(a.getZ(), b.getZ(), 1.0 / 4096, "z кадра " + i);
+            Assertions.assertEquals(a.getYaw(), b.getYaw(), 0.01f, "yaw кадра " + i);
+            Assertions.assertEquals(a.getWorld(), b.getWorld());
+            Assertions.assertEquals(a.isSneaking(), b.isSneaking());
+
+            List<BlockEvent> ae = a.getBlockEvents();
+            List<BlockEvent> be = b.getBlockEvents();
+            Assertions.assertEquals(ae.size(), be.size(), "событий в кадре " + i);
+            for (int e = 0; e < ae.size(); e++) {
+                BlockEvent p = ae.get(e);
+                BlockEvent q = be.get(e);
+                Assertions.assertEquals(p.getX(), q.getX(), "x события в кадре " + i);
+                Assertions.assertEquals(p.getY(), q.getY(), "y события в кадре " + i);
+                Assertions.assertEquals(p.getZ(), q.getZ(), "z события в кадре " + i);
+                Assertions.assertEquals(p.getTimestamp(), q.getTimestamp());
+                Assertions.assertEquals(p.getBlockType(), q.getBlockType());
+                Assertions.assertEquals(p.getBlockDataString(), q.getBlockDataString());
+                Assertions.assertNull(q.getPreviousBlockDataString());
+                Assertions.assertEquals(p.getEntityId(), q.getEntityId());
+            }
+        }
+    }
+}
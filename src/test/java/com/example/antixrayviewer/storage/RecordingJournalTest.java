@@ -0,0 +1,171 @@
+package com.example.antixrayviewer.storage;
+
+import com.example.antixrayviewer.TestServer;
+import com.example.antixrayviewer.data.BlockEvent;
+import com.example.antixrayviewer.data.PlayerRecording;
+import org.bukkit.Material;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.UUID;
+
+class RecordingJournalTest {
+
+    private static final long START = 5_000L;
+    private static final int FRAMES = 300;
+    /** Сегмент журнала — каждые 100 кадров. */
+    private static final int SEGMENT_FRAMES = 100;
+
+    @TempDir
+    File folder;
+
+    @BeforeAll
+    static void server() {
+        TestServer.install();
+    }
+
+    @Test
+    void recoversAllSegments() throws IOException {
+        PlayerRecording recording = recording();
+        File file = write(recording, segments(recording));
+
+        PlayerRecording recovered = RecordingJournal.recover(file, "crash");
+
+        Assertions.assertNotNull(recovered);
+        Assertions.assertEquals(42, recovered.getId());
+        Assertions.assertEquals("Bob", recovered.getPlayerName());
+        Assertions.assertEquals("crash", recovered.getEndReason());
+        Assertions.assertEquals(recording.getFrameStore().getTime(FRAMES - 1), recovered.getEndTime(),
+                "конец записи — время последнего кадра");
+        assertPrefix(recording, recovered, FRAMES);
+        Assertions.assertEquals(recording.getFrameStore().getEventCount(), recovered.getFrameStore().getEventCount());
+    }
+
+    /**
+     * Сервер упал посреди дописывания: оборванный последний сегмент отбрасывается целиком.
+     */
+    @Test
+    void truncatedTailDropsOnlyLastSegment() throws IOException {
+        PlayerRecording recording = recording();
+        File file = write(recording, segments(recording));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        PlayerRecording recovered = RecordingJournal.recover(file, "crash");
+
+        Assertions.assertNotNull(recovered);
+        assertPrefix(recording, recovered, FRAMES - SEGMENT_FRAMES);
+    }
+
+    /**
+     * Обрыв внутри заголовка сегмента (длина есть, CRC нет) — тоже конец журнала, а не ошибка.
+     */
+    @Test
+    void truncatedSegmentHeaderIsIgnored() throws IOException {
+        PlayerRecording recording = recording();
+        byte[][] segments = segments(recording);
+        File file = write(recording, segments[0], new byte[]{0, 0, 1});
+
+        PlayerRecording recovered = RecordingJournal.recover(file, "crash");
+
+        Assertions.assertNotNull(recovered);
+        assertPrefix(recording, recovered, SEGMENT_FRAMES);
+    }
+
+    /**
+     * Повреждённый сегмент в середине: всё после него не читается, даже целые сегменты.
+     */
+    @Test
+    void corruptedSegmentStopsRecovery() throws IOException {
+        PlayerRecording recording = recording();
+        byte[][] segments = segments(recording);
+        // Портим тело второго сегмента, после заголовка [длина][CRC]
+        segments[1][12] ^= 0x5A;
+        File file = write(recording, segments);
+
+        PlayerRecording recovered = RecordingJournal.recover(file, "crash");
+
+        Assertions.assertNotNull(recovered);
+        assertPrefix(recording, recovered, SEGMENT_FRAMES);
+    }
+
+    @Test
+    void garbageLengthStopsRecovery() throws IOException {
+        PlayerRecording recording = recording();
+        byte[][] segments = segments(recording);
+        File file = write(recording, segments[0], new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF},
+                segments[1]);
+
+        PlayerRecording recovered = RecordingJournal.recover(file, "crash");
+
+        Assertions.assertNotNull(recovered);
+        assertPrefix(recording, recovered, SEGMENT_FRAMES);
+    }
+
+    @Test
+    void headerOnlyJournalHasNothingToRecover() throws IOException {
+        PlayerRecording recording = recording();
+        File file = write(recording);
+
+        Assertions.assertNull(RecordingJournal.recover(file, "crash"));
+    }
+
+    @Test
+    void foreignFileIsRejected() throws IOException {
+        File file = new File(folder, "recording-1.axj");
+        Files.write(file.toPath(), new byte[]{'A', 'X', 'R', 1, 0, 0, 0, 0});
+
+        Assertions.assertThrows(IOException.class, () -> RecordingJournal.recover(file, "crash"));
+    }
+
+    private static PlayerRecording recording() {
+        PlayerRecording recording = new PlayerRecording(42, UUID.randomUUID(), "Bob", "why", START);
+        for (int i = 0; i < FRAMES; i++) {
+            long time = START + i * 100L;
+            recording.addFrame(time, i * 0.5, -40, 3, 10f, 5f, "world", false, false, false, 20, 20);
+            if (i % 7 == 0) {
+                recording.addBlockEvent(new BlockEvent(time - 10, BlockEvent.EventType.BREAK_COMPLETE, i, -41, 3,
+                        "world", Material.STONE, 1f, 1, "minecraft:stone", null));
+            }
+        }
+        return recording;
+    }
+
+    private static byte[][] segments(PlayerRecording recording) throws IOException {
+        byte[][] segments = new byte[FRAMES / SEGMENT_FRAMES][];
+        for (int s = 0; s < segments.length; s++) {
+            segments[s] = RecordingJournal.encodeSegment(recording.getFrameStore(), s * SEGMENT_FRAMES,
+                    (s + 1) * SEGMENT_FRAMES, START);
+        }
+        return segments;
+    }
+
+    private File write(PlayerRecording recording, byte[]... segments) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(RecordingJournal.encodeHeader(recording));
+        for (byte[] segment : segments) {
+            bytes.write(segment);
+        }
+        File file = new File(folder, "recording-" + recording.getId() + ".axj");
+        Files.write(file.toPath(), bytes.toByteArray());
+        return file;
+    }
+
+    private static void assertPrefix(PlayerRecording expected, PlayerRecording actual, int frames) {
+        Assertions.assertEquals(frames, actual.getFrameCount(), "восстановлено кадров");
+        for (int i = 0; i < frames; i++) {
+            Assertions.assertEquals(expected.getFrameStore().getTime(i), actual.getFrameStore().getTime(i),
+                    "время кадра " + i);
+            Assertions.assertEquals(expected.getFrameStore().getX(i), actual.getFrameStore().getX(i), 1.0 / 4096,
+                    "x кадра " + i);
+        }
+    }
+}